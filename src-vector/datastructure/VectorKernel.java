@@ -0,0 +1,157 @@
+package datastructure;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SIMD distance kernels on the JDK Vector API.
+ * Compile and run with --add-modules jdk.incubator.vector,
+ * loaded by Distance when available.
+ *
+ */
+public class VectorKernel implements Distance.Kernel {
+
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+	// floats with as many lanes as SPECIES, widened to doubles
+	private static final VectorSpecies<Float> FLOAT_SPECIES =
+			FloatVector.SPECIES_PREFERRED.withShape(VectorShape.forBitSize(SPECIES.vectorBitSize() / 2));
+
+	private static final int LANES = SPECIES.length();
+
+	// number of dimensions between two checks of the bound
+	private static final int BLOCK = 8 * LANES;
+
+	public VectorKernel() {
+	}
+
+	@Override
+	public double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(d);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector dif = DoubleVector.fromArray(SPECIES, x, xOffset + j)
+					.sub(DoubleVector.fromArray(SPECIES, y, yOffset + j));
+			acc = dif.fma(dif, acc);
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; j < d; j++) {
+			double dif = x[xOffset + j] - y[yOffset + j];
+			sum += dif * dif;
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int bound = SPECIES.loopBound(d);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector dif = widen(x, xOffset + j).sub(DoubleVector.fromArray(SPECIES, y, yOffset + j));
+			acc = dif.fma(dif, acc);
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; j < d; j++) {
+			double dif = x[xOffset + j] - y[yOffset + j];
+			sum += dif * dif;
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d, double bound) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int limit = SPECIES.loopBound(d);
+		int j = 0;
+		while (j < limit) {
+			int end = Math.min(limit, j + BLOCK);
+			for (; j < end; j += LANES) {
+				DoubleVector dif = DoubleVector.fromArray(SPECIES, x, xOffset + j)
+						.sub(DoubleVector.fromArray(SPECIES, y, yOffset + j));
+				acc = dif.fma(dif, acc);
+			}
+			if (j < limit) {
+				double partial = acc.reduceLanes(VectorOperators.ADD);
+				if (partial > bound) {
+					return partial;
+				}
+			}
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; j < d; j++) {
+			double dif = x[xOffset + j] - y[yOffset + j];
+			sum += dif * dif;
+		}
+		return sum;
+	}
+
+	@Override
+	public double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d, double bound) {
+		DoubleVector acc = DoubleVector.zero(SPECIES);
+		int limit = SPECIES.loopBound(d);
+		int j = 0;
+		while (j < limit) {
+			int end = Math.min(limit, j + BLOCK);
+			for (; j < end; j += LANES) {
+				DoubleVector dif = widen(x, xOffset + j).sub(DoubleVector.fromArray(SPECIES, y, yOffset + j));
+				acc = dif.fma(dif, acc);
+			}
+			if (j < limit) {
+				double partial = acc.reduceLanes(VectorOperators.ADD);
+				if (partial > bound) {
+					return partial;
+				}
+			}
+		}
+		double sum = acc.reduceLanes(VectorOperators.ADD);
+		for (; j < d; j++) {
+			double dif = x[xOffset + j] - y[yOffset + j];
+			sum += dif * dif;
+		}
+		return sum;
+	}
+
+	@Override
+	public void accumulate(double[] x, int xOffset, double scale, double[] sum, int sumOffset, int d) {
+		DoubleVector s = DoubleVector.broadcast(SPECIES, scale);
+		int bound = SPECIES.loopBound(d);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			DoubleVector.fromArray(SPECIES, x, xOffset + j)
+					.fma(s, DoubleVector.fromArray(SPECIES, sum, sumOffset + j))
+					.intoArray(sum, sumOffset + j);
+		}
+		for (; j < d; j++) {
+			sum[sumOffset + j] += x[xOffset + j] * scale;
+		}
+	}
+
+	@Override
+	public void accumulate(float[] x, int xOffset, double scale, double[] sum, int sumOffset, int d) {
+		DoubleVector s = DoubleVector.broadcast(SPECIES, scale);
+		int bound = SPECIES.loopBound(d);
+		int j = 0;
+		for (; j < bound; j += LANES) {
+			widen(x, xOffset + j)
+					.fma(s, DoubleVector.fromArray(SPECIES, sum, sumOffset + j))
+					.intoArray(sum, sumOffset + j);
+		}
+		for (; j < d; j++) {
+			sum[sumOffset + j] += x[xOffset + j] * scale;
+		}
+	}
+
+	/**
+	 * LANES floats starting at x[offset] as doubles
+	 */
+	private static DoubleVector widen(float[] x, int offset) {
+		return (DoubleVector) FloatVector.fromArray(FLOAT_SPECIES, x, offset)
+				.convertShape(VectorOperators.F2D, SPECIES, 0);
+	}
+
+}
@@ -8,7 +8,8 @@ import datastructure.Center;
 import datastructure.Point;
 import kmeans.Evaluate;
 import kmeans.KMeansPlusPlus;
-import util.ReadData;
+import kmeans.QueryConfig;
+import util.PointReader;
 
 public class KMeansDriver {
 	
@@ -16,16 +17,29 @@ public class KMeansDriver {
 	
 	public static final int QUERY_TRIALS = 5; 
 	
+	// run the trials on separate cores (see kmeans.ParallelQuery)
+	public static final boolean PARALLEL_TRIALS = false;
+	
+	// seed of the trials, null for a different run each time
+	public static final Long QUERY_SEED = null;
+	
+	// also run mini-batch k-means and write its cost to minibatch.txt
+	public static final boolean COMPARE_MINI_BATCH = false;
+	
 	public static final String DATA_NAME = "synthetic";
+	
+	// read the dataset from a memory-mapped file instead of a Scanner
+	public static final boolean MAPPED_READER = false;
 
 	public static void main(String[] args) throws Exception {
 		
 		int[] k = new int[]{10, 20, 30, 40, 50}; 
 		
+		// convert once with util.PointFile and use the ".bin" file to skip parsing
 		String fileName = "E:/dataset/clean/" + DATA_NAME + ".txt";
 		
 		// read the points as input data stream
-		ReadData readData = new ReadData(fileName);
+		PointReader readData = PointReader.open(fileName, MAPPED_READER);
 		List<Point> recvPoints = new ArrayList<Point>();   // received points
 		while (readData.hasNextLine()) {
 			// read each point
@@ -33,6 +47,14 @@ public class KMeansDriver {
 			recvPoints.add(p);
 		}
 
+		QueryConfig config = new QueryConfig();
+		config.parallelTrials = PARALLEL_TRIALS;
+		config.seed = QUERY_SEED;
+		QueryConfig miniBatchConfig = new QueryConfig();
+		miniBatchConfig.parallelTrials = PARALLEL_TRIALS;
+		miniBatchConfig.seed = QUERY_SEED;
+		miniBatchConfig.solver = QueryConfig.Solver.MINI_BATCH;
+
 		for (int i=0; i<k.length; i++) {
 			// File to write the result
 			String prefix = DATA_NAME + "/" + "k-" + k[i] + "/kmpp/";
@@ -42,10 +64,18 @@ public class KMeansDriver {
 			}		
 			FileWriter fwAccuracy = new FileWriter(prefix + "accuracy.txt");
 			
-			List<Center> centers = KMeansPlusPlus.multiKMeansPlusPlus(recvPoints, k[i], MAX_ITERATIONS, QUERY_TRIALS);
+			List<Center> centers = KMeansPlusPlus.multiKMeansPlusPlus(recvPoints, k[i], MAX_ITERATIONS, QUERY_TRIALS, config);
 			double kmeansCost = Evaluate.kmeansCost(recvPoints, centers);
 			fwAccuracy.write(kmeansCost + "\n");
 			fwAccuracy.close();
+			
+			if (COMPARE_MINI_BATCH) {
+				List<Center> miniBatchCenters = KMeansPlusPlus.multiKMeansPlusPlus(recvPoints, k[i], MAX_ITERATIONS,
+						QUERY_TRIALS, miniBatchConfig);
+				FileWriter fwMiniBatch = new FileWriter(prefix + "minibatch.txt");
+				fwMiniBatch.write(Evaluate.kmeansCost(recvPoints, miniBatchCenters) + "\n");
+				fwMiniBatch.close();
+			}
 		}
 	}
 	
@@ -1,20 +1,34 @@
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
 import algo.CluMethod;
 import algo.CoresetCache;
+import algo.CoresetModel;
 import algo.CoresetTree;
 import algo.FirstKSeq;
 import algo.HybridCache;
+import algo.ShardProducers;
+import algo.ShardedModel;
 import algo.ThreeRecursiveCache;
 import algo.TwoRecursiveCache;
 import datastructure.Center;
 import datastructure.Point;
+import datastructure.PointBlock;
+import datastructure.Storage;
 import kmeans.Evaluate;
+import kmeans.ParallelQuery;
+import kmeans.QueryConfig;
+import kmeans.QueryConfig.LloydMode;
+import kmeans.QueryConfig.Seeding;
+import kmeans.QueryConfig.Solver;
+import kmeans.QueryStats;
 import util.Poisson;
-import util.ReadData;
+import util.PipelinedReadData;
+import util.PointReader;
+import util.PointRingBuffer.WaitStrategy;
 
 public class Main {
 	
@@ -24,8 +38,89 @@ public class Main {
 	
 	public static final int EVAL_TIMES = 6;
 	
+	// Lloyd iterations of the query-time k-means (HAMERLY skips distance computations)
+	public static final LloydMode LLOYD_MODE = LloydMode.STANDARD;
+	
+	// initial centers of the query-time k-means (FAST: coreset tree, KMEANS_PLUS_PLUS: exact D^2 sampling,
+	// KMEANS_PARALLEL: k-means|| rounds on the query threads)
+	public static final Seeding SEEDING = Seeding.FAST;
+	
+	// refinement of the query-time k-means (LLOYD, or MINI_BATCH for large unioned coresets)
+	public static final Solver SOLVER = Solver.LLOYD;
+	
+	// at every evaluation also query with the other solver and write
+	// the k-means costs of both to solver.txt
+	public static final boolean COMPARE_SOLVERS = false;
+	
+	// start each query from the previous answer of the model, re-seeding
+	// a fraction of its centers (cold start when the cost regresses)
+	public static final boolean WARM_START = false;
+	
+	public static final double RESEED_FRACTION = 0;
+	
+	// time budget of a query in milliseconds (the best centers found by then are
+	// returned, trials and iterations written to querystats.txt), 0 for no budget
+	public static final long QUERY_BUDGET_MILLIS = 0;
+	
+	// Lloyd iterations also stop once the cost drops by at most this fraction
+	public static final double COST_TOLERANCE = 0;
+	
+	// threads of the query-time k-means (kmeans.ParallelQuery), 1 to run on the caller
+	public static final int QUERY_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	// run the QUERY_TRIALS trials of a query concurrently on the query threads
+	public static final boolean PARALLEL_TRIALS = false;
+	
+	// read the stream from a memory-mapped file instead of a Scanner
+	public static final boolean MAPPED_READER = false;
+	
+	// number of points sent to the model per update (CluMethod.clusterBatch),
+	// 1 to update point by point
+	public static final int INGEST_BATCH_SIZE = 1;
+	
+	// parse the stream on a separate thread (util.PipelinedReadData)
+	public static final boolean PIPELINED_READER = false;
+	
+	// number of parsed points buffered ahead of the model
+	public static final int PIPELINE_CAPACITY = 4096;
+	
+	// number of shards of a coreset model (algo.ShardedModel), each its own model;
+	// the batches go to the shards in turn
+	public static final int INGEST_SHARDS = 1;
+	
+	// start a producer thread per shard (algo.ShardProducers), the read loop hands
+	// the batches over and the shards ingest in parallel; updatetime.txt then holds
+	// "shard points seconds" per shard instead of the time of each point
+	public static final boolean SHARD_PRODUCERS = false;
+	
+	// number of batches buffered ahead of each producer
+	public static final int SHARD_QUEUE_CAPACITY = 16;
+	
+	// a query reduces the union of the shards to this many points (0: not reduced)
+	public static final int SHARD_REDUCED_SIZE = 0;
+	
+	// merge full buckets into the coreset trees on a background thread (algo.MergeWorker),
+	// an update only appends to bucket 0, queries read the pending buckets as they are
+	// (the level models of the recursive caches still merge on the update thread)
+	public static final boolean BACKGROUND_MERGE = false;
+	
+	// compute the coreset cache entries on the merge thread as the buckets arrive
+	// (algo.CoresetCache), the cache hits and misses of the queries go to cachestats.txt
+	public static final boolean EAGER_CACHE = false;
+	
+	// keep full coresets (tree buckets and cache entries) off the Java heap
+	public static final boolean OFF_HEAP_CORESETS = false;
+	
+	// store coreset positions as floats (costs and centroids stay in double)
+	public static final boolean SINGLE_PRECISION_CORESETS = false;
+	
+	// run each method in double and single precision side by side
+	// and write both k-means costs to precision.txt instead of a normal run
+	public static final boolean COMPARE_PRECISION = false;
+	
 	public static final String DATA_NAME = "synthetic";
 	
+	// a binary point file (".bin", see util.PointFile) is mapped instead of parsed
 	public static final String FILE_NAME = "/Users/yu/Documents/clustering data/dataset/clean/" + DATA_NAME + ".txt";
 	
 	/**
@@ -35,6 +130,8 @@ public class Main {
 	 */
 	public static void main(String[] args) throws Exception {
 		
+		ParallelQuery.setParallelism(QUERY_THREADS);
+		
 //		int lowK = 20;
 //		
 //		int highK = 30;
@@ -94,6 +191,13 @@ public class Main {
 		for (int i=0; i<bucketSizeRatio.length; i++) {
 			// run(k, d, n, bucketSize, 2, queryInterval, FILE_NAME, DATA_NAME, "firstseq");
 			int bucketSize = bucketSizeRatio[i] * k;
+			if (COMPARE_PRECISION) {
+				comparePrecision(k, d, n, bucketSize, 2, queryInterval, FILE_NAME, DATA_NAME, "skmpp");
+				comparePrecision(k, d, n, bucketSize, 2, queryInterval, FILE_NAME, DATA_NAME, "cache");
+				comparePrecision(k, d, n, bucketSize, (int)Math.sqrt(n/bucketSize), queryInterval, FILE_NAME, DATA_NAME, "rcc");
+				comparePrecision(k, d, n, bucketSize, 2, queryInterval, FILE_NAME, DATA_NAME, "hybrid_12");
+				continue;
+			}
 			run(k, d, n, bucketSize, 2, queryInterval, FILE_NAME, DATA_NAME, "skmpp");
 			run(k, d, n, bucketSize, 2, queryInterval, FILE_NAME, DATA_NAME, "cache");
 			run(k, d, n, bucketSize, (int)Math.sqrt(n/bucketSize), queryInterval, FILE_NAME, DATA_NAME, "rcc");
@@ -123,7 +227,7 @@ public class Main {
 
 		/******************* step 1. Initialize parameters  *******************/
 		int numOfPoints = 0;   // number of received points so far
-		List<Point> recvPoints = new ArrayList<Point>();   // received points
+		PointBlock recvPoints = new PointBlock(n, false);   // received points
 		
 		// timing variables
 		long start = 0, end = 0;
@@ -142,69 +246,94 @@ public class Main {
 		FileWriter fwUpdate = new FileWriter(prefix + "updatetime.txt");
 		FileWriter fwQuery = new FileWriter(prefix + "querytime.txt");
 		FileWriter fwMemory = new FileWriter(prefix + "memory.txt");
+		FileWriter fwOffHeap = OFF_HEAP_CORESETS ? new FileWriter(prefix + "offheap.txt") : null;
+		FileWriter fwSolver = COMPARE_SOLVERS ? new FileWriter(prefix + "solver.txt") : null;
+		FileWriter fwQueryStats = QUERY_BUDGET_MILLIS > 0 ? new FileWriter(prefix + "querystats.txt") : null;
+		QueryStats queryStats = new QueryStats();
 		
 		// read the points as input data stream
-		ReadData readData = new ReadData(fileName);
-		
-		/*******************  step 2. Initialize model  *******************/
-		CluMethod model = new FirstKSeq(k, d);
-		
-		// method 2: stream kmeans++
-		if (cluMethod.equals("skmpp")) {
-			model = new CoresetTree(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS);
+		PointReader readData = PointReader.open(fileName, MAPPED_READER);
+		if (PIPELINED_READER) {
+			readData = new PipelinedReadData(readData, d, PIPELINE_CAPACITY, WaitStrategy.YIELD);
 		}
 		
-		// method 3: coreset cache
-		if (cluMethod.equals("cache")) {
-			model = new CoresetCache(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS);
-		}
-		
-		// inner tree with cache
-		if (cluMethod.equals("tworcc")) {
-			model = new TwoRecursiveCache(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS);	
-		}
-		
-		
-		// method 4: recursive: three tiers (tree + cache)
-		if (cluMethod.equals("rcc")) {
-			 model = new ThreeRecursiveCache(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS);
-		}
-		
-		// method 5: hybrid (sequential + cache)
-		if (cluMethod.equals("hybrid_12")) {
-			 model = new HybridCache(k, d, bucketSize, r, 1.2, MAX_ITERATIONS, QUERY_TRIALS);
-		}
+		/*******************  step 2. Initialize model  *******************/
+		CluMethod model = createModel(k, d, bucketSize, r, cluMethod, SINGLE_PRECISION_CORESETS);
+		ShardProducers producers = SHARD_PRODUCERS && model instanceof ShardedModel
+				? new ShardProducers((ShardedModel) model, d, SHARD_QUEUE_CAPACITY) : null;
 		
 //		// Initialize Poisson Process
 //		Poisson poisson = new Poisson(lambda, k);
 //		int nextQueryPoint = poisson.nextPoisson();
 		
+		// buffered points of the current batch (row-major)
+		double[] batch = new double[INGEST_BATCH_SIZE * d];
+		int batchCount = 0;
+		
 		/*******************  step 3. Update the model (cluster centers)  *******************/
 		// for each batch, run the clustering algorithm
 		while (readData.hasNextLine()) {
-			// read each point
-			Point p = readData.nextPoint();  
-			recvPoints.add(p);
+			// read each point, the pipelined reader hands over its slot (weight 1)
+			double[] position;
+			double weight = 1;
+			if (PIPELINED_READER) {
+				position = readData.nextPosition();
+			}
+			else {
+				Point p = readData.nextPoint();
+				position = p.position;
+				weight = p.weight;
+			}
+			recvPoints.add(position, weight);
 			numOfPoints++;
 			
 			// update process: cluster the points
-			start = System.nanoTime();
-			model.cluster(p);
-			end = System.nanoTime();
-			updateTime = (end - start) / 1e9;  // in seconds
-			fwUpdate.write(updateTime + "\n");
+			if (INGEST_BATCH_SIZE <= 1 && producers == null) {
+				start = System.nanoTime();
+				model.cluster(new Point(position, weight));
+				end = System.nanoTime();
+				updateTime = (end - start) / 1e9;  // in seconds
+				fwUpdate.write(updateTime + "\n");
+			}
+			else {
+				System.arraycopy(position, 0, batch, batchCount * d, d);
+				batchCount++;
+				// the batch is flushed before every query and evaluation
+				if (batchCount == INGEST_BATCH_SIZE || numOfPoints % queryInterval == 0
+						|| numOfPoints % (n / EVAL_TIMES) == 0) {
+					if (producers != null) {
+						producers.submit(batch, batchCount);
+					}
+					else {
+						clusterBatch(model, batch, d, batchCount, fwUpdate);
+					}
+					batchCount = 0;
+				}
+			}
 			
 			// query by every queryInterval number of points
 			if (numOfPoints % queryInterval == 0) {
 				// run query method (but not evaluate)
 				start = System.nanoTime();
-				model.getCenters();
+				if (QUERY_BUDGET_MILLIS > 0) {
+					model.getCenters(QUERY_BUDGET_MILLIS, queryStats);
+				}
+				else {
+					model.getCenters();
+				}
 				end = System.nanoTime();
 				queryTime = (end - start) / 1e9;
 				fwQuery.write(queryTime + "\n");
+				if (fwQueryStats != null) {
+					// trials, iterations, deadline reached, cost, k-means time
+					fwQueryStats.write(queryStats + "\n");
+				}
 				
 				// record the memory cost
 				fwMemory.write(model.computeMemory() + "\n");
+				if (fwOffHeap != null) {
+					fwOffHeap.write(model.computeOffHeapBytes() + "\n");
+				}
 			}
 			
 //			// query by Poisson Process
@@ -240,16 +369,36 @@ public class Main {
 		
 			// evaluate
 			if (numOfPoints % (n / EVAL_TIMES) == 0) {
+				// the centers of all points received (the queries do not wait for the producers)
+				if (producers != null) {
+					producers.await();
+				}
 				// query (compute k cluster centers) and the end of each query interval
 				List<Center> centers = model.getCenters();
 				
-				// double kmeansCost = Evaluate.evaluate(clusterCenters, fileName, numOfPoints); 
+				// double kmeansCost = Evaluate.evaluate(centers, PointReader.open(fileName, MAPPED_READER), numOfPoints); 
 				double kmeansCost = Evaluate.kmeansCost(recvPoints, centers);
 				System.out.println(kmeansCost);
 				fwAccuracy.write(kmeansCost + "\n");
+				if (COMPARE_SOLVERS) {
+					compareSolvers(model, recvPoints, numOfPoints, kmeansCost, fwSolver);
+				}
 			}
 		}
 		
+		// flush the last batch
+		if (producers != null) {
+			producers.submit(batch, batchCount);
+			producers.close();
+			for (int i = 0; i < ((ShardedModel) model).numShards(); i++) {
+				fwUpdate.write(i + " " + producers.numPoints(i) + " " + producers.updateTime(i) + "\n");
+			}
+		}
+		else if (batchCount > 0) {
+			clusterBatch(model, batch, d, batchCount, fwUpdate);
+		}
+		readData.close();
+		
 		// compute kmeans cost at the end of stream
 		List<Center> centers = model.getCenters();
 		double kmeansCost = Evaluate.kmeansCost(recvPoints, centers);
@@ -262,6 +411,230 @@ public class Main {
 		fwUpdate.close();
 		fwQuery.close();
 		fwMemory.close();
+		if (fwOffHeap != null) {
+			fwOffHeap.close();
+		}
+		if (fwQueryStats != null) {
+			fwQueryStats.close();
+		}
+		if (fwSolver != null) {
+			fwSolver.close();
+		}
+		
+		// hits and misses of the coreset cache over the queries of the run
+		if (model instanceof CoresetCache) {
+			CoresetCache cacheModel = (CoresetCache) model;
+			FileWriter fwCacheStats = new FileWriter(prefix + "cachestats.txt");
+			fwCacheStats.write(cacheModel.cacheHits() + " " + cacheModel.cacheMisses() + "\n");
+			fwCacheStats.close();
+		}
+		model.release();
+	}
+	
+	
+	/**
+	 * create the clustering model by its name
+	 * @param k
+	 * @param d
+	 * @param bucketSize
+	 * @param r
+	 * @param cluMethod
+	 * @param singlePrecision store the coresets of the model in single precision
+	 * @return
+	 */
+	private static CluMethod createModel(int k, int d, int bucketSize, int r, String cluMethod,
+			boolean singlePrecision) {
+		CluMethod model = createMethod(k, d, bucketSize, r, cluMethod, singlePrecision);
+		
+		// shards of a coreset model, unioned at query time
+		if (INGEST_SHARDS > 1 && model instanceof CoresetModel) {
+			List<CoresetModel> shards = new ArrayList<CoresetModel>();
+			shards.add((CoresetModel) model);
+			for (int i = 1; i < INGEST_SHARDS; i++) {
+				shards.add((CoresetModel) createMethod(k, d, bucketSize, r, cluMethod, singlePrecision));
+			}
+			model = new ShardedModel(k, shards, SHARD_REDUCED_SIZE, MAX_ITERATIONS, QUERY_TRIALS);
+		}
+		model.getQueryConfig().lloydMode = LLOYD_MODE;
+		model.getQueryConfig().seeding = SEEDING;
+		model.getQueryConfig().solver = SOLVER;
+		model.getQueryConfig().warmStart = WARM_START;
+		model.getQueryConfig().reseedFraction = RESEED_FRACTION;
+		model.getQueryConfig().costTolerance = COST_TOLERANCE;
+		model.getQueryConfig().parallelTrials = PARALLEL_TRIALS;
+		return model;
+	}
+	
+	
+	/**
+	 * create the clustering method by its name
+	 * @param k
+	 * @param d
+	 * @param bucketSize
+	 * @param r
+	 * @param cluMethod
+	 * @param singlePrecision
+	 * @return
+	 */
+	private static CluMethod createMethod(int k, int d, int bucketSize, int r, String cluMethod,
+			boolean singlePrecision) {
+		CluMethod model = new FirstKSeq(k, d);
+		Storage storage = new Storage(OFF_HEAP_CORESETS, singlePrecision);
+		
+		// method 2: stream kmeans++
+		if (cluMethod.equals("skmpp")) {
+			model = new CoresetTree(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS, storage, BACKGROUND_MERGE);
+		}
+		
+		// method 3: coreset cache
+		if (cluMethod.equals("cache")) {
+			model = new CoresetCache(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS, storage, BACKGROUND_MERGE,
+					EAGER_CACHE);
+		}
+		
+		// inner tree with cache
+		if (cluMethod.equals("tworcc")) {
+			model = new TwoRecursiveCache(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS, storage);	
+		}
+		
+		
+		// method 4: recursive: three tiers (tree + cache)
+		if (cluMethod.equals("rcc")) {
+			 model = new ThreeRecursiveCache(k, bucketSize, r, MAX_ITERATIONS, QUERY_TRIALS, storage);
+		}
+		
+		// method 5: hybrid (sequential + cache)
+		if (cluMethod.equals("hybrid_12")) {
+			 model = new HybridCache(k, d, bucketSize, r, 1.2, MAX_ITERATIONS, QUERY_TRIALS, storage,
+					BACKGROUND_MERGE, EAGER_CACHE);
+		}
+		return model;
+	}
+	
+	
+	/**
+	 * feed the same stream to a double precision and a single precision
+	 * model and write the k-means cost of both at every evaluation
+	 * (numOfPoints, double cost, single cost, relative difference)
+	 * @param k
+	 * @param d
+	 * @param n
+	 * @param bucketSize
+	 * @param r
+	 * @param queryInterval
+	 * @param fileName
+	 * @param dataName
+	 * @param cluMethod
+	 * @throws Exception
+	 */
+	public static void comparePrecision(int k, int d, int n, int bucketSize, int r, int queryInterval, String fileName,
+			String dataName, String cluMethod) throws Exception {
+		int numOfPoints = 0;
+		// received points, kept in double precision for the evaluation
+		PointBlock recvPoints = new PointBlock(n, false);
+		
+		String prefix = dataName + "/" + "bucketsize-" + (bucketSize/k) + "/" + cluMethod + "/";
+		File dir = new File(prefix);
+		if (!dir.exists()) {
+			dir.mkdirs();
+		}
+		FileWriter fwPrecision = new FileWriter(prefix + "precision.txt");
+		
+		PointReader readData = PointReader.open(fileName, MAPPED_READER);
+		
+		CluMethod doubleModel = createModel(k, d, bucketSize, r, cluMethod, false);
+		CluMethod singleModel = createModel(k, d, bucketSize, r, cluMethod, true);
+		
+		while (readData.hasNextLine()) {
+			double[] position = readData.nextPosition();
+			recvPoints.add(position, 1);
+			numOfPoints++;
+			
+			doubleModel.cluster(new Point(position, 1));
+			singleModel.cluster(new Point(position, 1));
+			
+			if (numOfPoints % (n / EVAL_TIMES) == 0) {
+				writePrecision(doubleModel, singleModel, recvPoints, numOfPoints, fwPrecision);
+			}
+		}
+		// the last points were not evaluated yet
+		// (no look-ahead, ReadData closes its scanner at the end of the stream)
+		if (numOfPoints % (n / EVAL_TIMES) != 0) {
+			writePrecision(doubleModel, singleModel, recvPoints, numOfPoints, fwPrecision);
+		}
+		readData.close();
+		fwPrecision.close();
+		doubleModel.release();
+		singleModel.release();
+	}
+	
+	
+	/**
+	 * write "numOfPoints doubleCost singleCost relDiff" (relDiff of single to double precision)
+	 * @param doubleModel
+	 * @param singleModel
+	 * @param recvPoints
+	 * @param numOfPoints
+	 * @param fwPrecision
+	 * @throws IOException
+	 */
+	private static void writePrecision(CluMethod doubleModel, CluMethod singleModel, PointBlock recvPoints,
+			int numOfPoints, FileWriter fwPrecision) throws IOException {
+		double doubleCost = Evaluate.kmeansCost(recvPoints, doubleModel.getCenters());
+		double singleCost = Evaluate.kmeansCost(recvPoints, singleModel.getCenters());
+		double relDiff = (singleCost - doubleCost) / doubleCost;
+		System.out.println("double " + doubleCost + " single " + singleCost + " diff " + relDiff);
+		fwPrecision.write(numOfPoints + " " + doubleCost + " " + singleCost + " " + relDiff + "\n");
+	}
+	
+	
+	/**
+	 * query the model once more with the other solver and write
+	 * "numOfPoints lloydCost miniBatchCost relDiff" (relDiff of mini-batch to Lloyd)
+	 * @param model
+	 * @param recvPoints
+	 * @param numOfPoints
+	 * @param cost k-means cost of the centers of SOLVER
+	 * @param fwSolver
+	 * @throws IOException
+	 */
+	private static void compareSolvers(CluMethod model, PointBlock recvPoints, int numOfPoints, double cost,
+			FileWriter fwSolver) throws IOException {
+		QueryConfig config = model.getQueryConfig();
+		// a cold query, the answer must not become the warm start of the model
+		config.solver = SOLVER == Solver.LLOYD ? Solver.MINI_BATCH : Solver.LLOYD;
+		config.warmStart = false;
+		double otherCost = Evaluate.kmeansCost(recvPoints, model.getCenters());
+		config.solver = SOLVER;
+		config.warmStart = WARM_START;
+		
+		double lloydCost = SOLVER == Solver.LLOYD ? cost : otherCost;
+		double miniBatchCost = SOLVER == Solver.LLOYD ? otherCost : cost;
+		double relDiff = (miniBatchCost - lloydCost) / lloydCost;
+		System.out.println("lloyd " + lloydCost + " mini-batch " + miniBatchCost + " diff " + relDiff);
+		fwSolver.write(numOfPoints + " " + lloydCost + " " + miniBatchCost + " " + relDiff + "\n");
+	}
+	
+	
+	/**
+	 * update the model with a batch of points, the update time
+	 * of the batch is amortized over its points
+	 * @param model
+	 * @param batch
+	 * @param d
+	 * @param numPoints
+	 * @param fwUpdate
+	 * @throws IOException
+	 */
+	private static void clusterBatch(CluMethod model, double[] batch, int d, int numPoints, FileWriter fwUpdate)
+			throws IOException {
+		long start = System.nanoTime();
+		model.clusterBatch(batch, d, numPoints);
+		long end = System.nanoTime();
+		double updateTime = (end - start) / 1e9 / numPoints;  // in seconds
+		for (int i = 0; i < numPoints; i++) {
+			fwUpdate.write(updateTime + "\n");
+		}
 	}
 
 }
@@ -3,14 +3,58 @@ import java.util.List;
 
 import datastructure.Center;
 import datastructure.Point;
+import datastructure.PointBlock;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
 
 
 public interface CluMethod {
 	
 	public void cluster(Point p);
 	
+	/**
+	 * cluster a batch of new points (weight 1)
+	 * @param data positions of the points in row-major order
+	 * @param d dimension
+	 * @param numPoints number of points in the batch
+	 */
+	public void clusterBatch(double[] data, int d, int numPoints);
+	
+	/**
+	 * cluster a batch of new points
+	 * @param points
+	 */
+	public void clusterBatch(PointBlock points);
+	
 	public long computeMemory();
 	
+	/**
+	 * compute the memory held outside the Java heap (see datastructure.Storage)
+	 * @return number of off-heap bytes
+	 */
+	public long computeOffHeapBytes();
+	
+	/**
+	 * free the memory of the model (off-heap coresets are freed at once),
+	 * the model is not used afterwards
+	 */
+	public void release();
+	
 	public List<Center> getCenters();
 	
+	/**
+	 * compute the centers within a time budget (anytime query): the best centers
+	 * found when the budget runs out, at least one trial is run
+	 * @param timeBudgetMillis
+	 * @param stats receives the trials and iterations the query completed
+	 * @return
+	 */
+	public List<Center> getCenters(long timeBudgetMillis, QueryStats stats);
+	
+	/**
+	 * options of the k-means run by getCenters, can be changed between queries
+	 * @return
+	 */
+	public QueryConfig getQueryConfig();
+	
 }
@@ -1,15 +1,21 @@
 package algo;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import datastructure.Bucket;
+import datastructure.BlockPool;
 import datastructure.Cache;
 import datastructure.Center;
 import datastructure.Point;
+import datastructure.PointBlock;
+import datastructure.Storage;
 import kmeans.KMeansPlusPlus;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
+import kmeans.WarmStart;
 
-public class CoresetCache implements CluMethod {
+public class CoresetCache implements CoresetModel {
 
 	// number of clusters wanted
 	private final int k;
@@ -32,15 +38,72 @@ public class CoresetCache implements CluMethod {
 	// coreset cache
 	private Cache cache;
 	
+	// where and in which precision the coresets are kept
+	private final Storage storage;
+
+	// options of the query-time k-means
+	private final QueryConfig queryConfig = new QueryConfig();
+
+	// previous answer of the model (see QueryConfig.warmStart)
+	private final WarmStart warmStart = new WarmStart();
+	
+	// compute the cache entry of each new bucket count on the merge worker as the
+	// buckets arrive, instead of in the first query after them
+	private final boolean eager;
+	
+	// bucket count the last population was scheduled for (a population
+	// queued for an older count is skipped, the last one covers its buckets)
+	private volatile int scheduledBuckets;
+	
+	// the last population handed to the merge worker
+	private volatile Future<?> population;
+	
+	// queries whose coreset of the tree was cached, or had to be computed
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	
 	public CoresetCache(int k, int bucketSize, int mergeThreshold, int maxIterations, int numTrials) {
+		this(k, bucketSize, mergeThreshold, maxIterations, numTrials, Storage.HEAP, false, false);
+	}
+	
+	/**
+	 * @param storage where the full buckets and the cached coresets are kept
+	 * @param backgroundMerge merge the tree on the merge worker (see MergeWorker)
+	 * @param eager fill the cache on the merge worker as the buckets arrive
+	 */
+	public CoresetCache(int k, int bucketSize, int mergeThreshold, int maxIterations, int numTrials,
+			Storage storage, boolean backgroundMerge, boolean eager) {
+		this(k, bucketSize, mergeThreshold, maxIterations, numTrials,
+				new BlockPool(bucketSize, Math.max(4, 2 * mergeThreshold), storage), backgroundMerge, eager);
+	}
+	
+	/**
+	 * a level model of a recursive cache: its tree is merged on the update
+	 * thread, so it only changes while the enclosing model carries a bucket
+	 * (the snapshot of the tree the enclosing model publishes stays valid)
+	 * @param pool shared with the enclosing model
+	 */
+	CoresetCache(int k, int bucketSize, int mergeThreshold, int maxIterations, int numTrials, BlockPool pool) {
+		this(k, bucketSize, mergeThreshold, maxIterations, numTrials, pool, false, false);
+	}
+	
+	/**
+	 * @param pool
+	 * @param backgroundMerge merge the tree on the merge worker (see MergeWorker)
+	 * @param eager fill the cache on the merge worker as the buckets arrive
+	 */
+	private CoresetCache(int k, int bucketSize, int mergeThreshold, int maxIterations, int numTrials,
+			BlockPool pool, boolean backgroundMerge, boolean eager) {
 		this.k = k;
 		this.m = bucketSize;
 		this.r = mergeThreshold;
 		
 		this.maxIter = maxIterations;
 		this.trials = numTrials;
-		cache = new Cache(r);
-		ct = new CoresetTree(k, m, r, maxIter, trials);
+		this.storage = pool.storage();
+		cache = new Cache(r, storage);
+		ct = new CoresetTree(k, m, r, maxIter, trials, pool, backgroundMerge);
+		this.eager = eager;
 	}
 
 
@@ -51,41 +114,219 @@ public class CoresetCache implements CluMethod {
 	@Override
 	public void cluster(Point p) {
 		ct.cluster(p);
+		if (eager) {
+			schedulePopulation();
+		}
+	}
+	
+	
+	@Override
+	public void clusterBatch(double[] data, int d, int numPoints) {
+		ct.clusterBatch(data, d, numPoints);
+		if (eager) {
+			schedulePopulation();
+		}
+	}
+	
+	
+	@Override
+	public void clusterBatch(PointBlock points) {
+		ct.clusterBatch(points);
+		if (eager) {
+			schedulePopulation();
+		}
+	}
+	
+	
+	/**
+	 * once new buckets arrived, queue the computation of the cache entry of the
+	 * bucket count on the merge worker (after the merges queued before it)
+	 */
+	private void schedulePopulation() {
+		final int numOfBuckets = ct.getNumOfBuckets();
+		if (numOfBuckets == scheduledBuckets) {
+			return;
+		}
+		scheduledBuckets = numOfBuckets;
+		population = MergeWorker.submit(new Runnable() {
+			@Override
+			public void run() {
+				populate(numOfBuckets);
+			}
+		});
+	}
+	
+	
+	/**
+	 * compute and cache the single coreset of the levels of the tree as they are
+	 * now (merge worker), the buckets still pending are not waited for: a query
+	 * appends them to the cached coreset of the levels (see getCoresets)
+	 * @param numOfBuckets bucket count the population was scheduled for
+	 */
+	private void populate(int numOfBuckets) {
+		if (numOfBuckets != scheduledBuckets) {
+			// a population for more buckets is queued behind this one
+			return;
+		}
+		CoresetTree.Snapshot snapshot = ct.snapshot();
+		try {
+			if (snapshot.numOfBuckets > 0 && !cache.containsCoreset(snapshot.numOfBuckets)) {
+				computeTreeCoresets(snapshot);
+			}
+		} finally {
+			snapshot.close();
+		}
+	}
+	
+	
+	/**
+	 * @return number of queries that found the coreset of the tree in the cache
+	 */
+	public long cacheHits() {
+		return cacheHits.get();
+	}
+	
+	
+	/**
+	 * @return number of queries that computed the coreset of the tree
+	 */
+	public long cacheMisses() {
+		return cacheMisses.get();
 	}
 
 	
+	@Override
+	public QueryConfig getQueryConfig() {
+		return queryConfig;
+	}
+	
+	
 	@Override
 	public List<Center> getCenters() {
-		// get coresets from the corset tree and cache
-		List<Point> coresets = getCoresets();
+		return query(QueryStats.NO_DEADLINE, new QueryStats());
+	}
+	
+	
+	@Override
+	public List<Center> getCenters(long timeBudgetMillis, QueryStats stats) {
+		return query(KMeansPlusPlus.deadline(timeBudgetMillis), stats);
+	}
+	
+	
+	/**
+	 * run kmeans++ on the coresets until the deadline
+	 * @param deadline System.nanoTime() to stop at, QueryStats.NO_DEADLINE for none
+	 * @param stats
+	 * @return
+	 */
+	List<Center> query(long deadline, QueryStats stats) {
+		PointBlock coresets = unionCoresets();
 		
-		// Don't forget to add the bucket_0
-		coresets.addAll(ct.getBucket0().coreset);
-				
 		// run kmeans++ multiple times to get the best k centers
-		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIter, trials);
+		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIter, trials, queryConfig, warmStart, deadline, stats);
+	}
+	
+	
+	/**
+	 * the weighted points a query clusters: the coresets and bucket 0
+	 * (of one snapshot of the tree, the updates go on meanwhile)
+	 * @return a new block (may be modified by the caller)
+	 */
+	@Override
+	public PointBlock unionCoresets() {
+		CoresetTree.Snapshot snapshot = ct.snapshot();
+		try {
+			// get coresets from the corset tree and cache
+			// Note: copy them, the cached coreset must not be modified
+			PointBlock coresets = new PointBlock(getCoresets(snapshot));
+			
+			// Don't forget to add the bucket_0
+			snapshot.appendBucket0(coresets);
+			return coresets;
+		} finally {
+			snapshot.close();
+		}
 	}
 	
 	
 	/**
 	 * Retrieve the coresets: coreset tree (minor) + coreset cache (major)
+	 * Note: the block must not be modified
 	 * @return
 	 */
-	public List<Point> getCoresets() {
-		// number of buckets (N) received till now
-		int numOfBuckets = ct.getNumOfBuckets();
+	public PointBlock getCoresets() {
+		CoresetTree.Snapshot snapshot = ct.snapshot();
+		try {
+			return getCoresets(snapshot);
+		} finally {
+			snapshot.close();
+		}
+	}
+	
+	
+	/**
+	 * the current state of the tree without opening a snapshot
+	 * (see CoresetTree.published)
+	 * @return
+	 */
+	CoresetTree.Snapshot published() {
+		return ct.published();
+	}
+	
+	
+	/**
+	 * the coresets of a snapshot of the tree: the cached coreset of the buckets
+	 * in its levels, plus the full buckets not merged yet (background merges)
+	 * Note: the block must not be modified
+	 * @param snapshot
+	 * @return
+	 */
+	PointBlock getCoresets(CoresetTree.Snapshot snapshot) {
+		PointBlock coresets = getTreeCoresets(snapshot);
+		if (!snapshot.hasPending()) {
+			return coresets;
+		}
+		PointBlock withPending = new PointBlock(coresets);
+		snapshot.appendPending(withPending);
+		return withPending;
+	}
+	
+	
+	/**
+	 * the single coreset of the levels of a snapshot, from the cache if possible
+	 * @param snapshot
+	 * @return
+	 */
+	private PointBlock getTreeCoresets(CoresetTree.Snapshot snapshot) {
+		// number of buckets (N) in the tree levels
+		int numOfBuckets = snapshot.numOfBuckets;
+		
+		if (numOfBuckets == 0) {
+			return storage.newBlock(16);
+		}
 		
 		// directly retrieve coreset if we just have it in the cache
-		if (cache.containsCoreset(numOfBuckets)) {
-			return cache.getCoreset(numOfBuckets);
+		// (a concurrent query may evict it, the lookup is one call)
+		PointBlock cached = cache.getCoreset(numOfBuckets);
+		if (cached != null) {
+			cacheHits.incrementAndGet();
+			return cached;
 		}
+		cacheMisses.incrementAndGet();
+		return computeTreeCoresets(snapshot);
+	}
+	
+	
+	/**
+	 * reduce the levels of a snapshot (N > 0) to a single coreset and cache it
+	 * @param snapshot
+	 * @return
+	 */
+	private PointBlock computeTreeCoresets(CoresetTree.Snapshot snapshot) {
+		int numOfBuckets = snapshot.numOfBuckets;
 		
 		// coreset collection to be returned
-		List<Point> coresets = new ArrayList<Point>();
-		
-		if (numOfBuckets == 0) {
-			return coresets;
-		}
+		PointBlock coresets = storage.newBlock(16);
 		
 		// compute major and minor of N
 		int minor = cache.minor(numOfBuckets);
@@ -93,28 +334,21 @@ public class CoresetCache implements CluMethod {
 		
 		// when the cache does not have the "major" coreset we want,
 		// retreat back to the coreset tree
-		if (major == 0 || !cache.containsCoreset(major)) {
-			coresets = ct.getCoresets();
+		PointBlock majorCoreset = major == 0 ? null : cache.getCoreset(major);
+		if (majorCoreset == null) {
+			snapshot.appendLevels(coresets);
 		}
 		else {
 			// otherwise, we can get the "major" coreset from the cache
-			List<List<Bucket>> coresetTree = ct.getCoresetTree();
+			coresets.addAll(majorCoreset);
 			
-			// add major coreset from cache
-			coresets.addAll(cache.getCoreset(major));
-			
-			int minorLevel = cache.minorLevel(numOfBuckets);
-			List<Bucket> minorLevelBuckets = coresetTree.get(minorLevel);
 			// add minor coresets from coreset tree
-			for (Bucket b : minorLevelBuckets) {
-				coresets.addAll(b.coreset);
-			}
-			
+			snapshot.appendLevel(cache.minorLevel(numOfBuckets), coresets);
 		}
 		
 		// shrink coresets size to m (single coreset)
 		// add coreset to cache
-		List<Point> singleCoreset = KMeansPlusPlus.fastSeeding(coresets, m, new Random());
+		PointBlock singleCoreset = KMeansPlusPlus.fastSeeding(coresets, m, new Random());
 		cache.insertCoreset(numOfBuckets, singleCoreset);
 		
 		return singleCoreset;
@@ -128,5 +362,27 @@ public class CoresetCache implements CluMethod {
     public long computeMemory() {
     	return cache.size() * m + ct.computeMemory();
     }
+    
+    /**
+     * free the coresets of the tree and the cache, the model is dropped
+     */
+    @Override
+    public void release() {
+    	// populations are queued by the updates, none is queued after this one
+    	Future<?> queued = population;
+    	if (queued != null) {
+    		MergeWorker.await(queued);
+    	}
+    	ct.release();
+    	cache.release();
+    }
+    
+    /**
+     * Compute the memory held outside the Java heap
+     * @return number of off-heap bytes of the coreset tree and cache
+     */
+    public long computeOffHeapBytes() {
+    	return cache.offHeapBytes() + ct.computeOffHeapBytes();
+    }
 }
 
@@ -0,0 +1,18 @@
+package algo;
+
+import datastructure.PointBlock;
+
+/**
+ * A clustering method whose query runs k-means on a union of coresets
+ * (e.g. the shards of a ShardedModel are unioned at query time)
+ *
+ */
+public interface CoresetModel extends CluMethod {
+
+	/**
+	 * the weighted points a query clusters: the coresets and bucket 0
+	 * @return a new block (may be modified by the caller)
+	 */
+	public PointBlock unionCoresets();
+
+}
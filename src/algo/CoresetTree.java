@@ -1,13 +1,23 @@
 package algo;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Future;
 
+import datastructure.BlockPool;
 import datastructure.Bucket;
 import datastructure.Center;
+import datastructure.CoresetStore;
 import datastructure.Point;
+import datastructure.PointBlock;
+import datastructure.Storage;
 import kmeans.KMeansPlusPlus;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
+import kmeans.WarmStart;
 
-public class CoresetTree implements CluMethod {
+public class CoresetTree implements CoresetModel {
 
 	// number of clusters wanted
 	private final int k;
@@ -33,8 +43,57 @@ public class CoresetTree implements CluMethod {
 	// initial bucket: size can be 0 to m-1 (both inclusive)
 	private Bucket bucket_0;
 	
+	// recycled bucket blocks and merge scratch space
+	private final BlockPool pool;
+	
+	// full buckets are merged into the tree by the merge worker (see MergeWorker)
+	private final boolean backgroundMerge;
+	
+	// merges handed to the merge worker and not waited for yet, oldest first
+	// (locked by itself: the update thread queues them, any thread reading
+	// or releasing the tree itself waits for them)
+	private final ArrayDeque<Future<?>> pendingMerges = new ArrayDeque<Future<?>>();
+	
+	// what the queries read, replaced (never modified) at each carry and insert
+	private volatile Snapshot published;
+	
+	// guards the state a snapshot is made of (updated by the update thread
+	// and the merge worker): levelStores, pendingStores, bucket_0, numOfBuckets
+	private final Object publishLock = new Object();
+	
+	// coresets of the levels once the last insert completed
+	private List<List<CoresetStore>> levelStores = Collections.emptyList();
+	
+	// coresets of the carried buckets not inserted yet, oldest first
+	private final List<CoresetStore> pendingStores = new ArrayList<CoresetStore>();
+
+	// options of the query-time k-means
+	private final QueryConfig queryConfig = new QueryConfig();
+
+	// previous answer of the model (see QueryConfig.warmStart)
+	private final WarmStart warmStart = new WarmStart();
+	
 
 	public CoresetTree(int k, int bucketSize, int mergeThreshold, int maxIterations, int queryTrials) {
+		this(k, bucketSize, mergeThreshold, maxIterations, queryTrials, Storage.HEAP, false);
+	}
+	
+	/**
+	 * @param storage where the full buckets are kept
+	 * @param backgroundMerge merge the full buckets on the merge worker (see MergeWorker)
+	 */
+	public CoresetTree(int k, int bucketSize, int mergeThreshold, int maxIterations, int queryTrials,
+			Storage storage, boolean backgroundMerge) {
+		this(k, bucketSize, mergeThreshold, maxIterations, queryTrials,
+				new BlockPool(bucketSize, Math.max(4, 2 * mergeThreshold), storage), backgroundMerge);
+	}
+	
+	/**
+	 * @param pool shared with the enclosing model
+	 * @param backgroundMerge merge on the merge worker (see MergeWorker)
+	 */
+	CoresetTree(int k, int bucketSize, int mergeThreshold, int maxIterations, int queryTrials, BlockPool pool,
+			boolean backgroundMerge) {
 		this.k = k;
 		this.m = bucketSize;
 		this.r = mergeThreshold;
@@ -42,8 +101,196 @@ public class CoresetTree implements CluMethod {
 		this.maxIter = maxIterations;
 		this.trials = queryTrials;
 		this.numOfBuckets = 0;
-		bucket_0 = new Bucket(m);
+		this.pool = pool;
+		this.backgroundMerge = backgroundMerge;
+		bucket_0 = new Bucket(m, pool);
 		this.coresetTree = new ArrayList<>();
+		publish();
+	}
+	
+	/**
+	 * Immutable state of the tree a query reads from another thread while the
+	 * updates go on: the coresets of the levels, of the buckets handed to the
+	 * merge worker, and the points added to bucket 0 so far (see snapshot()). Stores dropped by the updates meanwhile are freed once
+	 * the snapshot is closed (see BlockPool.openSnapshot).
+	 */
+	public static class Snapshot {
+		
+		// number of buckets inserted into the levels (pending ones excluded)
+		public final int numOfBuckets;
+		
+		private final List<List<CoresetStore>> levels;
+		
+		private final List<CoresetStore> pending;
+		
+		// bucket 0 and its block (null once the tree is released)
+		private final Bucket bucket0;
+		private final PointBlock bucket0Block;
+		
+		private final BlockPool pool;
+		
+		// ticket of the open snapshot of the pool (-1 for the published state)
+		private final long ticket;
+		
+		private Snapshot(int numOfBuckets, List<List<CoresetStore>> levels, List<CoresetStore> pending,
+				Bucket bucket0, BlockPool pool) {
+			this.numOfBuckets = numOfBuckets;
+			this.levels = levels;
+			this.pending = pending;
+			this.bucket0 = bucket0;
+			this.bucket0Block = bucket0 != null ? bucket0.getCoreset() : null;
+			this.pool = pool;
+			this.ticket = -1;
+		}
+		
+		/**
+		 * the published state read under an open snapshot of the pool
+		 * @param state
+		 * @param ticket
+		 */
+		private Snapshot(Snapshot state, long ticket) {
+			this.numOfBuckets = state.numOfBuckets;
+			this.levels = state.levels;
+			this.pending = state.pending;
+			this.bucket0 = state.bucket0;
+			this.bucket0Block = state.bucket0Block;
+			this.pool = state.pool;
+			this.ticket = ticket;
+		}
+		
+		public int numOfLevels() {
+			return levels.size();
+		}
+		
+		/**
+		 * append the coresets of level i to dst
+		 * @param i
+		 * @param dst
+		 */
+		public void appendLevel(int i, PointBlock dst) {
+			for (CoresetStore store : levels.get(i)) {
+				store.appendTo(dst);
+			}
+		}
+		
+		/**
+		 * append the coresets of all levels to dst
+		 * @param dst
+		 */
+		public void appendLevels(PointBlock dst) {
+			for (int i = 0; i < levels.size(); i++) {
+				appendLevel(i, dst);
+			}
+		}
+		
+		public boolean hasPending() {
+			return !pending.isEmpty();
+		}
+		
+		/**
+		 * append the full buckets not merged into the levels yet to dst
+		 * @param dst
+		 */
+		public void appendPending(PointBlock dst) {
+			for (CoresetStore store : pending) {
+				store.appendTo(dst);
+			}
+		}
+		
+		/**
+		 * append the points of bucket 0 to dst (the ones added so far)
+		 * @param dst
+		 */
+		public void appendBucket0(PointBlock dst) {
+			if (bucket0 != null) {
+				dst.addAll(bucket0Block, 0, bucket0.publishedSize());
+			}
+		}
+		
+		/**
+		 * number of weighted points of the levels and pending buckets
+		 * @return
+		 */
+		public long coresetsSize() {
+			long size = 0;
+			for (List<CoresetStore> level : levels) {
+				for (CoresetStore store : level) {
+					size += store.size();
+				}
+			}
+			for (CoresetStore store : pending) {
+				size += store.size();
+			}
+			return size;
+		}
+		
+		/**
+		 * number of weighted points of the levels, pending buckets and bucket 0
+		 * @return
+		 */
+		public long computeMemory() {
+			return coresetsSize() + (bucket0 != null ? bucket0.publishedSize() : 0);
+		}
+		
+		public long computeOffHeapBytes() {
+			long bytes = 0;
+			for (List<CoresetStore> level : levels) {
+				for (CoresetStore store : level) {
+					bytes += store.offHeapBytes();
+				}
+			}
+			return bytes;
+		}
+		
+		/**
+		 * the query is done with the snapshot (once per call of snapshot())
+		 */
+		public void close() {
+			pool.closeSnapshot(ticket);
+		}
+	}
+	
+	/**
+	 * the current state of the tree for a query (from any thread),
+	 * its coresets stay readable until it is closed
+	 * @return
+	 */
+	public Snapshot snapshot() {
+		long ticket = pool.openSnapshot();
+		return new Snapshot(published, ticket);
+	}
+	
+	/**
+	 * the current state of the tree without opening a snapshot (for an enclosing
+	 * model sharing the pool, whose own snapshot keeps the coresets readable)
+	 * @return
+	 */
+	Snapshot published() {
+		return published;
+	}
+	
+	/**
+	 * replace the published snapshot (holding publishLock)
+	 */
+	private void publish() {
+		published = new Snapshot(numOfBuckets - pendingStores.size(), levelStores,
+				new ArrayList<CoresetStore>(pendingStores), bucket_0, pool);
+	}
+	
+	/**
+	 * coresets of the levels of the tree
+	 * @return
+	 */
+	private List<List<CoresetStore>> storesOf(List<List<Bucket>> levels) {
+		List<List<CoresetStore>> stores = new ArrayList<List<CoresetStore>>(levels.size());
+		for (List<Bucket> level : levels) {
+			List<CoresetStore> levelStores = new ArrayList<CoresetStore>(level.size());
+			for (Bucket b : level) {
+				levelStores.add(b.getStore());
+			}
+			stores.add(levelStores);
+		}
+		return stores;
 	}
 	
 	/**
@@ -63,10 +310,11 @@ public class CoresetTree implements CluMethod {
 	}
 	
 	/**
-	 * Retrieve the coreset tree
+	 * Retrieve the coreset tree (once the pending merges are done)
 	 * @return 
 	 */
 	public List<List<Bucket>> getCoresetTree() {
+		awaitMerges();
 		return coresetTree;
 	}
 	
@@ -78,6 +326,42 @@ public class CoresetTree implements CluMethod {
 		mergeReduce(p);
 	}
 	
+	/**
+	 * clustering a batch of points, bucket_0 is filled in bulk
+	 * and the tree is only updated at bucket boundaries
+	 * @param data
+	 * @param d
+	 * @param numPoints
+	 */
+	public void clusterBatch(double[] data, int d, int numPoints) {
+		int offset = 0;
+		while (offset < numPoints) {
+			int count = Math.min(m - bucket_0.coresetSize(), numPoints - offset);
+			bucket_0.addPoints(data, offset, count, d);
+			offset += count;
+			if (bucket_0.coresetSize() == m) {
+				carry();
+			}
+		}
+	}
+	
+	/**
+	 * clustering a batch of points, bucket_0 is filled in bulk
+	 * and the tree is only updated at bucket boundaries
+	 * @param points
+	 */
+	public void clusterBatch(PointBlock points) {
+		int offset = 0;
+		while (offset < points.size()) {
+			int count = Math.min(m - bucket_0.coresetSize(), points.size() - offset);
+			bucket_0.addPoints(points, offset, count);
+			offset += count;
+			if (bucket_0.coresetSize() == m) {
+				carry();
+			}
+		}
+	}
+	
 	/**
 	 * Runs the merge-reduce clustering algorithm. 
 	 * It is like incrementing "one" to a number.
@@ -88,58 +372,192 @@ public class CoresetTree implements CluMethod {
 		bucket_0.addPoint(p);
 		// when bucket 0 is full, update the coreset tree
 		if (bucket_0.coresetSize() == m) {
+			carry();
+		}
+	}
+	
+	/**
+	 * Move the full bucket 0 into the coreset tree, or hand it
+	 * to the merge worker (background merges).
+	 */
+	private void carry() {
+		final Bucket bucketCarry;
+		synchronized (publishLock) {
 			// a new bucket received
 			numOfBuckets++;
 			
 			// carry digit
-			Bucket bucketCarry = bucket_0;
-			// empty bucket 0
-			bucket_0 = new Bucket(m);
+			bucketCarry = bucket_0;
+			// empty bucket 0, its block is recycled
+			bucket_0 = new Bucket(m, pool);
 			
-			for (int i=0; i<coresetTree.size(); i++) {
-				List<Bucket> currentLevel = coresetTree.get(i);
-				// number of buckets at level i is less than (r-1),
-				// then no need to increment additionally
-				if (currentLevel.size() < (r - 1)) {
-					currentLevel.add(bucketCarry);
-					return;
+			// the queries read the full bucket as it is until it is inserted
+			pendingStores.add(bucketCarry.getStore());
+			publish();
+		}
+		
+		if (!backgroundMerge) {
+			insert(bucketCarry);
+			return;
+		}
+		synchronized (pendingMerges) {
+			pendingMerges.add(MergeWorker.submit(new Runnable() {
+				@Override
+				public void run() {
+					insert(bucketCarry);
 				}
-				bucketCarry = bucketCarry.mergeBuckets(currentLevel);
-				// empty this level (list of buckets)
-				currentLevel.clear();
+			}));
+			// forget the finished merges, wait for the oldest one if too many are queued
+			while (!pendingMerges.isEmpty()
+					&& (pendingMerges.peek().isDone() || pendingMerges.size() > MergeWorker.MAX_PENDING)) {
+				MergeWorker.await(pendingMerges.poll());
 			}
-			List<Bucket> nextLevel = new ArrayList<>();
-			nextLevel.add(bucketCarry);
-			coresetTree.add(nextLevel);
 		}
 	}
 	
+	/**
+	 * wait until the buckets handed to the merge worker are in the tree
+	 * (before the tree itself is read or released, queries read the snapshots)
+	 */
+	public void awaitMerges() {
+		// the merge worker never takes the lock, waiting under it is safe
+		synchronized (pendingMerges) {
+			while (!pendingMerges.isEmpty()) {
+				MergeWorker.await(pendingMerges.poll());
+			}
+		}
+	}
+	
+	/**
+	 * Insert a full bucket into the coreset tree and publish the new levels,
+	 * the buckets dropped by the merges stay readable until then
+	 * @param bucketCarry
+	 */
+	private void insert(Bucket bucketCarry) {
+		long ticket = pool.openSnapshot();
+		try {
+			addToLevels(bucketCarry);
+			synchronized (publishLock) {
+				levelStores = storesOf(coresetTree);
+				pendingStores.remove(0);
+				publish();
+			}
+		} finally {
+			pool.closeSnapshot(ticket);
+		}
+	}
+	
+	/**
+	 * Add a full bucket to the levels of the coreset tree,
+	 * merging the levels that overflow.
+	 * It is like incrementing "one" to a number.
+	 * @param bucketCarry
+	 */
+	private void addToLevels(Bucket bucketCarry) {
+		for (int i=0; i<coresetTree.size(); i++) {
+			List<Bucket> currentLevel = coresetTree.get(i);
+			// number of buckets at level i is less than (r-1),
+			// then no need to increment additionally
+			if (currentLevel.size() < (r - 1)) {
+				bucketCarry.freeze();
+				currentLevel.add(bucketCarry);
+				return;
+			}
+			Bucket mergedBucket = bucketCarry.mergeBuckets(currentLevel);
+			// empty this level (list of buckets), free their coresets
+			bucketCarry.release();
+			releaseLevel(currentLevel);
+			bucketCarry = mergedBucket;
+		}
+		bucketCarry.freeze();
+		List<Bucket> nextLevel = new ArrayList<>();
+		nextLevel.add(bucketCarry);
+		coresetTree.add(nextLevel);
+	}
+	
+	/**
+	 * free the buckets of a level and empty it
+	 * @param level
+	 */
+	static void releaseLevel(List<Bucket> level) {
+		for (Bucket b : level) {
+			b.release();
+		}
+		level.clear();
+	}
+	
+	@Override
+	public QueryConfig getQueryConfig() {
+		return queryConfig;
+	}
+	
 	/**
 	 * Compute k centers from the coreset tree
 	 * @return list of k points as cluster centers
 	 */
 	public List<Center> getCenters() {
-		List<Point> coresets = getCoresets();
-		
-		// add coreset in bucket 0
-		coresets.addAll(bucket_0.coreset);
+		return query(QueryStats.NO_DEADLINE, new QueryStats());
+	}
+	
+	/**
+	 * Compute k centers from the coreset tree within a time budget
+	 * @param timeBudgetMillis
+	 * @param stats
+	 * @return list of k points as cluster centers
+	 */
+	public List<Center> getCenters(long timeBudgetMillis, QueryStats stats) {
+		return query(KMeansPlusPlus.deadline(timeBudgetMillis), stats);
+	}
+	
+	/**
+	 * run kmeans++ on the coresets until the deadline
+	 * @param deadline
+	 * @param stats
+	 * @return
+	 */
+	private List<Center> query(long deadline, QueryStats stats) {
+		PointBlock coresets = unionCoresets();
 		
 		// run kmeans++ multiple times to get the best k centers
-		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIter, trials);
+		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIter, trials, queryConfig, warmStart, deadline, stats);
+	}
+	
+	/**
+	 * the weighted points a query clusters: the coresets and bucket 0
+	 * (of one snapshot, the updates go on meanwhile)
+	 * @return a new block (may be modified by the caller)
+	 */
+	@Override
+	public PointBlock unionCoresets() {
+		Snapshot snapshot = snapshot();
+		try {
+			PointBlock coresets = pool.storage().newBlock((int) snapshot.computeMemory());
+			snapshot.appendLevels(coresets);
+			snapshot.appendPending(coresets);
+			
+			// add coreset in bucket 0
+			snapshot.appendBucket0(coresets);
+			return coresets;
+		} finally {
+			snapshot.close();
+		}
 	}
 	
 	/**
 	 * Retrieve all the coresets from the coreset tree
+	 * (the full buckets not merged yet included)
 	 * @return
 	 */
-	public List<Point> getCoresets() {
-		List<Point> unionCoresets = new ArrayList<Point>();
-		for (List<Bucket> level : coresetTree) {
-			for (Bucket b : level) {
-				unionCoresets.addAll(b.coreset);
-			}
+	public PointBlock getCoresets() {
+		Snapshot snapshot = snapshot();
+		try {
+			PointBlock unionCoresets = pool.storage().newBlock((int) snapshot.coresetsSize());
+			snapshot.appendLevels(unionCoresets);
+			snapshot.appendPending(unionCoresets);
+			return unionCoresets;
+		} finally {
+			snapshot.close();
 		}
-		return unionCoresets;
 	}
 	
 	/**
@@ -147,12 +565,43 @@ public class CoresetTree implements CluMethod {
      * @return number of weighted points in the memory that maintained
      */
     public long computeMemory() {
-    	int numOfBuckets = 0;
-		for (List<Bucket> level : coresetTree) {
-			numOfBuckets += level.size();
-		}
-		// each bucket contains m points
-		return numOfBuckets * m + bucket_0.coresetSize();
+    	// only sizes are read, the snapshot needs not stay open
+    	return published.computeMemory();
+    }
+    
+    /**
+     * free the coresets of all levels and bucket 0, the tree is dropped
+     * (open snapshots keep reading theirs until they are closed)
+     */
+    @Override
+    public void release() {
+    	awaitMerges();
+    	long ticket = pool.openSnapshot();
+    	try {
+    		synchronized (publishLock) {
+    			published = new Snapshot(0, Collections.<List<CoresetStore>>emptyList(),
+    					Collections.<CoresetStore>emptyList(), null, pool);
+    		}
+    		for (List<Bucket> level : coresetTree) {
+    			releaseLevel(level);
+    		}
+    		bucket_0.release();
+    	} finally {
+    		pool.closeSnapshot(ticket);
+    	}
+    }
+    
+    /**
+     * Compute the memory held outside the Java heap
+     * @return number of off-heap bytes of the coreset tree
+     */
+    public long computeOffHeapBytes() {
+    	Snapshot snapshot = snapshot();
+    	try {
+    		return snapshot.computeOffHeapBytes();
+    	} finally {
+    		snapshot.close();
+    	}
     }
     
 }
@@ -1,9 +1,14 @@
 package algo;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import datastructure.Center;
+import datastructure.Distance;
 import datastructure.Point;
+import datastructure.PointBlock;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
 
 
 public class FirstKSeq implements CluMethod {
@@ -15,6 +20,9 @@ public class FirstKSeq implements CluMethod {
     private List<Center> centers;   // cluster centers
     
     private int numOfPoints;
+    
+    // not used, the centers are updated sequentially
+    private final QueryConfig queryConfig = new QueryConfig();
 
     
     public FirstKSeq(int k, int d) {
@@ -31,10 +39,38 @@ public class FirstKSeq implements CluMethod {
     }
     
     
+    /**
+     * the centers are maintained by the updates, the query runs nothing
+     */
+    @Override
+    public List<Center> getCenters(long timeBudgetMillis, QueryStats stats) {
+    	stats.reset();
+    	return centers;
+    }
+    
+    
+    @Override
+    public QueryConfig getQueryConfig() {
+    	return queryConfig;
+    }
+    
+    
     @Override
     public long computeMemory() {
     	return k;
     }
+    
+    
+    @Override
+    public long computeOffHeapBytes() {
+    	return 0;
+    }
+    
+    
+    @Override
+    public void release() {
+    	// nothing is held outside the heap
+    }
 
     
     /**
@@ -57,18 +93,91 @@ public class FirstKSeq implements CluMethod {
 		// assign point p to the nearest center
         Point nearestCenter = centers.get(p.getNearestCluster(centers));
         
-        // update nearestCenter position
-		double[] prevPos = nearestCenter.position;
-		double prevWeight = nearestCenter.weight;
-		double updatedWeight = prevWeight + p.weight;
-		
-		for (int i = 0; i < d; i++) {
-			prevPos[i] = (prevPos[i] * prevWeight + p.position[i] * p.weight) / updatedWeight;
-		}
-		
-		// update nearestCenter weight
-		nearestCenter.weight = updatedWeight;
+        updateCenter(nearestCenter, p.position, 0, p.weight);
 	}
+    
+    
+    /**
+     * run the sequential clustering algorithm over a batch of points,
+     * read directly from the row-major array
+     */
+    @Override
+    public void clusterBatch(double[] data, int d, int numPoints) {
+    	for (int i = 0; i < numPoints; i++) {
+    		numOfPoints++;
+    		int offset = i * d;
+    		
+    		// collect first k points as initial centers
+    		if (numOfPoints <= k) {
+    			centers.add(new Center(Arrays.copyOfRange(data, offset, offset + d), 1));
+    			continue;
+    		}
+    		
+    		// assign point to the nearest center and update it
+    		updateCenter(centers.get(nearestCenter(data, offset)), data, offset, 1);
+    	}
+    }
+    
+    
+    @Override
+    public void clusterBatch(PointBlock points) {
+    	double[] pos = new double[d];
+    	for (int i = 0; i < points.size(); i++) {
+    		numOfPoints++;
+    		
+    		// collect first k points as initial centers
+    		if (numOfPoints <= k) {
+    			centers.add(new Center(points.toPoint(i)));
+    			continue;
+    		}
+    		
+    		// assign point to the nearest center and update it
+    		points.copyPosition(i, pos);
+    		updateCenter(centers.get(nearestCenter(pos, 0)), pos, 0, points.weight(i));
+    	}
+    }
+    
+    
+    /**
+     * returns the index of the nearest center to the point at data[offset]
+     * @param data
+     * @param offset
+     * @return
+     */
+    private int nearestCenter(double[] data, int offset) {
+    	double minDistance = Double.POSITIVE_INFINITY;
+    	int minCluster = 0;
+    	for (int i = 0; i < centers.size(); i++) {
+    		double distance = Distance.squaredDistance(data, offset, centers.get(i).position, 0, d, minDistance);
+    		if (distance < minDistance) {
+    			minDistance = distance;
+    			minCluster = i;
+    		}
+    	}
+    	return minCluster;
+    }
+    
+    
+    /**
+     * move the center towards the point at data[offset]
+     * @param center
+     * @param data
+     * @param offset
+     * @param weight weight of the point
+     */
+    private void updateCenter(Point center, double[] data, int offset, double weight) {
+    	// update center position
+    	double[] prevPos = center.position;
+    	double prevWeight = center.weight;
+    	double updatedWeight = prevWeight + weight;
+    	
+    	for (int i = 0; i < d; i++) {
+    		prevPos[i] = (prevPos[i] * prevWeight + data[offset + i] * weight) / updatedWeight;
+    	}
+    	
+    	// update center weight
+    	center.weight = updatedWeight;
+    }
 	
 }
 
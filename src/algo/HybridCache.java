@@ -1,12 +1,18 @@
 package algo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import datastructure.Center;
+import datastructure.Distance;
 import datastructure.Point;
+import datastructure.PointBlock;
+import datastructure.Storage;
 import kmeans.Evaluate;
 import kmeans.KMeansPlusPlus;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
 
 
 public class HybridCache implements CluMethod {
@@ -37,6 +43,17 @@ public class HybridCache implements CluMethod {
     
     
     public HybridCache(int k, int d, int bucketSize, int r, double threshold, int maxIterations, int numTrials) {
+        this(k, d, bucketSize, r, threshold, maxIterations, numTrials, Storage.HEAP, false, false);
+    }
+    
+    
+    /**
+     * @param storage where the cache model keeps its full coresets
+     * @param backgroundMerge the cache model merges its tree on the merge worker
+     * @param eager the cache model fills its cache on the merge worker
+     */
+    public HybridCache(int k, int d, int bucketSize, int r, double threshold, int maxIterations, int numTrials,
+    		Storage storage, boolean backgroundMerge, boolean eager) {
         this.k = k;
         this.d = d;
         this.numOfPoints = 0;
@@ -46,7 +63,8 @@ public class HybridCache implements CluMethod {
         
         initThreshold = 10 * k;
         initPoints = new ArrayList<Point>();
-        this.cacheModel = new CoresetCache(k, bucketSize, r, maxIterations, numTrials);
+        this.cacheModel = new CoresetCache(k, bucketSize, r, maxIterations, numTrials, storage, backgroundMerge,
+        		eager);
     }  
     
     
@@ -58,6 +76,18 @@ public class HybridCache implements CluMethod {
     }
     
     
+    @Override
+    public long computeOffHeapBytes() {
+    	return cacheModel.computeOffHeapBytes();
+    }
+    
+    
+    @Override
+    public void release() {
+    	cacheModel.release();
+    }
+    
+    
     @Override
 	public void cluster(Point p) {
     	
@@ -72,20 +102,77 @@ public class HybridCache implements CluMethod {
 			return;
 		}
 		
-		// assign point p to the nearest center
-		Point nearestCenter = centers.get(p.getNearestCluster(centers));
+		sequentialUpdate(p.position, 0, p.weight);
+	}
+    
+    
+    @Override
+    public void clusterBatch(double[] data, int d, int numPoints) {
+    	// send the whole batch to caching method
+    	cacheModel.clusterBatch(data, d, numPoints);
+    	
+    	for (int i = 0; i < numPoints; i++) {
+    		numOfPoints++;
+    		int offset = i * d;
+    		
+    		// collect first k points as initial centers
+    		if (numOfPoints <= initThreshold) {
+    			initKCenters(new Point(Arrays.copyOfRange(data, offset, offset + d), 1));
+    			continue;
+    		}
+    		
+    		sequentialUpdate(data, offset, 1);
+    	}
+    }
+    
+    
+    @Override
+    public void clusterBatch(PointBlock points) {
+    	// send the whole batch to caching method (the block is copied)
+    	cacheModel.clusterBatch(points);
+    	
+    	double[] pos = new double[d];
+    	for (int i = 0; i < points.size(); i++) {
+    		numOfPoints++;
+    		if (numOfPoints <= initThreshold) {
+    			initKCenters(points.toPoint(i));
+    			continue;
+    		}
+    		points.copyPosition(i, pos);
+    		sequentialUpdate(pos, 0, points.weight(i));
+    	}
+    }
+    
+    
+    /**
+     * assign the point at data[offset] to the nearest center,
+     * update the estimated cost and move the center towards the point
+     * @param data
+     * @param offset
+     * @param weight weight of the point
+     */
+    private void sequentialUpdate(double[] data, int offset, double weight) {
+		// assign point to the nearest center
+		double minDist = Double.POSITIVE_INFINITY;
+		Point nearestCenter = null;
+		for (Point c : centers) {
+			double dist = Distance.squaredDistance(data, offset, c.position, 0, d, minDist);
+			if (dist < minDist) {
+				minDist = dist;
+				nearestCenter = c;
+			}
+		}
 
 		// update estCost
-		double dist = p.euclidDistTo(nearestCenter);
-		estCost += dist * dist * p.weight;
+		estCost += minDist * weight;
 
 		// update nearestCenter position
 		double[] prevPos = nearestCenter.position;
 		double prevWeight = nearestCenter.weight;
-		double updatedWeight = prevWeight + p.weight;
+		double updatedWeight = prevWeight + weight;
 
 		for (int i = 0; i < d; i++) {
-			prevPos[i] = (prevPos[i] * prevWeight + p.position[i] * p.weight) / updatedWeight;
+			prevPos[i] = (prevPos[i] * prevWeight + data[offset + i] * weight) / updatedWeight;
 		}
 
 		// update nearestCenter weight
@@ -103,23 +190,53 @@ public class HybridCache implements CluMethod {
     		initPoints.add(p);
     	}
     	else {
-    		centers = KMeansPlusPlus.multiKMeansPlusPlus(initPoints, k, maxIterations, numTrials);
+    		centers = KMeansPlusPlus.multiKMeansPlusPlus(PointBlock.of(initPoints), k, maxIterations, numTrials,
+    				getQueryConfig());
 			cost_0 = Evaluate.kmeansCost(initPoints, centers);
 			estCost = cost_0;
     	}
     }
     
     
+    /**
+     * the query options are the ones of the cache model
+     */
+    @Override
+    public QueryConfig getQueryConfig() {
+    	return cacheModel.getQueryConfig();
+    }
+    
+    
 	@Override
 	public List<Center> getCenters() {
+		return query(QueryStats.NO_DEADLINE, new QueryStats());
+	}
+	
+	
+	/**
+	 * the time budget only applies when the query of the cache method runs
+	 */
+	@Override
+	public List<Center> getCenters(long timeBudgetMillis, QueryStats stats) {
+		return query(KMeansPlusPlus.deadline(timeBudgetMillis), stats);
+	}
+	
+	
+	/**
+	 * @param deadline System.nanoTime() to stop at, QueryStats.NO_DEADLINE for none
+	 * @param stats
+	 * @return
+	 */
+	private List<Center> query(long deadline, QueryStats stats) {
+		stats.reset();
 		// switch the cluster centers to the cache method
 		// when the current cost is above threshold
 		if (estCost > threshold * cost_0) {
 			// get the coreset cache
-			List<Point> coreset = cacheModel.getCoresets();
+			PointBlock coreset = cacheModel.getCoresets();
 			
 			// run the query method of coreset cache, get k centers
-			centers = cacheModel.getCenters();
+			centers = cacheModel.query(deadline, stats);
 			
 			// estimate the current k-means cost using new cluster centers
 			cost_0 = Evaluate.kmeansCost(coreset, centers);
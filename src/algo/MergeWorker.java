@@ -0,0 +1,59 @@
+package algo;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Background thread of the coreset tree merges: in a tree built with background
+ * merges, a full bucket 0 is handed over and merged up the tree off the update
+ * path (see CoresetTree), so an update only appends to bucket 0.
+ * One thread serves all trees, merges run one at a time in the order
+ * they were handed over. The cache entries of an eager CoresetCache
+ * are computed on the same thread, after
+ * the merges of the buckets they cover.
+ *
+ */
+public class MergeWorker {
+
+	// merges a tree may have queued before its updates wait for the oldest one
+	// (bounds the buckets held by the queue when updates outrun the merges)
+	public static final int MAX_PENDING = 16;
+
+	private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "coreset-merge");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+
+	/**
+	 * queue a merge
+	 * @param merge
+	 * @return completes once the merge and all merges queued before it are done
+	 */
+	static Future<?> submit(Runnable merge) {
+		return EXECUTOR.submit(merge);
+	}
+
+	/**
+	 * wait for a queued merge
+	 * @param merge
+	 * @throws IllegalStateException if the merge failed or the wait was interrupted
+	 */
+	static void await(Future<?> merge) {
+		try {
+			merge.get();
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Background merge failed", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for a merge", e);
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package algo;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One producer thread per shard of a ShardedModel: the batches handed over by
+ * the reader go to the shards in turn and each shard is updated by its own
+ * thread, so the shards ingest in parallel while queries go on.
+ * A producer takes its batches from a bounded queue, the reader waits
+ * when the producer of the next shard lags behind (backpressure).
+ *
+ */
+public class ShardProducers {
+
+	// dimension of the points
+	private final int d;
+
+	// batches waiting for each shard, an empty batch stops the producer
+	private final ArrayBlockingQueue<double[]>[] queues;
+
+	private final Thread[] producers;
+
+	// update time (in nanoseconds) and points of each shard, written by its producer
+	private final long[] updateNanos;
+
+	private final long[] points;
+
+	// shard of the next batch (one reader thread)
+	private int nextShard;
+
+	// batches handed over and ingested
+	private long submitted;
+
+	private long ingested;
+
+	// failure of a producer thread
+	private volatile Throwable error;
+
+	/**
+	 * start a producer thread for each shard
+	 * @param model
+	 * @param d dimension of the points
+	 * @param capacity number of batches buffered ahead of each shard
+	 */
+	@SuppressWarnings("unchecked")
+	public ShardProducers(final ShardedModel model, final int d, int capacity) {
+		this.d = d;
+		int numShards = model.numShards();
+		queues = new ArrayBlockingQueue[numShards];
+		producers = new Thread[numShards];
+		updateNanos = new long[numShards];
+		points = new long[numShards];
+		for (int i = 0; i < numShards; i++) {
+			queues[i] = new ArrayBlockingQueue<double[]>(capacity);
+			final int shard = i;
+			producers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							double[] batch = queues[shard].take();
+							if (batch.length == 0) {
+								break;
+							}
+							int numPoints = batch.length / d;
+							long start = System.nanoTime();
+							model.clusterBatch(shard, batch, d, numPoints);
+							updateNanos[shard] += System.nanoTime() - start;
+							points[shard] += numPoints;
+							batchDone();
+						}
+					} catch (Throwable e) {
+						error = e;
+						batchDone();
+					}
+				}
+			}, "shard-producer-" + i);
+			producers[i].setDaemon(true);
+			producers[i].start();
+		}
+	}
+
+	private synchronized void batchDone() {
+		ingested++;
+		notifyAll();
+	}
+
+	private void checkError() {
+		if (error != null) {
+			throw new IllegalStateException("Producer thread failed", error);
+		}
+	}
+
+	/**
+	 * hand a batch over to the next shard (the batch is copied)
+	 * @param batch positions of the points in row-major order
+	 * @param numPoints number of points in the batch
+	 * @throws InterruptedException
+	 */
+	public void submit(double[] batch, int numPoints) throws InterruptedException {
+		if (numPoints == 0) {
+			return;
+		}
+		double[] copy = new double[numPoints * d];
+		System.arraycopy(batch, 0, copy, 0, numPoints * d);
+		synchronized (this) {
+			submitted++;
+		}
+		ArrayBlockingQueue<double[]> queue = queues[nextShard];
+		nextShard = (nextShard + 1) % queues.length;
+		while (!queue.offer(copy, 10, TimeUnit.MILLISECONDS)) {
+			checkError();
+		}
+	}
+
+	/**
+	 * wait until all batches handed over are ingested by their shards
+	 * @throws InterruptedException
+	 */
+	public synchronized void await() throws InterruptedException {
+		while (ingested < submitted && error == null) {
+			wait();
+		}
+		checkError();
+	}
+
+	/**
+	 * ingest the remaining batches and stop the producer threads
+	 * @throws InterruptedException
+	 */
+	public void close() throws InterruptedException {
+		await();
+		for (ArrayBlockingQueue<double[]> queue : queues) {
+			queue.put(new double[0]);
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		checkError();
+	}
+
+	/**
+	 * time spent updating a shard (after await or close)
+	 * @param shard
+	 * @return in seconds
+	 */
+	public synchronized double updateTime(int shard) {
+		return updateNanos[shard] / 1e9;
+	}
+
+	/**
+	 * number of points ingested by a shard (after await or close)
+	 * @param shard
+	 * @return
+	 */
+	public synchronized long numPoints(int shard) {
+		return points[shard];
+	}
+
+}
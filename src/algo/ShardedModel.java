@@ -0,0 +1,230 @@
+package algo;
+
+import java.util.List;
+import java.util.Random;
+
+import datastructure.Center;
+import datastructure.Point;
+import datastructure.PointBlock;
+import kmeans.KMeansPlusPlus;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
+import kmeans.WarmStart;
+
+/**
+ * Sharded ingestion of one stream: each producer thread feeds its own shard
+ * (a coreset model such as CoresetTree or CoresetCache, with its own block pool)
+ * through the shard overloads of cluster and clusterBatch.
+ * A query unions the coresets of all shards, optionally reduced by fast seeding,
+ * and runs multiple kmeans++ on them.
+ * A shard is updated by its producer only, so no lock is taken and producers
+ * never wait for each other (with background merges the merges of all shards
+ * share the one merge thread); queries read published snapshots of the shards.
+ * See ShardProducers for a producer thread per shard.
+ *
+ */
+public class ShardedModel implements CoresetModel {
+
+	// number of clusters wanted
+	private final int k;
+
+	// number of max iterations for multi-kmeans++ (query process)
+	private final int maxIterations;
+
+	// number of trials for multi-kmeans++ (query process)
+	private final int numTrials;
+
+	// the union of the shards is reduced to this many points by fast seeding,
+	// 0 to cluster the union as it is
+	private final int reducedSize;
+
+	private final CoresetModel[] shards;
+
+	// shard of the next points fed without a shard (one caller thread)
+	private int nextShard;
+
+	// options of the query-time k-means
+	private final QueryConfig queryConfig = new QueryConfig();
+
+	// previous answer of the model (see QueryConfig.warmStart)
+	private final WarmStart warmStart = new WarmStart();
+
+
+	/**
+	 * @param k
+	 * @param shards one model per producer thread, not used elsewhere
+	 * @param reducedSize size the union of the shards is reduced to (0: not reduced)
+	 * @param maxIterations
+	 * @param numTrials
+	 */
+	public ShardedModel(int k, List<? extends CoresetModel> shards, int reducedSize, int maxIterations,
+			int numTrials) {
+		this.k = k;
+		this.shards = shards.toArray(new CoresetModel[shards.size()]);
+		this.reducedSize = reducedSize;
+		this.maxIterations = maxIterations;
+		this.numTrials = numTrials;
+	}
+
+
+	public int numShards() {
+		return shards.length;
+	}
+
+
+	/**
+	 * cluster a new point into a shard (only from the producer thread of the shard)
+	 * @param shard
+	 * @param p
+	 */
+	public void cluster(int shard, Point p) {
+		shards[shard].cluster(p);
+	}
+
+
+	/**
+	 * cluster a batch of new points (weight 1) into a shard
+	 * @param shard
+	 * @param data positions of the points in row-major order
+	 * @param d dimension
+	 * @param numPoints number of points in the batch
+	 */
+	public void clusterBatch(int shard, double[] data, int d, int numPoints) {
+		shards[shard].clusterBatch(data, d, numPoints);
+	}
+
+
+	/**
+	 * cluster a batch of new points into a shard
+	 * @param shard
+	 * @param points
+	 */
+	public void clusterBatch(int shard, PointBlock points) {
+		shards[shard].clusterBatch(points);
+	}
+
+
+	/**
+	 * the points go to the shards in turn (one caller thread)
+	 */
+	@Override
+	public void cluster(Point p) {
+		cluster(nextShard(), p);
+	}
+
+
+	/**
+	 * the batch goes to the next shard in turn (one caller thread)
+	 */
+	@Override
+	public void clusterBatch(double[] data, int d, int numPoints) {
+		clusterBatch(nextShard(), data, d, numPoints);
+	}
+
+
+	/**
+	 * the batch goes to the next shard in turn (one caller thread)
+	 */
+	@Override
+	public void clusterBatch(PointBlock points) {
+		clusterBatch(nextShard(), points);
+	}
+
+
+	private int nextShard() {
+		int shard = nextShard;
+		nextShard = (shard + 1) % shards.length;
+		return shard;
+	}
+
+
+	@Override
+	public QueryConfig getQueryConfig() {
+		return queryConfig;
+	}
+
+
+	@Override
+	public List<Center> getCenters() {
+		return query(QueryStats.NO_DEADLINE, new QueryStats());
+	}
+
+
+	@Override
+	public List<Center> getCenters(long timeBudgetMillis, QueryStats stats) {
+		return query(KMeansPlusPlus.deadline(timeBudgetMillis), stats);
+	}
+
+
+	/**
+	 * run kmeans++ on the union of the shards until the deadline
+	 * @param deadline
+	 * @param stats
+	 * @return
+	 */
+	private List<Center> query(long deadline, QueryStats stats) {
+		PointBlock coresets = unionCoresets();
+
+		// run kmeans++ multiple times to get the best k centers
+		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIterations, numTrials, queryConfig, warmStart, deadline,
+				stats);
+	}
+
+
+	/**
+	 * the coresets of all shards (a snapshot of each, the producers go on),
+	 * reduced to reducedSize points if set
+	 * @return a new block (may be modified by the caller)
+	 */
+	@Override
+	public PointBlock unionCoresets() {
+		// the union of the first shard is a new block, in the precision of its model
+		PointBlock coresets = shards[0].unionCoresets();
+		for (int i = 1; i < shards.length; i++) {
+			coresets.addAll(shards[i].unionCoresets());
+		}
+		if (reducedSize > 0 && coresets.size() > reducedSize) {
+			return KMeansPlusPlus.fastSeeding(coresets, reducedSize, new Random());
+		}
+		return coresets;
+	}
+
+
+	/**
+	 * Compute the memory cost in words, each weighted point is one word
+	 * @return number of weighted points held by all shards
+	 */
+	@Override
+	public long computeMemory() {
+		long memory = 0;
+		for (CoresetModel model : shards) {
+			memory += model.computeMemory();
+		}
+		return memory;
+	}
+
+
+	/**
+	 * Compute the memory held outside the Java heap
+	 * @return number of off-heap bytes of all shards
+	 */
+	@Override
+	public long computeOffHeapBytes() {
+		long bytes = 0;
+		for (CoresetModel model : shards) {
+			bytes += model.computeOffHeapBytes();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * free the memory of all shards, no shard is updated or queried afterwards
+	 */
+	@Override
+	public void release() {
+		for (CoresetModel model : shards) {
+			model.release();
+		}
+	}
+
+}
@@ -2,16 +2,24 @@
 package algo;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 
+import datastructure.BlockPool;
 import datastructure.Bucket;
 import datastructure.Cache;
 import datastructure.Center;
+import datastructure.CoresetStore;
 import datastructure.Point;
+import datastructure.PointBlock;
+import datastructure.Storage;
 import kmeans.KMeansPlusPlus;
+import kmeans.QueryConfig;
+import kmeans.QueryStats;
+import kmeans.WarmStart;
 
-public class ThreeRecursiveCache implements CluMethod {
+public class ThreeRecursiveCache implements CoresetModel {
 
 	// number of clusters wanted
 	private final int k;
@@ -45,6 +53,18 @@ public class ThreeRecursiveCache implements CluMethod {
 
 	// number of buckets received in the tree
 	private int numOfBuckets;
+	
+	// recycled bucket blocks and merge scratch space, shared with the level models
+	private final BlockPool pool;
+	
+	// what the queries read, replaced (never modified) at each carry
+	private volatile Snapshot published;
+
+	// options of the query-time k-means
+	private final QueryConfig queryConfig = new QueryConfig();
+
+	// previous answer of the model (see QueryConfig.warmStart)
+	private final WarmStart warmStart = new WarmStart();
 
 	
 	/**
@@ -57,6 +77,14 @@ public class ThreeRecursiveCache implements CluMethod {
 	 * @param numTrials
 	 */
 	public ThreeRecursiveCache(int k, int bucketSize, int r1, int maxIterations, int numTrials) {
+		this(k, bucketSize, r1, maxIterations, numTrials, Storage.HEAP);
+	}
+	
+	
+	/**
+	 * @param storage where the full buckets and the cached coresets are kept
+	 */
+	public ThreeRecursiveCache(int k, int bucketSize, int r1, int maxIterations, int numTrials, Storage storage) {
 		this.k = k;
 		this.bucketSize = bucketSize;
 		this.r1 = r1;
@@ -64,12 +92,91 @@ public class ThreeRecursiveCache implements CluMethod {
 
 		this.maxIterations = maxIterations;
 		this.numTrials = numTrials;
+		this.pool = new BlockPool(bucketSize, Math.max(4, 2 * r1), storage);
 		
-		bucket_0 = new Bucket(bucketSize);
+		bucket_0 = new Bucket(bucketSize, pool);
 		coresetTree = new ArrayList<>();
-		cache = new Cache(r1);
+		cache = new Cache(r1, pool.storage());
 		
 		rccList = new ArrayList<TwoRecursiveCache>();
+		publish();
+	}
+	
+	
+	/**
+	 * Immutable state of the model a query reads from another thread while the
+	 * updates go on: the level models with their snapshots taken at the same
+	 * carry, the coresets of the tree and the points added to bucket 0 so far
+	 * (see TwoRecursiveCache.Snapshot)
+	 */
+	private static class Snapshot {
+		
+		// number of buckets received
+		final int numOfBuckets;
+		
+		private final List<TwoRecursiveCache> rccList;
+		
+		private final List<TwoRecursiveCache.Snapshot> rccSnapshots;
+		
+		// coresets of the tree (memory accounting)
+		private final List<CoresetStore> treeStores;
+		
+		// bucket 0 and its block (null once the model is released)
+		private final Bucket bucket0;
+		private final PointBlock bucket0Block;
+		
+		private Snapshot(int numOfBuckets, List<TwoRecursiveCache> rccList,
+				List<TwoRecursiveCache.Snapshot> rccSnapshots, List<CoresetStore> treeStores, Bucket bucket0) {
+			this.numOfBuckets = numOfBuckets;
+			this.rccList = rccList;
+			this.rccSnapshots = rccSnapshots;
+			this.treeStores = treeStores;
+			this.bucket0 = bucket0;
+			this.bucket0Block = bucket0 != null ? bucket0.getCoreset() : null;
+		}
+		
+		int numOfLevels() {
+			return rccList.size();
+		}
+		
+		/**
+		 * the coresets of the level model i
+		 * Note: the block must not be modified
+		 * @param i
+		 * @return
+		 */
+		PointBlock levelCoresets(int i) {
+			return rccList.get(i).getCoresets(rccSnapshots.get(i));
+		}
+		
+		void appendBucket0(PointBlock dst) {
+			if (bucket0 != null) {
+				dst.addAll(bucket0Block, 0, bucket0.publishedSize());
+			}
+		}
+		
+		long bucket0Size() {
+			return bucket0 != null ? bucket0.publishedSize() : 0;
+		}
+	}
+	
+	
+	/**
+	 * replace the published snapshot (update thread)
+	 */
+	private void publish() {
+		List<TwoRecursiveCache.Snapshot> rccSnapshots = new ArrayList<TwoRecursiveCache.Snapshot>(rccList.size());
+		for (TwoRecursiveCache rccModel : rccList) {
+			rccSnapshots.add(rccModel.published());
+		}
+		List<CoresetStore> treeStores = new ArrayList<CoresetStore>();
+		for (List<Bucket> level : coresetTree) {
+			for (Bucket b : level) {
+				treeStores.add(b.getStore());
+			}
+		}
+		published = new Snapshot(numOfBuckets, new ArrayList<TwoRecursiveCache>(rccList), rccSnapshots,
+				treeStores, bucket_0);
 	}
 
 	
@@ -79,79 +186,195 @@ public class ThreeRecursiveCache implements CluMethod {
 		bucket_0.addPoint(p);
 		// when bucket 0 is full, update the coreset tree
 		if (bucket_0.coresetSize() == bucketSize) {
-			// a new bucket received
-			numOfBuckets++;
-
-			// carry digit
-			Bucket bucketCarry = bucket_0;
-			// empty bucket 0
-			bucket_0 = new Bucket(bucketSize);
-
-			for (int i = 0; i < coresetTree.size(); i++) {
-				List<Bucket> currentLevel = coresetTree.get(i);
-				// Recursive Cache: coreset-cache model (CC) of current level
-				TwoRecursiveCache rccModel = rccList.get(i);
-				
-				// number of buckets at level i is less than (r1 - 1),
-				// then no need to increment additionally
-				if (currentLevel.size() < (r1 - 1)) {
-					currentLevel.add(bucketCarry);
-					
-					// Recursive Cache: add to coreset-cache model (CC)
-					for (Point p1 : bucketCarry.coreset) {
-						rccModel.cluster(new Point(p1));  // deep copy
-					}
-					
-					return;
-				}
-				
-				bucketCarry = bucketCarry.mergeBuckets(currentLevel);
-				// empty this level (list of buckets)
-				currentLevel.clear();
-				// Recursive Cache: empty the coreset cache model
-				rccModel = new TwoRecursiveCache(k, bucketSize, r2, maxIterations, numTrials);
+			carry();
+		}
+	}
+	
+	
+	@Override
+	public void clusterBatch(double[] data, int d, int numPoints) {
+		int offset = 0;
+		while (offset < numPoints) {
+			int count = Math.min(bucketSize - bucket_0.coresetSize(), numPoints - offset);
+			bucket_0.addPoints(data, offset, count, d);
+			offset += count;
+			if (bucket_0.coresetSize() == bucketSize) {
+				carry();
 			}
+		}
+	}
+	
+	
+	@Override
+	public void clusterBatch(PointBlock points) {
+		int offset = 0;
+		while (offset < points.size()) {
+			int count = Math.min(bucketSize - bucket_0.coresetSize(), points.size() - offset);
+			bucket_0.addPoints(points, offset, count);
+			offset += count;
+			if (bucket_0.coresetSize() == bucketSize) {
+				carry();
+			}
+		}
+	}
+	
+	
+	/**
+	 * Move the full bucket 0 into the coreset tree and publish the new state,
+	 * the buckets and level models dropped stay readable until then
+	 */
+	private void carry() {
+		// a new bucket received
+		numOfBuckets++;
+
+		// carry digit
+		Bucket bucketCarry = bucket_0;
+		// empty bucket 0, its block is recycled
+		bucket_0 = new Bucket(bucketSize, pool);
+
+		long ticket = pool.openSnapshot();
+		try {
+			addToLevels(bucketCarry);
+			publish();
+		} finally {
+			pool.closeSnapshot(ticket);
+		}
+	}
+	
+	
+	/**
+	 * Add a full bucket to the levels of the coreset tree,
+	 * merging the levels that overflow.
+	 * @param bucketCarry
+	 */
+	private void addToLevels(Bucket bucketCarry) {
+		for (int i = 0; i < coresetTree.size(); i++) {
+			List<Bucket> currentLevel = coresetTree.get(i);
+			// Recursive Cache: coreset-cache model (CC) of current level
+			TwoRecursiveCache rccModel = rccList.get(i);
 			
-			List<Bucket> nextLevel = new ArrayList<>();
-			nextLevel.add(bucketCarry);
-			coresetTree.add(nextLevel);
-			
-			// Recursive Cache: add to coreset-cache model (CC)
-			TwoRecursiveCache rccModel = new TwoRecursiveCache(k, bucketSize, r2, maxIterations, numTrials);
-			for (Point p1 : bucketCarry.coreset) {
-				rccModel.cluster(new Point(p1));  // deep copy
+			// number of buckets at level i is less than (r1 - 1),
+			// then no need to increment additionally
+			if (currentLevel.size() < (r1 - 1)) {
+				// Recursive Cache: add to coreset-cache model (CC), the points are copied
+				rccModel.clusterBatch(bucketCarry.getCoreset());
+				
+				bucketCarry.freeze();
+				currentLevel.add(bucketCarry);
+				return;
 			}
-			rccList.add(rccModel);
+			
+			Bucket mergedBucket = bucketCarry.mergeBuckets(currentLevel);
+			// empty this level (list of buckets), free their coresets
+			bucketCarry.release();
+			CoresetTree.releaseLevel(currentLevel);
+			bucketCarry = mergedBucket;
+			// Recursive Cache: empty the coreset cache model
+			rccModel.release();
+			rccList.set(i, new TwoRecursiveCache(k, bucketSize, r2, maxIterations, numTrials, pool));
 		}
+		
+		// Recursive Cache: add to coreset-cache model (CC), the points are copied
+		TwoRecursiveCache rccModel = new TwoRecursiveCache(k, bucketSize, r2, maxIterations, numTrials, pool);
+		rccModel.clusterBatch(bucketCarry.getCoreset());
+		rccList.add(rccModel);
+		
+		bucketCarry.freeze();
+		List<Bucket> nextLevel = new ArrayList<>();
+		nextLevel.add(bucketCarry);
+		coresetTree.add(nextLevel);
 	}
 
 
+	@Override
+	public QueryConfig getQueryConfig() {
+		return queryConfig;
+	}
+	
+	
 	@Override
 	public List<Center> getCenters() {
-		// get coresets from the corset tree and cache
-		List<Point> coresets = getCoresets();
-
-		// Don't forget to add the bucket_0
-		coresets.addAll(bucket_0.coreset);
-
+		return query(QueryStats.NO_DEADLINE, new QueryStats());
+	}
+	
+	
+	@Override
+	public List<Center> getCenters(long timeBudgetMillis, QueryStats stats) {
+		return query(KMeansPlusPlus.deadline(timeBudgetMillis), stats);
+	}
+	
+	
+	/**
+	 * run kmeans++ on the coresets until the deadline
+	 * @param deadline
+	 * @param stats
+	 * @return
+	 */
+	private List<Center> query(long deadline, QueryStats stats) {
+		PointBlock coresets = unionCoresets();
+		
 		// run kmeans++ multiple times to get the best k centers
-		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIterations, numTrials);
+		return KMeansPlusPlus.multiKMeansPlusPlus(coresets, k, maxIterations, numTrials, queryConfig, warmStart, deadline,
+				stats);
+	}
+	
+	
+	/**
+	 * the weighted points a query clusters: the coresets and bucket 0
+	 * (of one snapshot, the updates go on meanwhile)
+	 * @return a new block (may be modified by the caller)
+	 */
+	@Override
+	public PointBlock unionCoresets() {
+		long ticket = pool.openSnapshot();
+		try {
+			Snapshot snapshot = published;
+			// get coresets from the corset tree and cache
+			// Note: copy them, the cached coreset must not be modified
+			PointBlock coresets = new PointBlock(getCoresets(snapshot));
+			
+			// Don't forget to add the bucket_0
+			snapshot.appendBucket0(coresets);
+			return coresets;
+		} finally {
+			pool.closeSnapshot(ticket);
+		}
 	}
 	
 	
 	/**
 	 * Retrieve the coresets: coreset tree (minor) + coreset cache (major)
+	 * Note: the block must not be modified
+	 * @return
+	 */
+	public PointBlock getCoresets() {
+		long ticket = pool.openSnapshot();
+		try {
+			return getCoresets(published);
+		} finally {
+			pool.closeSnapshot(ticket);
+		}
+	}
+	
+	
+	/**
+	 * the coresets of a snapshot (see getCoresets())
+	 * @param snapshot
 	 * @return
 	 */
-	public List<Point> getCoresets() {
+	private PointBlock getCoresets(Snapshot snapshot) {
+		// number of buckets (N) received till the snapshot
+		int numOfBuckets = snapshot.numOfBuckets;
 		
 		// directly retrieve coreset if we just have it in the cache
-		if (cache.containsCoreset(numOfBuckets)) {
-			return cache.getCoreset(numOfBuckets);
+		// (a concurrent query may evict it, the lookup is one call)
+		PointBlock cached = cache.getCoreset(numOfBuckets);
+		if (cached != null) {
+			return cached;
 		}
 		
 		// coreset collection to be returned
-		List<Point> coresets = new ArrayList<Point>();
+		PointBlock coresets = pool.storage().newBlock(16);
 
 		if (numOfBuckets == 0) {
 			return coresets;
@@ -164,25 +387,25 @@ public class ThreeRecursiveCache implements CluMethod {
 		// when the cache does not have the "major" coreset we want,
 		// retreat back to the coreset tree, 
 		// Recursive Cache: use coreset-cache every level
-		if (major == 0 || !cache.containsCoreset(major)) {
-			for (TwoRecursiveCache rccModel : rccList) {
-				coresets.addAll(rccModel.getCoresets());
+		PointBlock majorCoreset = major == 0 ? null : cache.getCoreset(major);
+		if (majorCoreset == null) {
+			for (int i = 0; i < snapshot.numOfLevels(); i++) {
+				coresets.addAll(snapshot.levelCoresets(i));
 			}
 		}
 		else {
 			// add major coreset from cache
-			coresets.addAll(cache.getCoreset(major));
+			coresets.addAll(majorCoreset);
 			
 			// Recursive Cache: add minor coresets from coreset-cache at minor level
 			int minorLevel = cache.minorLevel(numOfBuckets);
-			TwoRecursiveCache minorLevelRCCModel = rccList.get(minorLevel);
 			// add minor coresets to the collection
-			coresets.addAll(minorLevelRCCModel.getCoresets());
+			coresets.addAll(snapshot.levelCoresets(minorLevel));
 		}
 		
 		// shrink coresets size to m (single coreset)
 		// add coreset to cache
-		List<Point> singleCoreset = KMeansPlusPlus.fastSeeding(coresets, bucketSize, new Random());
+		PointBlock singleCoreset = KMeansPlusPlus.fastSeeding(coresets, bucketSize, new Random());
 		cache.insertCoreset(numOfBuckets, singleCoreset);
 		
 		return singleCoreset;
@@ -192,22 +415,63 @@ public class ThreeRecursiveCache implements CluMethod {
 	
 	@Override
 	public long computeMemory() {
-		long memory = 0;
+		Snapshot snapshot = published;
 		
 		// add coreset tree size
-		for (List<Bucket> level : coresetTree) {
-			memory += level.size() * bucketSize;
-		}
+		long memory = snapshot.treeStores.size() * bucketSize;
 		
 		// add cache size
-		numOfBuckets += cache.size() * bucketSize;
+		memory += cache.size() * bucketSize;
 		
 		// Recursive Cache: add each level coreset-cache model size
-		for (TwoRecursiveCache rccModel : rccList) {
-			numOfBuckets += rccModel.computeMemory();
+		for (TwoRecursiveCache rccModel : snapshot.rccList) {
+			memory += rccModel.computeMemory();
 		}
 		
-		return memory + bucket_0.coresetSize();
+		return memory + snapshot.bucket0Size();
+	}
+	
+	
+	/**
+	 * free the coresets of the tree, the cache and every level model,
+	 * the model is dropped (open snapshots keep reading theirs until they are closed)
+	 */
+	@Override
+	public void release() {
+		long ticket = pool.openSnapshot();
+		try {
+			published = new Snapshot(0, Collections.<TwoRecursiveCache>emptyList(),
+					Collections.<TwoRecursiveCache.Snapshot>emptyList(), Collections.<CoresetStore>emptyList(), null);
+			for (List<Bucket> level : coresetTree) {
+				CoresetTree.releaseLevel(level);
+			}
+			bucket_0.release();
+			cache.release();
+			for (TwoRecursiveCache rccModel : rccList) {
+				rccModel.release();
+			}
+		} finally {
+			pool.closeSnapshot(ticket);
+		}
+	}
+	
+	
+	@Override
+	public long computeOffHeapBytes() {
+		long ticket = pool.openSnapshot();
+		try {
+			Snapshot snapshot = published;
+			long bytes = cache.offHeapBytes();
+			for (CoresetStore store : snapshot.treeStores) {
+				bytes += store.offHeapBytes();
+			}
+			for (TwoRecursiveCache rccModel : snapshot.rccList) {
+				bytes += rccModel.computeOffHeapBytes();
+			}
+			return bytes;
+		} finally {
+			pool.closeSnapshot(ticket);
+		}
 	}
 	
 }
@@ -0,0 +1,197 @@
+package datastructure;
+
+import java.util.ArrayDeque;
+import java.util.TreeSet;
+
+/**
+ * Free list of bucket-sized point blocks, so buckets emptied by a merge
+ * are refilled instead of allocated again, plus a scratch block per merging
+ * thread reused for the union of the buckets being merged.
+ * A pool belongs to one model (and its inner models). Blocks are acquired and
+ * recycled from the update thread and the merge worker (see algo.MergeWorker),
+ * which may merge at the same time (the levels of a recursive cache on the
+ * update thread, the trees of its level models on the worker).
+ * Queries read the coresets of a published snapshot of the model from other
+ * threads: recycled blocks and released stores are kept as they are while a
+ * snapshot that may still read them is open (see openSnapshot), overlapping
+ * snapshots do not hold back what was dropped after they were opened.
+ *
+ */
+public class BlockPool {
+
+	// bucket size
+	private final int m;
+
+	// maximum number of free blocks kept
+	private final int maxFree;
+	
+	// where and in which precision the buckets of the model keep their coresets
+	private final Storage storage;
+
+	private final ArrayDeque<PointBlock> free;
+
+	// union of the merged buckets, grows to the largest merge
+	private final ThreadLocal<PointBlock> scratch = new ThreadLocal<PointBlock>();
+
+	// ticket of the next snapshot, tickets of the open snapshots
+	private long nextTicket;
+
+	private final TreeSet<Long> openTickets = new TreeSet<Long>();
+
+	// dropped while snapshots were open: waiting for the snapshots open at the drop
+	// (among them the update that dropped it, which publishes before it closes),
+	// then retired until the snapshots opened before that publication are closed too
+	// (both in order of their ticket)
+	private final ArrayDeque<Dropped> waiting = new ArrayDeque<Dropped>();
+
+	private final ArrayDeque<Dropped> retired = new ArrayDeque<Dropped>();
+
+	/**
+	 * a recycled block or a released store, freed once no open snapshot
+	 * was opened before ticket
+	 */
+	private static class Dropped {
+		final PointBlock block;
+		final CoresetStore store;
+		long ticket;
+
+		Dropped(PointBlock block, CoresetStore store, long ticket) {
+			this.block = block;
+			this.store = store;
+			this.ticket = ticket;
+		}
+	}
+
+	/**
+	 * @param m bucket size
+	 * @param maxFree maximum number of free blocks kept
+	 * @param storage where the buckets keep their coresets once frozen
+	 */
+	public BlockPool(int m, int maxFree, Storage storage) {
+		this.m = m;
+		this.maxFree = maxFree;
+		this.storage = storage;
+		this.free = new ArrayDeque<PointBlock>();
+	}
+
+	/**
+	 * an empty block for a bucket
+	 * @return
+	 */
+	public synchronized PointBlock acquire() {
+		if (!free.isEmpty()) {
+			return free.pop();
+		}
+		return storage.newBlock(m);
+	}
+
+	/**
+	 * give back a block that is not referenced anymore
+	 * @param block
+	 */
+	public synchronized void recycle(PointBlock block) {
+		if (!openTickets.isEmpty()) {
+			waiting.add(new Dropped(block, null, nextTicket));
+		}
+		else {
+			free(block);
+		}
+	}
+
+	/**
+	 * free a store that is not referenced anymore
+	 * @param store
+	 */
+	public synchronized void release(CoresetStore store) {
+		if (!openTickets.isEmpty()) {
+			waiting.add(new Dropped(null, store, nextTicket));
+		}
+		else {
+			store.release();
+		}
+	}
+
+	private void free(PointBlock block) {
+		if (free.size() < maxFree) {
+			block.clear();
+			free.push(block);
+		}
+	}
+
+	/**
+	 * blocks and stores dropped from now on stay readable until closeSnapshot:
+	 * a query opens a snapshot before it reads the published state of the model,
+	 * an update opens one before it drops buckets and closes it once the new
+	 * state is published
+	 * @return ticket of the snapshot, to close it
+	 */
+	public synchronized long openSnapshot() {
+		long ticket = nextTicket++;
+		openTickets.add(ticket);
+		return ticket;
+	}
+
+	/**
+	 * free what no open snapshot can read anymore
+	 * @param ticket of the snapshot (see openSnapshot)
+	 */
+	public synchronized void closeSnapshot(long ticket) {
+		openTickets.remove(ticket);
+		long oldest = openTickets.isEmpty() ? Long.MAX_VALUE : openTickets.first();
+		// the snapshots open at the drop are closed: the new state is published,
+		// wait for the snapshots that may have read the old one
+		while (!waiting.isEmpty() && waiting.peek().ticket <= oldest) {
+			Dropped dropped = waiting.poll();
+			dropped.ticket = nextTicket;
+			retired.add(dropped);
+		}
+		while (!retired.isEmpty() && retired.peek().ticket <= oldest) {
+			Dropped dropped = retired.poll();
+			if (dropped.store != null) {
+				dropped.store.release();
+			}
+			else {
+				free(dropped.block);
+			}
+		}
+	}
+
+	/**
+	 * number of blocks and stores dropped but not freed yet
+	 * @return
+	 */
+	public synchronized int numDeferred() {
+		return waiting.size() + retired.size();
+	}
+
+	/**
+	 * the empty scratch block of the calling thread, valid until its next call
+	 * @return
+	 */
+	public PointBlock scratch() {
+		PointBlock block = scratch.get();
+		if (block == null) {
+			block = storage.newBlock(m);
+			scratch.set(block);
+		}
+		block.clear();
+		return block;
+	}
+
+	/**
+	 * where the buckets of the model keep their coresets once frozen
+	 * @return
+	 */
+	public Storage storage() {
+		return storage;
+	}
+
+	/**
+	 * number of free blocks kept
+	 * @return
+	 */
+	public synchronized int numFree() {
+		return free.size();
+	}
+
+}
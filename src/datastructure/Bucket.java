@@ -1,8 +1,8 @@
 package datastructure;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import kmeans.KMeansPlusPlus;
 
@@ -13,17 +13,42 @@ public class Bucket {
 	
 	// Bucket B_0 can store any number between 0 and m points,
 	// for i>=1, bucket B_i is either empty or contains exactly m points.
-	// Coreset is a list of weighted data points.
-	public List<Point> coreset;
+	// Coreset is a block of weighted data points.
+	// Once the bucket is full and frozen into the tree, the coreset
+	// is kept in a store instead (may be off-heap, see Storage; buckets
+	// without a pool keep it on the heap).
+	private PointBlock coreset;
+	
+	private CoresetStore store;
+	
+	// recycles the heap block once the coreset is released, knows where
+	// frozen coresets are stored (null: no pooling)
+	private BlockPool pool;
+	
+	// number of points other threads may read from the heap block while the
+	// bucket is filled (bucket 0 read by a query snapshot), set after each add
+	private final AtomicInteger published = new AtomicInteger();
 	
 	public Bucket(int m) {
 		this.m = m;
-		this.coreset = new ArrayList<>();
+		this.coreset = new PointBlock(m);
+	}
+	
+	/**
+	 * an empty bucket whose block comes from the pool and goes back to it
+	 * @param m
+	 * @param pool
+	 */
+	public Bucket(int m, BlockPool pool) {
+		this.m = m;
+		this.pool = pool;
+		this.coreset = pool.acquire();
 	}
 	
-	public Bucket(int m, List<Point> coreset) {
+	public Bucket(int m, PointBlock coreset) {
 		this.m = m;
 		this.coreset = coreset;
+		published.set(coreset.size());
 	}
 	
 	/**
@@ -32,11 +57,10 @@ public class Bucket {
 	 */
 	public Bucket(Bucket b) {
 		this.m = b.m;
-		this.coreset = new ArrayList<>();
 		// deep copy
-		for (Point p : b.coreset) {
-			this.coreset.add(new Point(p));
-		}
+		this.coreset = new PointBlock(b.coresetSize(), b.getStore().isSinglePrecision());
+		b.appendTo(this.coreset);
+		published.set(coreset.size());
 	}
 	
 	/**
@@ -45,6 +69,30 @@ public class Bucket {
 	 */
 	public void addPoint(Point p) {
 		coreset.add(p);
+		published.lazySet(coreset.size());
+	}
+	
+	/**
+	 * add new points (weight 1) to the coreset
+	 * @param data positions in row-major order
+	 * @param from index of the first point to add
+	 * @param count number of points to add
+	 * @param d dimension
+	 */
+	public void addPoints(double[] data, int from, int count, int d) {
+		coreset.addRows(data, from, count, d);
+		published.lazySet(coreset.size());
+	}
+	
+	/**
+	 * add new points to the coreset
+	 * @param points
+	 * @param from index of the first point to add
+	 * @param count number of points to add
+	 */
+	public void addPoints(PointBlock points, int from, int count) {
+		coreset.addAll(points, from, count);
+		published.lazySet(coreset.size());
 	}
 	
 	/**
@@ -52,22 +100,114 @@ public class Bucket {
 	 * @return
 	 */
 	public int coresetSize() {
-		return coreset.size();
+		return coreset != null ? coreset.size() : store.size();
+	}
+	
+	/**
+	 * get the coreset as a heap block (a copy if it is stored off-heap)
+	 * Note: the block must not be modified
+	 * @return
+	 */
+	public PointBlock getCoreset() {
+		return coreset != null ? coreset : Storage.toBlock(store);
+	}
+	
+	/**
+	 * the store of a frozen bucket, or its heap block while it is filled
+	 * (what a query snapshot keeps of the bucket)
+	 * @return
+	 */
+	public CoresetStore getStore() {
+		return store != null ? store : coreset;
+	}
+	
+	/**
+	 * number of points added so far, as seen from any thread: the first
+	 * publishedSize() points of getStore() may be read while points are added
+	 * @return
+	 */
+	public int publishedSize() {
+		return published.get();
+	}
+	
+	/**
+	 * append the coreset to dst
+	 * @param dst
+	 */
+	public void appendTo(PointBlock dst) {
+		if (coreset != null) {
+			dst.addAll(coreset);
+		}
+		else {
+			store.appendTo(dst);
+		}
+	}
+	
+	/**
+	 * the bucket is full and goes into the coreset tree:
+	 * move the coreset into its store, no point is added afterwards
+	 */
+	public void freeze() {
+		if (store == null) {
+			store = pool != null ? pool.storage().store(coreset) : coreset;
+			if (store != coreset) {
+				// copied off-heap, the heap block is free
+				if (pool != null) {
+					pool.recycle(coreset);
+				}
+				coreset = null;
+			}
+		}
+	}
+	
+	/**
+	 * free the coreset storage (the bucket is dropped from the tree),
+	 * with a pool not before the open snapshots are closed
+	 */
+	public void release() {
+		if (store != null) {
+			if (pool != null) {
+				pool.release(store);
+			}
+			else {
+				store.release();
+			}
+		}
+		if (pool != null && coreset != null) {
+			pool.recycle(coreset);
+		}
+		store = null;
+		coreset = null;
+	}
+	
+	/**
+	 * number of bytes held outside the Java heap
+	 * @return
+	 */
+	public long offHeapBytes() {
+		return store != null ? store.offHeapBytes() : 0;
 	}
 	
 	/**
 	 * Merge the coreset in this bucket (size m) with other buckets (coresets)
+	 * With a pool, the union is built in its scratch block and
+	 * the merged coreset is stored in a recycled block.
 	 * @return return a new bucket with merged coreset (size m)
 	 */
 	public Bucket mergeBuckets(List<Bucket> bucketList) {
 		// the coreset in this bucket
-		List<Point> unionSet = coreset;
+		PointBlock unionSet = pool != null ? pool.scratch() : new PointBlock((bucketList.size() + 1) * m);
+		appendTo(unionSet);
 		// union all the coresets in the bucketList
 		for (Bucket b : bucketList) {
-			unionSet.addAll(b.coreset);
+			b.appendTo(unionSet);
+		}
+		if (pool == null) {
+			PointBlock mergedCoreset = KMeansPlusPlus.fastSeeding(unionSet, m, new Random());
+			return new Bucket(m, mergedCoreset);
 		}
-		List<Point> mergedCoreset = KMeansPlusPlus.fastSeeding(unionSet, m, new Random());	
-		Bucket mergedBucket = new Bucket(m, mergedCoreset);
+		Bucket mergedBucket = new Bucket(m, pool);
+		KMeansPlusPlus.fastSeeding(unionSet, m, new Random(), mergedBucket.coreset);
 		return mergedBucket;
 	}
 }
@@ -1,95 +1,202 @@
 package datastructure;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-
+/**
+ * Coreset cache keyed by partial sums of the number of buckets N in base r.
+ * After inserting the coreset of N, the cache only keeps the coresets of the
+ * prefixes of N (N with its lowest digits cleared, for each non-zero digit).
+ * A key is stored at the level of its least significant non-zero digit,
+ * so each level holds at most one entry and all maintenance is arithmetic
+ * on O(log_r N) digits (shift and mask when r is a power of two).
+ * The entries are read and inserted by concurrent queries (see
+ * algo.CoresetCache), the cache is locked for each call.
+ *
+ */
 public class Cache {
 	
+	// levels of an int in base 2 (the largest possible number of digits)
+	private static final int MAX_LEVELS = 32;
+	
 	// merge threshold
 	public int r;
 	
 	// number of buckets received
 	public int numOfBuckets; 
 	
-	private HashMap<Integer, List<Point>> map;
+	// log2(r) if r is a power of two, -1 otherwise
+	private final int shift;
+	
+	// r^l for each level l, until it overflows
+	private final long[] pow;
+	
+	// key of the entry at each level, its coreset (null if the level is empty)
+	private final int[] keys;
+	private final CoresetStore[] stores;
+	
+	// number of entries
+	private int size;
+	
+	// one more than the highest level holding an entry (0 if the cache is empty),
+	// the loops over the levels stop there
+	private int levels;
+	
+	// the model was released: coresets inserted by late queries are freed at once
+	private boolean released;
+	
+	// where the cached coresets are kept
+	private final Storage storage;
 	
 	public Cache(int r) {
+		this(r, Storage.HEAP);
+	}
+	
+	/**
+	 * @param r merge threshold
+	 * @param storage where the cached coresets are kept
+	 */
+	public Cache(int r, Storage storage) {
 		this.r = r;
+		this.storage = storage;
 		numOfBuckets = 0;
-		map = new HashMap<Integer, List<Point>>();
+		shift = Integer.bitCount(r) == 1 ? Integer.numberOfTrailingZeros(r) : -1;
+		pow = new long[MAX_LEVELS + 1];
+		pow[0] = 1;
+		for (int l = 1; l <= MAX_LEVELS; l++) {
+			pow[l] = Math.min(pow[l - 1] * r, Integer.MAX_VALUE + 1L);
+		}
+		keys = new int[MAX_LEVELS];
+		stores = new CoresetStore[MAX_LEVELS];
+		size = 0;
 	}
 	
-	public int size() {
-		return map.size();
+	public synchronized int size() {
+		return size;
 	}
 	
-	public boolean containsCoreset(int key) {
-		return map.containsKey(key);
+	public synchronized boolean containsCoreset(int key) {
+		return key > 0 && stores[minorLevel(key)] != null && keys[minorLevel(key)] == key;
 	}
 	
-	public List<Point> getCoreset(int key) {
-		return map.get(key);
+	/**
+	 * get a cached coreset (a heap copy if it is stored off-heap)
+	 * Note: the block must not be modified
+	 * @param key
+	 * @return
+	 */
+	public synchronized PointBlock getCoreset(int key) {
+		if (!containsCoreset(key)) {
+			return null;
+		}
+		return Storage.toBlock(stores[minorLevel(key)]);
 	}
 	
-	public void insertCoreset(int num, List<Point> coreset) {
-		map.put(num, coreset);
+	/**
+	 * number of bytes held outside the Java heap
+	 * @return
+	 */
+	public synchronized long offHeapBytes() {
+		long bytes = 0;
+		for (int l = 0; l < levels; l++) {
+			if (stores[l] != null) {
+				bytes += stores[l].offHeapBytes();
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * free all cached coresets and empty the cache
+	 */
+	public synchronized void release() {
+		released = true;
+		for (int l = 0; l < levels; l++) {
+			evict(l);
+		}
+		levels = 0;
+	}
+	
+	public synchronized void insertCoreset(int num, PointBlock coreset) {
+		if (num <= 0 || released) {
+			return;
+		}
+		int level = minorLevel(num);
+		evict(level);
+		keys[level] = num;
+		stores[level] = storage.store(coreset);
+		size++;
+		levels = Math.max(levels, level + 1);
 		
-		// remove coresets not in the partsums
-		HashSet<Integer> partSumList = partSum(num);
-		Iterator<Integer> iter = map.keySet().iterator();
-		while (iter.hasNext()) {
-			int key = iter.next();
-			if (!partSumList.contains(key)) {
-				iter.remove();
+		// remove coresets not in the partsums: the entry at level l is kept
+		// only if digit l of num is not zero and the key is num's prefix
+		for (int l = 0; l < levels; l++) {
+			if (stores[l] != null && l != level
+					&& (digit(num, l) == 0 || keys[l] != prefix(num, l))) {
+				evict(l);
 			}
 		}
+		while (levels > 0 && stores[levels - 1] == null) {
+			levels--;
+		}
 	}
 	
 	/**
-	 * return the part sums of number n
-	 * TODO Use bit manipulation
+	 * free the entry at level l
+	 * @param l
+	 */
+	private void evict(int l) {
+		if (stores[l] != null) {
+			stores[l].release();
+			stores[l] = null;
+			size--;
+		}
+	}
+	
+	/**
+	 * digit of n at level l in base r
 	 * @param n
+	 * @param l
 	 * @return
 	 */
-	private HashSet<Integer> partSum(int n) {
-    	List<Integer> list = new ArrayList<Integer>();
-    	HashSet<Integer> partSumSet = new HashSet<Integer>();
-    	
-    	int weight = 1;
-    	while (n > 0) {
-    		int a = n % r;
-    		n = n / r;
-    		if (a != 0) {
-    			list.add(a * weight);
-    		}
-    		weight = weight * r;
-    	}
-    	int temp = 0;
-		for (int i = list.size() - 1; i >= 0; i--) {
-			temp += list.get(i);
-			partSumSet.add(temp);
+	private int digit(int n, int l) {
+		if (pow[l] > n) {
+			return 0;
 		}
-		return partSumSet;
-    }
-    
+		if (shift > 0) {
+			return (n >>> (shift * l)) & (r - 1);
+		}
+		return (int) ((n / pow[l]) % r);
+	}
+	
+	/**
+	 * n with the digits below level l cleared
+	 * @param n
+	 * @param l
+	 * @return
+	 */
+	private int prefix(int n, int l) {
+		if (pow[l] > n) {
+			return 0;
+		}
+		if (shift > 0) {
+			return n & -(1 << (shift * l));
+		}
+		return (int) (n - n % pow[l]);
+	}
+	
 	public int major(int n) {
 		return n - minor(n);
 	}
 	
+	/**
+	 * least significant non-zero digit of n times its weight
+	 * @param n
+	 * @return
+	 */
     public int minor(int n) {
     	if (n == 0) {
     		return 0;
     	}
-    	int weight = 1;
-    	while (n % r == 0) {
-    		n = n / r;
-    		weight = weight * r;
-    	}
-    	int minor =  weight * (n % r);
-    	return minor;
+    	int level = minorLevel(n);
+    	return (int) (digit(n, level) * pow[level]);
     }
     
     /**
@@ -98,6 +205,12 @@ public class Cache {
      * @return
      */
     public int minorLevel(int n) {
+    	if (n == 0) {
+    		return 0;
+    	}
+    	if (shift > 0) {
+    		return Integer.numberOfTrailingZeros(n) / shift;
+    	}
     	int level = 0;
     	while (n % r == 0) {
     		n = n / r;
@@ -105,13 +218,5 @@ public class Cache {
     	}
     	return level;
     }
-    
-    
-    /* for test */
-    public static void main(String[] args) {
-//    	System.out.println(new Cache(3).partSum(70).toString());
-//    	System.out.println(new Cache(3).minor(69));
-    	System.out.println(new Cache(4).partSum(69).toString());
-    }
 
 }
@@ -0,0 +1,39 @@
+package datastructure;
+
+/**
+ * Storage of a full coreset (a bucket in the coreset tree or a cache entry).
+ * The coreset is read back by appending it to a heap block.
+ *
+ */
+public interface CoresetStore {
+	
+	/**
+	 * number of weighted points stored
+	 * @return
+	 */
+	public int size();
+	
+	/**
+	 * positions are stored as floats
+	 * @return
+	 */
+	public boolean isSinglePrecision();
+	
+	/**
+	 * append the stored points to dst
+	 * @param dst
+	 */
+	public void appendTo(PointBlock dst);
+	
+	/**
+	 * number of bytes held outside the Java heap
+	 * @return
+	 */
+	public long offHeapBytes();
+	
+	/**
+	 * free the storage, the coreset can not be read afterwards
+	 */
+	public void release();
+	
+}
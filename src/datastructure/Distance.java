@@ -0,0 +1,276 @@
+package datastructure;
+
+import java.util.List;
+
+/**
+ * Distance kernels of the hot loops (squared distance, nearest of k centers,
+ * weighted accumulation of a position into a sum).
+ * The SIMD kernel (datastructure.VectorKernel in src-vector, built on
+ * jdk.incubator.vector) is used when it is on the class path and the module
+ * is enabled (--add-modules jdk.incubator.vector), otherwise the scalar loops.
+ * Set -Dclustering.kernel=scalar to force the scalar kernel.
+ *
+ */
+public final class Distance {
+
+	/**
+	 * Implementation of the kernels, positions are d consecutive values
+	 * starting at an offset of an array
+	 */
+	public interface Kernel {
+
+		double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d);
+
+		double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d);
+
+		/**
+		 * squared distance, abandoned once the partial sum exceeds bound:
+		 * returns the exact distance if it is at most bound, otherwise some value > bound
+		 */
+		double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d, double bound);
+
+		double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d, double bound);
+
+		/**
+		 * sum[sumOffset..] += x[xOffset..] * scale
+		 */
+		void accumulate(double[] x, int xOffset, double scale, double[] sum, int sumOffset, int d);
+
+		void accumulate(float[] x, int xOffset, double scale, double[] sum, int sumOffset, int d);
+	}
+
+	/**
+	 * plain loops, always available
+	 */
+	static final class ScalarKernel implements Kernel {
+
+		// number of dimensions between two checks of the bound
+		private static final int BLOCK = 8;
+
+		@Override
+		public double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d) {
+			double sum = 0.0;
+			for (int j = 0; j < d; j++) {
+				double dif = x[xOffset + j] - y[yOffset + j];
+				sum += dif * dif;
+			}
+			return sum;
+		}
+
+		@Override
+		public double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d) {
+			double sum = 0.0;
+			for (int j = 0; j < d; j++) {
+				double dif = x[xOffset + j] - y[yOffset + j];
+				sum += dif * dif;
+			}
+			return sum;
+		}
+
+		@Override
+		public double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d, double bound) {
+			double sum = 0.0;
+			int j = 0;
+			while (j < d) {
+				int end = Math.min(d, j + BLOCK);
+				for (; j < end; j++) {
+					double dif = x[xOffset + j] - y[yOffset + j];
+					sum += dif * dif;
+				}
+				if (sum > bound) {
+					return sum;
+				}
+			}
+			return sum;
+		}
+
+		@Override
+		public double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d, double bound) {
+			double sum = 0.0;
+			int j = 0;
+			while (j < d) {
+				int end = Math.min(d, j + BLOCK);
+				for (; j < end; j++) {
+					double dif = x[xOffset + j] - y[yOffset + j];
+					sum += dif * dif;
+				}
+				if (sum > bound) {
+					return sum;
+				}
+			}
+			return sum;
+		}
+
+		@Override
+		public void accumulate(double[] x, int xOffset, double scale, double[] sum, int sumOffset, int d) {
+			for (int j = 0; j < d; j++) {
+				sum[sumOffset + j] += x[xOffset + j] * scale;
+			}
+		}
+
+		@Override
+		public void accumulate(float[] x, int xOffset, double scale, double[] sum, int sumOffset, int d) {
+			for (int j = 0; j < d; j++) {
+				sum[sumOffset + j] += x[xOffset + j] * scale;
+			}
+		}
+	}
+
+	private static final Kernel KERNEL = loadKernel();
+
+	private Distance() {
+	}
+
+	/**
+	 * the SIMD kernel if it can be loaded and agrees with the scalar one,
+	 * the scalar kernel otherwise
+	 * @return
+	 */
+	private static Kernel loadKernel() {
+		Kernel scalar = new ScalarKernel();
+		if ("scalar".equals(System.getProperty("clustering.kernel"))) {
+			return scalar;
+		}
+		try {
+			Kernel vector = (Kernel) Class.forName("datastructure.VectorKernel").getDeclaredConstructor().newInstance();
+			// self-check on a few lengths, covering the tail loop
+			for (int d = 1; d <= 19; d += 3) {
+				double[] x = new double[d];
+				double[] y = new double[d];
+				for (int j = 0; j < d; j++) {
+					x[j] = j * 0.5;
+					y[j] = d - j;
+				}
+				double expected = scalar.squaredDistance(x, 0, y, 0, d);
+				if (Math.abs(vector.squaredDistance(x, 0, y, 0, d) - expected) > 1e-9 * expected) {
+					return scalar;
+				}
+			}
+			return vector;
+		} catch (Throwable e) {
+			// not on the class path, or jdk.incubator.vector is not enabled
+			return scalar;
+		}
+	}
+
+	/**
+	 * name of the kernel in use
+	 * @return
+	 */
+	public static String kernelName() {
+		return KERNEL.getClass().getSimpleName();
+	}
+
+	public static double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d) {
+		return KERNEL.squaredDistance(x, xOffset, y, yOffset, d);
+	}
+
+	public static double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d) {
+		return KERNEL.squaredDistance(x, xOffset, y, yOffset, d);
+	}
+
+	/**
+	 * squared distance, abandoned once it exceeds bound
+	 * (e.g. the distance to the nearest center found so far)
+	 * @param x
+	 * @param xOffset
+	 * @param y
+	 * @param yOffset
+	 * @param d
+	 * @param bound
+	 * @return the exact distance if it is at most bound, otherwise some value > bound
+	 */
+	public static double squaredDistance(double[] x, int xOffset, double[] y, int yOffset, int d, double bound) {
+		return KERNEL.squaredDistance(x, xOffset, y, yOffset, d, bound);
+	}
+
+	public static double squaredDistance(float[] x, int xOffset, double[] y, int yOffset, int d, double bound) {
+		return KERNEL.squaredDistance(x, xOffset, y, yOffset, d, bound);
+	}
+
+	public static void accumulate(double[] x, int xOffset, double scale, double[] sum, int sumOffset, int d) {
+		KERNEL.accumulate(x, xOffset, scale, sum, sumOffset, d);
+	}
+
+	public static void accumulate(float[] x, int xOffset, double scale, double[] sum, int sumOffset, int d) {
+		KERNEL.accumulate(x, xOffset, scale, sum, sumOffset, d);
+	}
+
+	/**
+	 * index of the nearest of k centers (the first one on ties)
+	 * @param x
+	 * @param xOffset
+	 * @param centers center c is centers[c*d, (c+1)*d)
+	 * @param k
+	 * @param d
+	 * @return
+	 */
+	public static int nearest(double[] x, int xOffset, double[] centers, int k, int d) {
+		double minDistance = Double.POSITIVE_INFINITY;
+		int minCenter = 0;
+		for (int c = 0; c < k; c++) {
+			double distance = KERNEL.squaredDistance(x, xOffset, centers, c * d, d, minDistance);
+			if (distance < minDistance) {
+				minDistance = distance;
+				minCenter = c;
+			}
+		}
+		return minCenter;
+	}
+
+	public static int nearest(float[] x, int xOffset, double[] centers, int k, int d) {
+		double minDistance = Double.POSITIVE_INFINITY;
+		int minCenter = 0;
+		for (int c = 0; c < k; c++) {
+			double distance = KERNEL.squaredDistance(x, xOffset, centers, c * d, d, minDistance);
+			if (distance < minDistance) {
+				minDistance = distance;
+				minCenter = c;
+			}
+		}
+		return minCenter;
+	}
+
+	/**
+	 * squared distance to the nearest of k centers
+	 * @param x
+	 * @param xOffset
+	 * @param centers center c is centers[c*d, (c+1)*d)
+	 * @param k
+	 * @param d
+	 * @return
+	 */
+	public static double nearestDistance(double[] x, int xOffset, double[] centers, int k, int d) {
+		double minDistance = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			minDistance = Math.min(minDistance, KERNEL.squaredDistance(x, xOffset, centers, c * d, d, minDistance));
+		}
+		return minDistance;
+	}
+
+	public static double nearestDistance(float[] x, int xOffset, double[] centers, int k, int d) {
+		double minDistance = Double.POSITIVE_INFINITY;
+		for (int c = 0; c < k; c++) {
+			minDistance = Math.min(minDistance, KERNEL.squaredDistance(x, xOffset, centers, c * d, d, minDistance));
+		}
+		return minDistance;
+	}
+
+	/**
+	 * copy the positions of the centers into one array, center c at [c*d, (c+1)*d)
+	 * @param centers
+	 * @return
+	 */
+	public static double[] flatten(List<? extends Point> centers) {
+		if (centers.isEmpty()) {
+			return new double[0];
+		}
+		int d = centers.get(0).position.length;
+		double[] flat = new double[centers.size() * d];
+		for (int c = 0; c < centers.size(); c++) {
+			System.arraycopy(centers.get(c).position, 0, flat, c * d, d);
+		}
+		return flat;
+	}
+
+}
@@ -0,0 +1,126 @@
+package datastructure;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A frozen block of weighted points kept in a direct buffer
+ * (positions in row-major order followed by the weights),
+ * positions keep the precision of the copied block.
+ * The memory is freed explicitly by release(): a read holds the lock of the
+ * block, so the memory is never freed while it is read, and a read after the
+ * release fails instead of reading freed memory.
+ *
+ */
+public class OffHeapBlock implements CoresetStore {
+	
+	// bytes currently held by all off-heap blocks
+	private static final AtomicLong liveBytes = new AtomicLong();
+	
+	// sun.misc.Unsafe.invokeCleaner, to free a direct buffer right away
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			// not available: buffers are freed when they are garbage collected
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+	
+	// null once released (read without the lock by offHeapBytes)
+	private volatile ByteBuffer buffer;
+	
+	private final int size;
+	
+	private final int d;
+	
+	// positions are stored as floats
+	private final boolean single;
+	
+	private OffHeapBlock(ByteBuffer buffer, int size, int d, boolean single) {
+		this.buffer = buffer;
+		this.size = size;
+		this.d = d;
+		this.single = single;
+	}
+	
+	/**
+	 * copy a heap block into a new off-heap block
+	 * @param block
+	 * @return
+	 */
+	public static OffHeapBlock copyOf(PointBlock block) {
+		int size = block.size();
+		int d = block.dimension();
+		ByteBuffer buffer = ByteBuffer.allocateDirect(block.storedBytes()).order(ByteOrder.nativeOrder());
+		block.writeTo(buffer);
+		liveBytes.addAndGet(buffer.capacity());
+		return new OffHeapBlock(buffer, size, d, block.isSinglePrecision());
+	}
+	
+	/**
+	 * bytes currently held by all off-heap blocks
+	 * @return
+	 */
+	public static long liveBytes() {
+		return liveBytes.get();
+	}
+	
+	@Override
+	public int size() {
+		return size;
+	}
+	
+	@Override
+	public boolean isSinglePrecision() {
+		return single;
+	}
+	
+	@Override
+	public synchronized void appendTo(PointBlock dst) {
+		ByteBuffer b = buffer;
+		if (b == null) {
+			throw new IllegalStateException("Off-heap block already released");
+		}
+		dst.readFrom(b, size, d, single);
+	}
+	
+	@Override
+	public long offHeapBytes() {
+		ByteBuffer b = buffer;
+		return b == null ? 0 : b.capacity();
+	}
+	
+	@Override
+	public synchronized void release() {
+		ByteBuffer b = buffer;
+		if (b == null) {
+			return;
+		}
+		// no read can reach the memory once the buffer is cleared
+		buffer = null;
+		liveBytes.addAndGet(-b.capacity());
+		if (INVOKE_CLEANER != null) {
+			try {
+				INVOKE_CLEANER.invoke(UNSAFE, b);
+			} catch (Exception e) {
+				// freed when garbage collected
+			}
+		}
+	}
+	
+}
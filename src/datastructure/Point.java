@@ -6,7 +6,6 @@ import java.util.List;
 
 import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.ml.clustering.Clusterable;
-import org.apache.commons.math3.util.MathArrays;
 
 public class Point implements Clusterable {
 	
@@ -39,7 +38,7 @@ public class Point implements Clusterable {
 	 * @throws DimensionMismatchException
 	 */
 	public double euclidDistTo(Point q) throws DimensionMismatchException {
-		return MathArrays.distance(position, q.position);
+		return Math.sqrt(squaredDistance(q));
 	}
 	
 	
@@ -55,12 +54,7 @@ public class Point implements Clusterable {
 		if (lenP != lenQ) {
     		throw new DimensionMismatchException(lenQ, lenP);
     	}
-    	double sum = 0.0;
-    	for (int i=0; i<lenP; i++) {
-    		double dif = position[i] - q.position[i];
-    		sum = sum + dif * dif;
-    	}
-    	return sum;
+    	return Distance.squaredDistance(position, 0, q.position, 0, lenP);
 	}
 	
 	
@@ -75,7 +69,7 @@ public class Point implements Clusterable {
         int minCluster = 0;
         for (int i=0; i<centers.size(); i++) {
         	Point c = centers.get(i);
-            double distance = euclidDistTo(c);
+            double distance = Distance.squaredDistance(position, 0, c.position, 0, position.length, minDistance);
             if (distance < minDistance) {
                 minDistance = distance;
                 minCluster = i;
@@ -92,9 +86,19 @@ public class Point implements Clusterable {
      * @return
      */
     public double getNearestDistance(List<Center> centers) {
+        return Math.sqrt(getNearestSquaredDistance(centers));
+    }
+    
+    
+    /**
+     * returns the squared distance to the nearest center
+     * @param centers
+     * @return
+     */
+    public double getNearestSquaredDistance(List<Center> centers) {
     	double minDist = Double.POSITIVE_INFINITY;
         for (Point c : centers) {
-        	double d = euclidDistTo(c);
+        	double d = Distance.squaredDistance(position, 0, c.position, 0, position.length, minDist);
 			minDist = Math.min(minDist, d);
         }
         return minDist;
@@ -0,0 +1,486 @@
+package datastructure;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A contiguous block of weighted points (structure of arrays):
+ * all positions are stored in one flat row-major array and
+ * all weights in another one, so scans stream through memory.
+ * In single precision mode the positions are stored as floats
+ * (half the memory and bandwidth), weights, distances and sums
+ * are still computed in double precision.
+ *
+ */
+public class PointBlock implements CoresetStore {
+
+	// dimension, fixed by the first point added (0 while empty)
+	private int d;
+
+	// number of points in the block
+	private int size;
+
+	// positions are stored as floats
+	private final boolean single;
+
+	// point i is positions[i*d, (i+1)*d), null in single precision mode
+	private double[] positions;
+
+	// point i is floatPositions[i*d, (i+1)*d), null in double precision mode
+	private float[] floatPositions;
+
+	private double[] weights;
+
+
+	public PointBlock() {
+		this(16);
+	}
+
+	/**
+	 * a block in double precision
+	 * @param capacity expected number of points
+	 */
+	public PointBlock(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * @param capacity expected number of points
+	 * @param single store positions as floats
+	 */
+	public PointBlock(int capacity, boolean single) {
+		this.d = 0;
+		this.size = 0;
+		this.single = single;
+		this.positions = null;
+		this.floatPositions = null;
+		this.weights = new double[Math.max(1, capacity)];
+	}
+
+	/**
+	 * deep copy of block b, with the same precision
+	 * @param b
+	 */
+	public PointBlock(PointBlock b) {
+		this(b.size, b.single);
+		addAll(b);
+	}
+
+	/**
+	 * copy a list of points into a new block
+	 * @param points
+	 * @return
+	 */
+	public static PointBlock of(List<? extends Point> points) {
+		PointBlock block = new PointBlock(points.size());
+		for (Point p : points) {
+			block.add(p);
+		}
+		return block;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int dimension() {
+		return d;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	public boolean isSinglePrecision() {
+		return single;
+	}
+
+	/**
+	 * make room for n points, fixing the dimension on first use
+	 * @param n
+	 * @param dim
+	 */
+	private void ensureCapacity(int n, int dim) {
+		if (positions == null && floatPositions == null) {
+			d = dim;
+			if (single) {
+				floatPositions = new float[weights.length * d];
+			}
+			else {
+				positions = new double[weights.length * d];
+			}
+		}
+		else if (dim != d) {
+			throw new IllegalArgumentException("Dimension " + dim + " does not match block dimension " + d);
+		}
+		if (n > weights.length) {
+			int capacity = Math.max(n, 2 * weights.length);
+			weights = Arrays.copyOf(weights, capacity);
+			if (single) {
+				floatPositions = Arrays.copyOf(floatPositions, capacity * d);
+			}
+			else {
+				positions = Arrays.copyOf(positions, capacity * d);
+			}
+		}
+	}
+
+	/**
+	 * add a new point (the position is copied)
+	 * @param position
+	 * @param weight
+	 */
+	public void add(double[] position, double weight) {
+		ensureCapacity(size + 1, position.length);
+		copyValues(position, 0, size, 1);
+		weights[size++] = weight;
+	}
+
+	public void add(Point p) {
+		add(p.position, p.weight);
+	}
+
+	/**
+	 * add points with weight 1
+	 * @param data positions in row-major order
+	 * @param from index of the first point to add
+	 * @param count number of points to add
+	 * @param dim dimension
+	 */
+	public void addRows(double[] data, int from, int count, int dim) {
+		if (count == 0) {
+			return;
+		}
+		ensureCapacity(size + count, dim);
+		copyValues(data, from * d, size, count);
+		Arrays.fill(weights, size, size + count, 1);
+		size += count;
+	}
+
+	/**
+	 * add points from index from to from+count-1 of block b
+	 * @param b
+	 * @param from
+	 * @param count
+	 */
+	public void addAll(PointBlock b, int from, int count) {
+		if (count == 0) {
+			return;
+		}
+		ensureCapacity(size + count, b.d);
+		if (b.single) {
+			copyValues(b.floatPositions, from * d, size, count);
+		}
+		else {
+			copyValues(b.positions, from * d, size, count);
+		}
+		System.arraycopy(b.weights, from, weights, size, count);
+		size += count;
+	}
+
+	/**
+	 * copy the positions of count points from src (starting at srcPos)
+	 * to row index i, converting to the precision of this block
+	 */
+	private void copyValues(double[] src, int srcPos, int i, int count) {
+		if (single) {
+			int offset = i * d;
+			for (int j = 0; j < count * d; j++) {
+				floatPositions[offset + j] = (float) src[srcPos + j];
+			}
+		}
+		else {
+			System.arraycopy(src, srcPos, positions, i * d, count * d);
+		}
+	}
+
+	private void copyValues(float[] src, int srcPos, int i, int count) {
+		if (single) {
+			System.arraycopy(src, srcPos, floatPositions, i * d, count * d);
+		}
+		else {
+			int offset = i * d;
+			for (int j = 0; j < count * d; j++) {
+				positions[offset + j] = src[srcPos + j];
+			}
+		}
+	}
+
+	/**
+	 * add all points of block b
+	 * @param b
+	 */
+	public void addAll(PointBlock b) {
+		addAll(b, 0, b.size);
+	}
+
+	/**
+	 * add point i of block b
+	 * @param b
+	 * @param i
+	 */
+	public void addPoint(PointBlock b, int i) {
+		addAll(b, i, 1);
+	}
+
+	@Override
+	public void appendTo(PointBlock dst) {
+		dst.addAll(this);
+	}
+	
+	@Override
+	public long offHeapBytes() {
+		return 0;
+	}
+	
+	/**
+	 * nothing to free on the heap
+	 */
+	@Override
+	public void release() {
+	}
+	
+	/**
+	 * number of bytes written by writeTo
+	 * @return
+	 */
+	int storedBytes() {
+		return size * d * (single ? 4 : 8) + size * 8;
+	}
+	
+	/**
+	 * write positions then weights into buf (at its start)
+	 * @param buf
+	 */
+	void writeTo(ByteBuffer buf) {
+		if (size == 0) {
+			return;
+		}
+		int positionBytes = size * d * (single ? 4 : 8);
+		if (single) {
+			buf.asFloatBuffer().put(floatPositions, 0, size * d);
+		}
+		else {
+			buf.asDoubleBuffer().put(positions, 0, size * d);
+		}
+		ByteBuffer weightBuf = buf.duplicate().order(buf.order());
+		weightBuf.position(positionBytes);
+		weightBuf.asDoubleBuffer().put(weights, 0, size);
+	}
+	
+	/**
+	 * append count points written by writeTo
+	 * @param buf
+	 * @param count
+	 * @param dim
+	 * @param singleIn positions in buf are floats
+	 */
+	void readFrom(ByteBuffer buf, int count, int dim, boolean singleIn) {
+		if (count == 0) {
+			return;
+		}
+		ensureCapacity(size + count, dim);
+		int positionBytes = count * d * (singleIn ? 4 : 8);
+		if (singleIn == single) {
+			if (single) {
+				buf.asFloatBuffer().get(floatPositions, size * d, count * d);
+			}
+			else {
+				buf.asDoubleBuffer().get(positions, size * d, count * d);
+			}
+		}
+		else if (singleIn) {
+			FloatBuffer in = buf.asFloatBuffer();
+			for (int j = 0; j < count * d; j++) {
+				positions[size * d + j] = in.get(j);
+			}
+		}
+		else {
+			DoubleBuffer in = buf.asDoubleBuffer();
+			for (int j = 0; j < count * d; j++) {
+				floatPositions[size * d + j] = (float) in.get(j);
+			}
+		}
+		ByteBuffer weightBuf = buf.duplicate().order(buf.order());
+		weightBuf.position(positionBytes);
+		weightBuf.asDoubleBuffer().get(weights, size, count);
+		size += count;
+	}
+	
+	/**
+	 * remove all points, keeping the storage
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public double weight(int i) {
+		return weights[i];
+	}
+
+	public void setWeight(int i, double weight) {
+		weights[i] = weight;
+	}
+
+	/**
+	 * coordinate j of point i
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public double get(int i, int j) {
+		if (single) {
+			return floatPositions[i * d + j];
+		}
+		return positions[i * d + j];
+	}
+
+	/**
+	 * copy the position of point i into dst
+	 * @param i
+	 * @param dst
+	 */
+	public void copyPosition(int i, double[] dst) {
+		if (single) {
+			int offset = i * d;
+			for (int j = 0; j < d; j++) {
+				dst[j] = floatPositions[offset + j];
+			}
+			return;
+		}
+		System.arraycopy(positions, i * d, dst, 0, d);
+	}
+
+	/**
+	 * squared distance from point i to position c
+	 * @param i
+	 * @param c
+	 * @return
+	 */
+	public double squaredDistance(int i, double[] c) {
+		return squaredDistance(i, c, 0);
+	}
+
+	/**
+	 * squared distance from point i to the position at c[cOffset]
+	 * (e.g. a center in a flat array of centers)
+	 * @param i
+	 * @param c
+	 * @param cOffset
+	 * @return
+	 */
+	public double squaredDistance(int i, double[] c, int cOffset) {
+		if (single) {
+			return Distance.squaredDistance(floatPositions, i * d, c, cOffset, d);
+		}
+		return Distance.squaredDistance(positions, i * d, c, cOffset, d);
+	}
+
+	/**
+	 * squared distance from point i to the position at c[cOffset],
+	 * abandoned once it exceeds bound
+	 * @param i
+	 * @param c
+	 * @param cOffset
+	 * @param bound
+	 * @return the exact distance if it is at most bound, otherwise some value > bound
+	 */
+	public double squaredDistance(int i, double[] c, int cOffset, double bound) {
+		if (single) {
+			return Distance.squaredDistance(floatPositions, i * d, c, cOffset, d, bound);
+		}
+		return Distance.squaredDistance(positions, i * d, c, cOffset, d, bound);
+	}
+
+	/**
+	 * index of the nearest of k centers to point i
+	 * @param i
+	 * @param centers center c is centers[c*d, (c+1)*d)
+	 * @param k
+	 * @return
+	 */
+	public int nearest(int i, double[] centers, int k) {
+		if (single) {
+			return Distance.nearest(floatPositions, i * d, centers, k, d);
+		}
+		return Distance.nearest(positions, i * d, centers, k, d);
+	}
+
+	/**
+	 * squared distance from point i to the nearest of k centers
+	 * @param i
+	 * @param centers center c is centers[c*d, (c+1)*d)
+	 * @param k
+	 * @return
+	 */
+	public double nearestDistance(int i, double[] centers, int k) {
+		if (single) {
+			return Distance.nearestDistance(floatPositions, i * d, centers, k, d);
+		}
+		return Distance.nearestDistance(positions, i * d, centers, k, d);
+	}
+
+	/**
+	 * add the position of point i times scale to sum
+	 * @param i
+	 * @param sum
+	 * @param scale
+	 */
+	public void accumulate(int i, double[] sum, double scale) {
+		accumulate(i, sum, 0, scale);
+	}
+
+	/**
+	 * add the position of point i times scale to the sum at sum[sumOffset]
+	 * @param i
+	 * @param sum
+	 * @param sumOffset
+	 * @param scale
+	 */
+	public void accumulate(int i, double[] sum, int sumOffset, double scale) {
+		if (single) {
+			Distance.accumulate(floatPositions, i * d, scale, sum, sumOffset, d);
+			return;
+		}
+		Distance.accumulate(positions, i * d, scale, sum, sumOffset, d);
+	}
+
+	/**
+	 * sum of all weights
+	 * @return
+	 */
+	public double totalWeight() {
+		double sum = 0;
+		for (int i = 0; i < size; i++) {
+			sum += weights[i];
+		}
+		return sum;
+	}
+
+	/**
+	 * point i as a new Point object
+	 * @param i
+	 * @return
+	 */
+	public Point toPoint(int i) {
+		double[] position = new double[d];
+		copyPosition(i, position);
+		return new Point(position, weights[i]);
+	}
+
+	/**
+	 * all points as new Point objects
+	 * @return
+	 */
+	public List<Point> toPoints() {
+		List<Point> points = new ArrayList<Point>(size);
+		for (int i = 0; i < size; i++) {
+			points.add(toPoint(i));
+		}
+		return points;
+	}
+}
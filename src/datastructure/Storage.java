@@ -0,0 +1,73 @@
+package datastructure;
+
+/**
+ * Where and in which precision the full coresets (tree buckets and cache
+ * entries) of a model are kept, fixed when the model is created
+ *
+ */
+public class Storage {
+	
+	// full coresets on the Java heap in double precision
+	public static final Storage HEAP = new Storage(false, false);
+	
+	// keep full coresets in direct buffers outside the Java heap,
+	// the heap only holds small handles
+	private final boolean offHeap;
+	
+	// store the positions of coresets (and of the blocks built from them
+	// for a query) as floats
+	private final boolean singlePrecision;
+	
+	/**
+	 * @param offHeap keep full coresets outside the Java heap
+	 * @param singlePrecision store the positions as floats
+	 */
+	public Storage(boolean offHeap, boolean singlePrecision) {
+		this.offHeap = offHeap;
+		this.singlePrecision = singlePrecision;
+	}
+	
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+	
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+	
+	/**
+	 * an empty block in the precision of the coresets
+	 * @param capacity expected number of points
+	 * @return
+	 */
+	public PointBlock newBlock(int capacity) {
+		return new PointBlock(capacity, singlePrecision);
+	}
+	
+	/**
+	 * store a full coreset, the block must not be modified afterwards
+	 * @param block
+	 * @return the block itself, or an off-heap copy of it
+	 */
+	public CoresetStore store(PointBlock block) {
+		if (offHeap) {
+			return OffHeapBlock.copyOf(block);
+		}
+		return block;
+	}
+	
+	/**
+	 * read a stored coreset as a heap block
+	 * @param store
+	 * @return the block itself, or a heap copy of an off-heap coreset
+	 */
+	public static PointBlock toBlock(CoresetStore store) {
+		if (store instanceof PointBlock) {
+			return (PointBlock) store;
+		}
+		PointBlock block = new PointBlock(store.size(), store.isSinglePrecision());
+		store.appendTo(block);
+		return block;
+	}
+	
+}
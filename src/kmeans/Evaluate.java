@@ -1,25 +1,73 @@
 package kmeans;
-import java.io.File;
 import java.util.List;
-import java.util.Scanner;
 
 import datastructure.Center;
+import datastructure.Distance;
 import datastructure.Point;
+import datastructure.PointBlock;
+import util.PointReader;
+import util.ReadData;
 
 public class Evaluate {
 	
 	/**
 	 * compute kmeans cost (within cluster sum of squares by cluster)
-	 * @param points 
+	 * Note: chunks of points run in parallel (see ParallelQuery),
+	 * their costs are summed in chunk order
+	 * @param points a list with random access (e.g. ArrayList)
 	 * @param centers cluster centers
 	 * @return kmeans cost
 	 */
-	public static double kmeansCost(List<Point> points, List<Center> centers) {
+	public static double kmeansCost(final List<Point> points, List<Center> centers) {
+		final double[] flatCenters = Distance.flatten(centers);
+		final int k = centers.size();
+		final double[] chunkCosts = new double[ParallelQuery.numChunks(points.size())];
+		ParallelQuery.forEachChunk(points.size(), new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				double cost = 0;
+				for (int i = from; i < to; i++) {
+					Point p = points.get(i);
+					// compute squared distance to the nearest center
+					cost += Distance.nearestDistance(p.position, 0, flatCenters, k, p.position.length) * p.weight;
+				}
+				chunkCosts[chunk] = cost;
+			}
+		});
         double cost = 0;
-        for (Point p : points) {
-        	// compute distance to the nearest center
-        	double minDist = p.getNearestDistance(centers);
-        	cost += minDist * minDist * p.weight;
+        for (double chunkCost : chunkCosts) {
+        	cost += chunkCost;
+        }
+        return cost;
+    } 
+	
+	
+	/**
+	 * compute kmeans cost (within cluster sum of squares by cluster)
+	 * Note: chunks of points run in parallel (see ParallelQuery),
+	 * their costs are summed in chunk order
+	 * @param points block of weighted points
+	 * @param centers cluster centers
+	 * @return kmeans cost
+	 */
+	public static double kmeansCost(final PointBlock points, final List<Center> centers) {
+		final double[] flatCenters = Distance.flatten(centers);
+		final int k = centers.size();
+		final double[] chunkCosts = new double[ParallelQuery.numChunks(points.size())];
+		ParallelQuery.forEachChunk(points.size(), new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				double cost = 0;
+				for (int i = from; i < to; i++) {
+					// compute squared distance to the nearest center
+					cost += points.nearestDistance(i, flatCenters, k) * points.weight(i);
+				}
+				chunkCosts[chunk] = cost;
+			}
+		});
+        double cost = 0;
+        for (double chunkCost : chunkCosts) {
+        	cost += chunkCost;
         }
         return cost;
     } 
@@ -36,26 +84,35 @@ public class Evaluate {
 	 * @throws Exception
 	 */
 	public static double evaluate(List<Center> clusters, String fileName, int numOfPoints) throws Exception {
+		return evaluate(clusters, new ReadData(fileName), numOfPoints);
+	}
+	
+	
+	/**
+	 * compute the kmeans cost, read points from the given reader
+	 * Note: the position buffer of the reader is used directly,
+	 * so no point is allocated with a reusing reader (e.g. MappedReadData)
+	 * @param clusters
+	 * @param reader
+	 * @param numOfPoints number of points to read
+	 * @return
+	 * @throws Exception
+	 */
+	public static double evaluate(List<Center> clusters, PointReader reader, int numOfPoints) throws Exception {
 		// number of points received
 		int numOfPointsRead = 0;
 		// k-means cost
 		double cost = 0.0;
-		Scanner scanner = new Scanner(new File(fileName));
+		double[] flatCenters = Distance.flatten(clusters);
+		int k = clusters.size();
 		
-		while (scanner.hasNextLine() && numOfPointsRead < numOfPoints) {
-			String str = scanner.nextLine();
-			String[] strs = str.split(",");
-			double[] pos = new double[strs.length];
-			for (int i=0; i<strs.length; i++) {
-				pos[i] = Double.parseDouble(strs[i]);
-			}
-			Point p = new Point(pos, 1);
+		while (reader.hasNextLine() && numOfPointsRead < numOfPoints) {
+			double[] position = reader.nextPosition();
 			
-            double minDist = p.getNearestDistance(clusters);
-            cost += minDist *  minDist;
+            cost += Distance.nearestDistance(position, 0, flatCenters, k, position.length);
             numOfPointsRead++;
         }
-		scanner.close();
+		reader.close();
         return cost;
 	}
 }
@@ -0,0 +1,209 @@
+package kmeans;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+
+import datastructure.PointBlock;
+
+/**
+ * k-means|| seeding over weighted points
+ * (Scalable K-Means++, by Bahmani et al).
+ * Each round samples every point independently with probability
+ * oversampling * k * cost(point) / cost(all points), so a round is one
+ * parallel pass over chunks of the points (see ParallelQuery). The candidates
+ * of all rounds, weighted by their nearest points, are then reduced to k
+ * seeds by k-means++.
+ * Every chunk draws from its own random stream, seeded by the round and the
+ * chunk, so the seeds do not depend on the number of threads.
+ *
+ */
+public class KMeansParallel {
+
+	/**
+	 * k seeds by k-means||
+	 * @param points
+	 * @param k
+	 * @param oversampling expected number of candidates per round, times k
+	 * @param rounds
+	 * @param random
+	 * @return k seeds, weighted by the points nearest to them
+	 */
+	public static PointBlock seeding(final PointBlock points, int k, double oversampling, int rounds, Random random) {
+		if (points.size() < k) {
+			throw new NumberIsTooSmallException(points.size(), k, false);
+		}
+		final int n = points.size();
+		final PointBlock candidates = new PointBlock(Math.max(k, (int) (oversampling * k * rounds) + 1),
+				points.isSinglePrecision());
+
+		// choose the first candidate by the weights of the points
+		double r = points.totalWeight() * random.nextDouble();
+		int first = n - 1;
+		double sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += points.weight(i);
+			if (sum >= r) {
+				first = i;
+				break;
+			}
+		}
+		candidates.addPoint(points, first);
+
+		// nearest candidate of each point and the squared distance to it
+		final int[] nearest = new int[n];
+		final double[] minDistance = new double[n];
+		final double[] firstPosition = positions(candidates, 0, 1);
+		ParallelQuery.forEachChunk(n, new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++) {
+					minDistance[i] = points.squaredDistance(i, firstPosition);
+				}
+			}
+		});
+
+		final double expected = oversampling * k;
+		final boolean[] selected = new boolean[n];
+		for (int round = 0; round < rounds; round++) {
+			final double cost = cost(points, minDistance);
+			if (!(cost > 0)) {
+				// every point is a candidate already
+				break;
+			}
+
+			// sample the points of each chunk independently
+			final long roundSeed = random.nextLong();
+			ParallelQuery.forEachChunk(n, new ParallelQuery.ChunkTask() {
+				@Override
+				public void run(int chunk, int from, int to) {
+					SplittableRandom chunkRandom = new SplittableRandom(roundSeed + chunk);
+					for (int i = from; i < to; i++) {
+						double p = expected * points.weight(i) * minDistance[i] / cost;
+						selected[i] = chunkRandom.nextDouble() < p;
+					}
+				}
+			});
+			final int newFrom = candidates.size();
+			for (int i = 0; i < n; i++) {
+				if (selected[i]) {
+					candidates.addPoint(points, i);
+				}
+			}
+			final int numNew = candidates.size() - newFrom;
+			if (numNew == 0) {
+				continue;
+			}
+
+			// distances to the new candidates
+			final double[] newPositions = positions(candidates, newFrom, candidates.size());
+			final int d = points.dimension();
+			ParallelQuery.forEachChunk(n, new ParallelQuery.ChunkTask() {
+				@Override
+				public void run(int chunk, int from, int to) {
+					for (int i = from; i < to; i++) {
+						for (int c = 0; c < numNew; c++) {
+							double distance = points.squaredDistance(i, newPositions, c * d, minDistance[i]);
+							if (distance < minDistance[i]) {
+								minDistance[i] = distance;
+								nearest[i] = newFrom + c;
+							}
+						}
+					}
+				}
+			});
+		}
+
+		int m = candidates.size();
+		if (m <= k) {
+			// too few candidates: add the missing seeds by D^2 sampling, then
+			// weight all the seeds by their nearest points
+			KMeansPlusPlus.addSeeds(points, candidates, k - m, random);
+			weightByNearest(points, candidates);
+			return candidates;
+		}
+
+		// weight of each candidate: total weight of its nearest points
+		double[] candidateWeights = new double[m];
+		for (int i = 0; i < n; i++) {
+			candidateWeights[nearest[i]] += points.weight(i);
+		}
+		for (int c = 0; c < m; c++) {
+			candidates.setWeight(c, candidateWeights[c]);
+		}
+
+		// recluster the weighted candidates to k seeds
+		return KMeansPlusPlus.kMeansPlusPlusSeeding(candidates, k, random);
+	}
+
+	/**
+	 * set the weight of each seed to the total weight of its nearest points
+	 */
+	private static void weightByNearest(final PointBlock points, PointBlock seeds) {
+		final int n = points.size();
+		final int numSeeds = seeds.size();
+		final double[] seedPositions = positions(seeds, 0, numSeeds);
+		final int d = points.dimension();
+		final int[] nearest = new int[n];
+		ParallelQuery.forEachChunk(n, new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				for (int i = from; i < to; i++) {
+					double minDistance = points.squaredDistance(i, seedPositions, 0);
+					for (int c = 1; c < numSeeds; c++) {
+						double distance = points.squaredDistance(i, seedPositions, c * d, minDistance);
+						if (distance < minDistance) {
+							minDistance = distance;
+							nearest[i] = c;
+						}
+					}
+				}
+			}
+		});
+		double[] seedWeights = new double[numSeeds];
+		for (int i = 0; i < n; i++) {
+			seedWeights[nearest[i]] += points.weight(i);
+		}
+		for (int c = 0; c < numSeeds; c++) {
+			seeds.setWeight(c, seedWeights[c]);
+		}
+	}
+
+	/**
+	 * weighted cost of the points, summed per chunk and combined in chunk order
+	 */
+	private static double cost(final PointBlock points, final double[] minDistance) {
+		final double[] chunkCosts = new double[ParallelQuery.numChunks(points.size())];
+		ParallelQuery.forEachChunk(points.size(), new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				double cost = 0;
+				for (int i = from; i < to; i++) {
+					cost += minDistance[i] * points.weight(i);
+				}
+				chunkCosts[chunk] = cost;
+			}
+		});
+		double cost = 0;
+		for (double chunkCost : chunkCosts) {
+			cost += chunkCost;
+		}
+		return cost;
+	}
+
+	/**
+	 * positions of points from to to-1 of the block in one array
+	 */
+	private static double[] positions(PointBlock b, int from, int to) {
+		int d = b.dimension();
+		double[] flat = new double[(to - from) * d];
+		double[] position = new double[d];
+		for (int i = from; i < to; i++) {
+			b.copyPosition(i, position);
+			System.arraycopy(position, 0, flat, (i - from) * d, d);
+		}
+		return flat;
+	}
+
+}
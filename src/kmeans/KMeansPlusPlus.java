@@ -1,21 +1,48 @@
 package kmeans;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
 
-import org.apache.commons.math3.exception.ConvergenceException;
 import org.apache.commons.math3.exception.NumberIsTooSmallException;
-import org.apache.commons.math3.exception.util.LocalizedFormats;
-import org.apache.commons.math3.stat.descriptive.moment.Variance;
-import org.apache.commons.math3.util.Pair;
 
 import datastructure.Center;
 import datastructure.Point;
+import datastructure.PointBlock;
 
 
 public class KMeansPlusPlus {
 
+	// Lloyd workspace of each thread, reused across queries
+	private static final ThreadLocal<LloydWorkspace> WORKSPACE = new ThreadLocal<LloydWorkspace>() {
+		@Override
+		protected LloydWorkspace initialValue() {
+			return new LloydWorkspace();
+		}
+	};
+	
+	// fast seeding tree of each thread, reused across calls
+	private static final ThreadLocal<SeedingTree> SEEDING_TREE = new ThreadLocal<SeedingTree>() {
+		@Override
+		protected SeedingTree initialValue() {
+			return new SeedingTree();
+		}
+	};
+	
+	// weighted sampler of each thread (k-means++ seeding, mini-batches), reused across calls
+	static final ThreadLocal<WeightedSampler> SAMPLER = new ThreadLocal<WeightedSampler>() {
+		@Override
+		protected WeightedSampler initialValue() {
+			return new WeightedSampler();
+		}
+	};
+	
+	// the distance to a new seed is abandoned beyond cost/weight times this,
+	// far above rounding errors, so the split of the leaf is unchanged
+	private static final double ABANDON_SLACK = 1 + 1e-9;
 	
 	/**
 	 * run multiple kmeans++ to select the best k centers 
@@ -28,25 +55,163 @@ public class KMeansPlusPlus {
 	 * @return
 	 */
 	public static List<Center> multiKMeansPlusPlus(List<Point> points, int k, int maxIterations, int numTrials) {
+		return multiKMeansPlusPlus(PointBlock.of(points), k, maxIterations, numTrials);
+	}
+	
+	
+	/**
+	 * run multiple kmeans++ to select the best k centers 
+	 * 
+	 * @param points input points to be clustered (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param numTrials
+	 * @param config query options (e.g. parallel trials, seed)
+	 * @return
+	 */
+	public static List<Center> multiKMeansPlusPlus(List<Point> points, int k, int maxIterations, int numTrials,
+			QueryConfig config) {
+		return multiKMeansPlusPlus(PointBlock.of(points), k, maxIterations, numTrials, config);
+	}
+	
+	
+	/**
+	 * run multiple kmeans++ to select the best k centers 
+	 * 
+	 * @param points input points to be clustered (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param numTrials
+	 * @return
+	 */
+	public static List<Center> multiKMeansPlusPlus(PointBlock points, int k, int maxIterations, int numTrials) {
+		return multiKMeansPlusPlus(points, k, maxIterations, numTrials, new QueryConfig());
+	}
+	
+	
+	/**
+	 * run multiple kmeans++ to select the best k centers 
+	 * 
+	 * @param points input points to be clustered (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param numTrials
+	 * @param config query options of the clustering method
+	 * @return
+	 */
+	public static List<Center> multiKMeansPlusPlus(final PointBlock points, final int k, final int maxIterations,
+			int numTrials, final QueryConfig config) {
+		return multiKMeansPlusPlus(points, k, maxIterations, numTrials, config, QueryStats.NO_DEADLINE,
+				new QueryStats());
+	}
+	
+	
+	/**
+	 * run multiple kmeans++ to select the best k centers within a deadline
+	 * (anytime): a trial not started by the deadline is skipped, the first one
+	 * always runs unless a warm-started answer exists, a running trial stops
+	 * iterating at the deadline and competes with its current centers
+	 * Note: a seeding is not interrupted, the deadline is checked between iterations
+	 * 
+	 * @param points input points to be clustered (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param numTrials
+	 * @param config query options of the clustering method
+	 * @param deadline System.nanoTime() to stop at (see deadline), QueryStats.NO_DEADLINE for none
+	 * @param stats receives the trials and iterations of the query
+	 * @return
+	 */
+	public static List<Center> multiKMeansPlusPlus(final PointBlock points, final int k, final int maxIterations,
+			int numTrials, final QueryConfig config, final long deadline, final QueryStats stats) {
+		return multiKMeansPlusPlus(points, k, maxIterations, numTrials, config, null, deadline, stats);
+	}
+	
+	
+	/**
+	 * run multiple kmeans++ to select the best k centers within a deadline,
+	 * warm-started from the previous answer of a model if QueryConfig.warmStart is set
+	 * 
+	 * @param points input points to be clustered (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param numTrials
+	 * @param config query options of the clustering method
+	 * @param previous previous answer of the model, replaced by the answer (null: cold start)
+	 * @param deadline System.nanoTime() to stop at (see deadline), QueryStats.NO_DEADLINE for none
+	 * @param stats receives the trials and iterations of the query
+	 * @return
+	 */
+	public static List<Center> multiKMeansPlusPlus(final PointBlock points, final int k, final int maxIterations,
+			int numTrials, final QueryConfig config, WarmStart previous, final long deadline, final QueryStats stats) {
+		long start = System.nanoTime();
+		stats.reset();
+		SplittableRandom queryStream = queryStream(config);
+		
+		// warm start: one run from the previous answer, kept unless its cost regressed
+		boolean warmStart = config.warmStart && previous != null;
+		List<Center> warm = null;
+		double warmCost = Double.POSITIVE_INFINITY;
+		if (warmStart && previous.matches(k, points.dimension()) && points.size() >= k) {
+			warm = warmCluster(points, k, maxIterations, config, previous, queryStream.split(), deadline, stats);
+			warmCost = Evaluate.kmeansCost(points, warm);
+			double costPerWeight = warmCost / points.totalWeight();
+			if (costPerWeight <= previous.costPerWeight() * (1 + config.warmStartTolerance)) {
+				previous.set(warm, costPerWeight);
+				stats.finish(warmCost, System.nanoTime() - start);
+				return warm;
+			}
+		}
+		final boolean answered = warm != null;
+		
+		// one random stream per trial, split from the stream of the query
+		// before any trial runs, so a trial does not depend on the others
+		final SplittableRandom[] trialStreams = new SplittableRandom[numTrials];
+		for (int i = 0; i < numTrials; i++) {
+			trialStreams[i] = queryStream.split();
+		}
+		
+		final List<List<Center>> trials = new ArrayList<List<Center>>(Collections.<List<Center>>nCopies(numTrials, null));
+		final double[] costs = new double[numTrials];
+		ParallelQuery.IndexTask trial = new ParallelQuery.IndexTask() {
+			@Override
+			public void run(int i) {
+				if ((i > 0 || answered) && pastDeadline(deadline)) {
+					// out of time, the trial does not compete
+					costs[i] = Double.POSITIVE_INFINITY;
+					stats.skipped();
+					return;
+				}
+	            // compute a clusters list and its variance
+	            List<Center> clusters = cluster(points, k, maxIterations, config, trialStreams[i], deadline, stats);
+	            costs[i] = Evaluate.kmeansCost(points, clusters);
+	            trials.set(i, clusters);
+			}
+		};
+		if (config.parallelTrials) {
+			ParallelQuery.forEach(numTrials, trial);
+		}
+		else {
+			for (int i = 0; i < numTrials; i++) {
+				trial.run(i);
+			}
+		}
+		
 		// at first, we have not found any clusters list yet
-        List<Center> best = null;
-        double bestVarianceSum = Double.POSITIVE_INFINITY;
-
-        // do several clustering trials
+		// (or only the regressed warm-started one)
+        List<Center> best = warm;
+        double bestVarianceSum = warmCost;
         for (int i = 0; i < numTrials; i++) {
-
-            // compute a clusters list
-            List<Center> clusters = cluster(points, k, maxIterations);
-
-            // compute the variance of the current list
-            final double varianceSum = Evaluate.kmeansCost(points, clusters);
-
-            if (varianceSum < bestVarianceSum) {
+            if (costs[i] < bestVarianceSum) {
                 // this one is the best we have found so far, remember it
-                best = clusters;
-                bestVarianceSum = varianceSum;
+                best = trials.get(i);
+                bestVarianceSum = costs[i];
             }
         }
+        if (warmStart) {
+        	previous.set(best, bestVarianceSum / points.totalWeight());
+        }
+        stats.finish(bestVarianceSum, System.nanoTime() - start);
 
         // return the best clusters list found
         return best;
@@ -55,153 +220,255 @@ public class KMeansPlusPlus {
 	
 	/**
 	 * Runs the K-means++ clustering algorithm.
+	 * The Lloyd iterations run on the primitive arrays of a workspace
+	 * reused by the calling thread, no member list is built.
+	 * 
+	 * @param points the points to cluster (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @return a list of clusters containing the points
+	 */
+	public static List<Center> cluster(final PointBlock points, int k, int maxIterations) {
+		return cluster(points, k, maxIterations, new QueryConfig());
+	}
+	
+	
+	/**
+	 * Runs the K-means++ clustering algorithm.
+	 * 
+	 * @param points the points to cluster (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param config query options (e.g. the Lloyd mode)
+	 * @return a list of clusters containing the points
+	 */
+	public static List<Center> cluster(final PointBlock points, int k, int maxIterations, QueryConfig config) {
+		return cluster(points, k, maxIterations, config, queryStream(config).split());
+	}
+	
+	
+	/**
+	 * Runs the K-means++ clustering algorithm.
+	 * 
+	 * @param points the points to cluster (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param config query options (e.g. the Lloyd mode)
+	 * @param random random stream of this run (seeding and empty cluster splits)
+	 * @return a list of clusters containing the points
+	 */
+	public static List<Center> cluster(final PointBlock points, int k, int maxIterations, QueryConfig config,
+			SplittableRandom random) {
+		return cluster(points, k, maxIterations, config, random, QueryStats.NO_DEADLINE, new QueryStats());
+	}
+	
+	
+	/**
+	 * Runs the K-means++ clustering algorithm, the iterations stop at the deadline
 	 * 
 	 * @param points the points to cluster (weighted points)
 	 * @param k
 	 * @param maxIterations
+	 * @param config query options (e.g. the Lloyd mode)
+	 * @param random random stream of this run (seeding and empty cluster splits)
+	 * @param deadline System.nanoTime() to stop at
+	 * @param stats receives the iterations of the run
 	 * @return a list of clusters containing the points
 	 */
-	public static List<Center> cluster(final List<Point> points, int k, int maxIterations) {
+	private static List<Center> cluster(final PointBlock points, int k, int maxIterations, QueryConfig config,
+			SplittableRandom random, long deadline, QueryStats stats) {
 
 	        // number of clusters has to be smaller or equal the number of data points
 	        if (points.size() < k) {
 	            throw new NumberIsTooSmallException(points.size(), k, false);
 	        }
 
-	        // create the initial clusters (fast kmeans++ seeding)
-	        List<Point> seedingPoints = fastSeeding(points, k, new Random());
-	        List<Center> clusters = new ArrayList<Center>();
-	        for (Point p : seedingPoints) {
-	        	clusters.add(new Center(p));
+	        // create the initial clusters (fast, exact or k-means|| seeding)
+	        PointBlock seedingPoints = seed(points, k, config, new Random(random.nextLong()));
+	        return refine(points, seedingPoints, maxIterations, config, random, deadline, stats);
+	    }
+	
+	
+	/**
+	 * Runs the Lloyd iterations from the previous answer of the model, its lightest
+	 * centers (QueryConfig.reseedFraction of them) replaced by D^2 sampling
+	 * @param points the points to cluster (weighted points)
+	 * @param k
+	 * @param maxIterations
+	 * @param config
+	 * @param previous
+	 * @param random
+	 * @param deadline
+	 * @param stats
+	 * @return
+	 */
+	private static List<Center> warmCluster(final PointBlock points, int k, int maxIterations, QueryConfig config,
+			WarmStart previous, SplittableRandom random, long deadline, QueryStats stats) {
+		int reseed = Math.max(0, Math.min(k, (int) (config.reseedFraction * k)));
+		PointBlock seedingPoints = previous.heaviest(k - reseed);
+		addSeeds(points, seedingPoints, reseed, new Random(random.nextLong()));
+		return refine(points, seedingPoints, maxIterations, config, random, deadline, stats);
+	}
+	
+	
+	/**
+	 * k seeds of the points by the seeding of the config
+	 * @param points
+	 * @param k
+	 * @param config
+	 * @param random
+	 * @return
+	 */
+	private static PointBlock seed(PointBlock points, int k, QueryConfig config, Random random) {
+		if (config.seeding == QueryConfig.Seeding.KMEANS_PLUS_PLUS) {
+			return kMeansPlusPlusSeeding(points, k, random);
+		}
+		if (config.seeding == QueryConfig.Seeding.KMEANS_PARALLEL) {
+			return KMeansParallel.seeding(points, k, config.oversampling, config.seedingRounds, random);
+		}
+		return fastSeeding(points, k, random);
+	}
+	
+	
+	/**
+	 * refine the seeds by Lloyd iterations (or mini-batches, see QueryConfig.solver)
+	 * The Lloyd iterations run on the primitive arrays of a workspace
+	 * reused by the calling thread, no member list is built.
+	 * They stop when no point changes its cluster, when the cost drops by at most
+	 * QueryConfig.costTolerance of it, or at the deadline (the current centers
+	 * are returned, Lloyd iterations never increase the cost).
+	 * @param points the points to cluster (weighted points)
+	 * @param seedingPoints initial centers
+	 * @param maxIterations
+	 * @param config
+	 * @param random
+	 * @param deadline System.nanoTime() to stop at
+	 * @param stats receives the iterations of the run
+	 * @return
+	 */
+	private static List<Center> refine(final PointBlock points, PointBlock seedingPoints, int maxIterations,
+			QueryConfig config, SplittableRandom random, long deadline, QueryStats stats) {
+	        int k = seedingPoints.size();
+	        if (config.solver == QueryConfig.Solver.MINI_BATCH && points.size() >= config.miniBatchMinPoints) {
+	        	return MiniBatchKMeans.cluster(points, seedingPoints, config.miniBatchSize, config.miniBatchIterations,
+	        			new Random(random.nextLong()), deadline, stats);
 	        }
-
-	        // create an array containing the latest assignment of a point to a cluster
-	        int[] assignments = new int[points.size()];
-	        assignPointsToClusters(clusters, points, assignments);
-
-	        // iterate through updating the centers until we're done
-	        final int max = Math.min(30, maxIterations);
-	        for (int count = 0; count < max; count++) {
-	            boolean emptyCluster = false;
-	            List<Center> newClusters = new ArrayList<Center>();
-	            for (final Center cluster : clusters) {
-	                final Center newCenter;
-	                if (cluster.members.isEmpty()) {
-	                	// split the largest variance cluster
-	                    Point newPoint = getPointFromLargestVarianceCluster(clusters, new Random());
-	                    newCenter = new Center(newPoint);
-	                    emptyCluster = true;
-	                } else {
-	                	// compute centroid of member points in the cluster
-	                    newCenter = centroidOf(cluster.members, cluster.position.length);
-	                }
-	                newClusters.add(new Center(newCenter));
-	            }
-	            int changes = assignPointsToClusters(newClusters, points, assignments);
-	            clusters = newClusters;
-
-	            // if there were no more changes in the point-to-cluster assignment
-	            // and there are no empty clusters left, return the current clusters
-	            if (changes == 0 && !emptyCluster) {
-	                return clusters;
-	            }
+	        LloydWorkspace workspace = WORKSPACE.get();
+	        if (workspace.inUse) {
+	        	// a trial stolen by this thread while it waits for the chunks of its own trial
+	        	workspace = new LloydWorkspace();
+	        }
+	        workspace.inUse = true;
+	        try {
+		        workspace.random.setSeed(random.nextLong());
+		        workspace.reset(points.size(), k, points.dimension(), config.lloydMode);
+		        workspace.setCenters(seedingPoints);
+	
+		        boolean withTolerance = config.costTolerance > 0;
+		        if (withTolerance) {
+		        	workspace.computeSquareSum(points);
+		        }
+	
+		        // the workspace keeps the latest assignment of a point to a cluster
+		        workspace.assign(points);
+		        double cost = withTolerance ? workspace.cost() : 0;
+	
+		        // iterate through updating the centers until we're done
+		        final int max = Math.min(30, maxIterations);
+		        int count = 0;
+		        boolean cutShort = false;
+		        while (count < max) {
+		            // out of time: the centroids of the current clusters are the best
+		            // of this run (the update alone is O(k*d) and never raises the cost)
+		            if (pastDeadline(deadline)) {
+		            	workspace.update(points);
+		            	cutShort = true;
+		            	break;
+		            }
+		            
+		            boolean emptyCluster = workspace.update(points);
+		            int changes = workspace.assign(points);
+		            count++;
+	
+		            // if there were no more changes in the point-to-cluster assignment
+		            // and there are no empty clusters left, return the current clusters
+		            if (changes == 0 && !emptyCluster) {
+		                break;
+		            }
+		            
+		            // same if the cost (of the clusters after the next update) barely dropped
+		            if (withTolerance) {
+		            	double newCost = workspace.cost();
+		            	boolean converged = !emptyCluster && cost - newCost <= config.costTolerance * cost;
+		            	cost = newCost;
+		            	if (converged) {
+		            		break;
+		            	}
+		            }
+		        }
+		        stats.addTrial(count, cutShort);
+		        return workspace.toCenters();
+	        }
+	        finally {
+	        	workspace.inUse = false;
 	        }
-	        return clusters;
 	    }
 	
 	
 	/**
-     * Adds the given points to the closest cluster.
-     *
-     * @param clusters the centers to add the points to
-     * @param points the points to add to the given clusters
-     * @param assignments points assignments to clusters
-     * @return the number of points assigned to different clusters as the iteration before
-     */
-	private static int assignPointsToClusters(final List<Center> clusters, final List<Point> points,
-			final int[] assignments) {
-		int assignedDifferently = 0;
-		int pointIndex = 0;
-		for (final Point p : points) {
-			int clusterIndex = p.getNearestCluster(clusters);
-			if (clusterIndex != assignments[pointIndex]) {
-				assignedDifferently++;
+	 * deadline of a query that may take timeBudgetMillis from now
+	 * @param timeBudgetMillis
+	 * @return System.nanoTime() to stop at, QueryStats.NO_DEADLINE if it does not fit in a long
+	 */
+	public static long deadline(long timeBudgetMillis) {
+		long now = System.nanoTime();
+		long budget = TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis);
+		long deadline = now + budget;
+		return deadline < now ? QueryStats.NO_DEADLINE : deadline;
+	}
+	
+	
+	/**
+	 * whether the deadline has passed
+	 * @param deadline System.nanoTime() to stop at
+	 * @return
+	 */
+	static boolean pastDeadline(long deadline) {
+		return deadline != QueryStats.NO_DEADLINE && System.nanoTime() >= deadline;
+	}
+	
+	
+	/**
+	 * random stream of a query, seeded by config.seed if set
+	 * @param config
+	 * @return
+	 */
+	private static SplittableRandom queryStream(QueryConfig config) {
+		return config.seed == null ? new SplittableRandom() : new SplittableRandom(config.seed);
+	}
+	
+	
+	/**
+	 * returns the nearest center to point i of the block
+	 * @param points
+	 * @param i
+	 * @param centers
+	 * @return
+	 */
+	public static int getNearestCluster(final PointBlock points, int i, final List<Center> centers) {
+		double minDistance = Double.POSITIVE_INFINITY;
+		int minCluster = 0;
+		for (int c = 0; c < centers.size(); c++) {
+			double distance = points.squaredDistance(i, centers.get(c).position, 0, minDistance);
+			if (distance < minDistance) {
+				minDistance = distance;
+				minCluster = c;
 			}
-
-			Center cluster = clusters.get(clusterIndex);
-			cluster.addMemberPoint(p);
-			assignments[pointIndex++] = clusterIndex;
 		}
-
-		return assignedDifferently;
+		return minCluster;
 	}
     
     
-    /**
-     * Computes the centroid for a set of points.
-     *
-     * @param points the set of points (weighted points)
-     * @param dimension the point dimension
-     * @return the computed centroid for the set of points
-     */
-    private static Center centroidOf(final List<Point> points, final int dimension) {
-        double[] centroid = new double[dimension];
-        double weight = 0;
-        for (final Point p : points) {
-            final double[] pos = p.getPoint();
-            for (int i = 0; i < centroid.length; i++) {
-                centroid[i] += pos[i] * p.weight;
-            }
-            weight += p.weight;
-        }
-        // normalize
-        for (int i = 0; i < centroid.length; i++) {
-            centroid[i] /= weight;
-        }
-        return new Center(centroid, weight);
-    }
-    
-    
-    /**
-     * Get a random point from the cluster with the largest distance variance.
-     *
-     * @param clusters the clusters to search
-     * @return a random point from the selected cluster
-     * @throws ConvergenceException if clusters are all empty
-     */
-    private static Point getPointFromLargestVarianceCluster(final List<Center> clusters, Random random)
-            throws ConvergenceException {
-
-        double maxVariance = Double.NEGATIVE_INFINITY;
-        Center selected = null;
-        for (final Center cluster : clusters) {
-            if (!cluster.members.isEmpty()) {
-                // compute the distance variance of the current cluster
-                final Variance stat = new Variance();
-                for (final Point point : cluster.members) {
-                    stat.increment(point.euclidDistTo(cluster) * point.weight);
-                }
-                final double variance = stat.getResult();
-
-                // select the cluster with the largest variance
-                if (variance > maxVariance) {
-                    maxVariance = variance;
-                    selected = cluster;
-                }
-            }
-        }
-
-        // did we find at least one non-empty cluster?
-        if (selected == null) {
-            throw new ConvergenceException(LocalizedFormats.EMPTY_CLUSTER_IN_K_MEANS);
-        }
-
-        // extract a random point from the cluster
-        final List<Point> selectedPoints = selected.members;
-        return selectedPoints.remove(random.nextInt(selectedPoints.size()));
-    }
-
-    
     /**
 	 * fast D^2 sampling acceleration by coreset tree
 	 * Note our input points are weighted
@@ -212,200 +479,230 @@ public class KMeansPlusPlus {
 	 * @return
 	 */
 
-    public static List<Point> fastSeeding(final List<Point> points, int m, Random randSeed) {
+    public static PointBlock fastSeeding(final PointBlock points, int m, Random randSeed) {
+    	return fastSeeding(points, m, randSeed, new PointBlock(m, points.isSinglePrecision()));
+    }
+    
+    
+    /**
+     * fast D^2 sampling, the m seeds are added to resultSet
+     * (e.g. a recycled block, see datastructure.BlockPool)
+     * @param points
+     * @param m
+     * @param randSeed
+     * @param resultSet
+     * @return resultSet
+     */
+    public static PointBlock fastSeeding(final PointBlock points, int m, Random randSeed, PointBlock resultSet) {
 		if (points.size() < m) {
 			throw new NumberIsTooSmallException(points.size(), m, false);
 		}
+		int n = points.size();
+		SeedingTree tree = SEEDING_TREE.get();
+		tree.reset(n, m, points.dimension());
+		int[] members = tree.members;
+		double[] costs = tree.costs;
+		double[] prefix = tree.prefix;
 
 		// choose first center uniformly at random from points
         // Note: as each input point is weighted, we sample by each point's weight,
 		// so higher weight means higher probability to be selected
 		double sumOfWeights = 0;
-		double[] pointWeights = new double[points.size()];
-		for (int i=0; i<points.size(); i++) {
-    		pointWeights[i] = points.get(i).weight;
-    		sumOfWeights += pointWeights[i];
+		for (int i=0; i<n; i++) {
+    		sumOfWeights += points.weight(i);
+    		prefix[i] = sumOfWeights;
     	}
-		int firstCenterIndex = sampleByWeight(pointWeights, sumOfWeights * randSeed.nextDouble());
-		Point firstCenter = points.get(firstCenterIndex);
+		int firstCenterIndex = sampleByPrefix(prefix, 0, n, sumOfWeights * randSeed.nextDouble());
+		points.copyPosition(firstCenterIndex, tree.position);
 		
-		// create first center and root node
-		TreeNode root = new TreeNode(firstCenter); 
+		// create root node, all the points but the one selected as center are members
 		double sumOfCost = 0;
-		for (int i=0; i<points.size(); i++) {
+		int numMembers = 0;
+		for (int i=0; i<n; i++) {
 			if (i == firstCenterIndex) {
 				continue;
 			}
-			// Note: we can have a shallow copy here
-			Point p = points.get(i);
-			// distance to new center
-			double dist2Center = p.euclidDistTo(firstCenter);  
 			// weighted-cost (D^2) to new center
-			double cost = dist2Center * dist2Center * p.weight;
+			double cost = points.squaredDistance(i, tree.position) * points.weight(i);
 			sumOfCost += cost;
-			Pair<Point, Double> pair = new Pair<>(p, cost);
-			root.members.add(pair);
+			members[numMembers] = i;
+			costs[numMembers] = cost;
+			prefix[numMembers] = sumOfCost;
+			numMembers++;
 		}
-		root.weight = sumOfCost;
-		// all the points remove one selected as center
-		root.numMembers = points.size() - 1;
+		tree.addLeaf(firstCenterIndex, 0, numMembers, sumOfCost, -1);
 
 		// generate 2 to m centers
 		int numOfCenters = 1;
 		while (numOfCenters < m) {
 			// find leaf node
-			TreeNode node = root;
-			while (node.left != null && node.right != null) {
+			int node = 0;
+			while (tree.left[node] >= 0) {
+				int left = tree.left[node];
+				int right = tree.right[node];
 				// first check if left child or right child has a 
 				// "free" member point (not assigned as center),
 				// if not, we should choose the other child anyway :(
-				if (node.left.numMembers == 0) {
-					node = node.right;
+				if (tree.numMembers[left] == 0) {
+					node = right;
 					continue;
 				}
-				if (node.right.numMembers == 0) {
-					node = node.left;
+				if (tree.numMembers[right] == 0) {
+					node = left;
 					continue;
 				}
 				
-				double leftNodeWeight = node.left.weight;
-				double rightNodeWeight = node.right.weight;
+				double leftNodeWeight = tree.weight[left];
+				double rightNodeWeight = tree.weight[right];
 				// sample by weights of two child nodes
 				if (randSeed.nextDouble() < (leftNodeWeight / (leftNodeWeight + rightNodeWeight))) {
-					node = node.left;
+					node = left;
 				}
 				else {
-					node = node.right;
+					node = right;
 				}
 			}
 			
-			// choose one point in the leaf node P_l based on 
-			// the D^2 sampling to the center of P_l
-			Point leafCenter = node.center;
-			List<Pair<Point, Double>> leafPoints = node.members;
-			
-			// compute weighted-squared-distance to the center,
-			// which is equal to the cost to the center and we
-			// have already computed
-			double distSqSum = node.weight;
-	        double[] squaredDist = new double[leafPoints.size()];
-	        for (int i = 0; i < leafPoints.size(); i++) {
-	        	squaredDist[i] = leafPoints.get(i).getSecond();
-            }
-            
-            // sample next center
-            int nextCenterIndex = sampleByWeight(squaredDist, distSqSum * randSeed.nextDouble());
-			Point nextCenter = leafPoints.get(nextCenterIndex).getFirst();
+			// choose one point in the leaf node P_l based on the D^2 sampling
+			// to the center of P_l, the weighted-squared-distances are the costs
+			// of the members we have already computed (and summed up)
+            int nextCenterIndex = sampleByPrefix(prefix, tree.from[node], tree.to[node],
+            		tree.weight[node] * randSeed.nextDouble());
 			
-			// generate left child TreeNode with previous leaf center (see Fig 2. in the paper)
-			TreeNode leftChildNode = new TreeNode(leafCenter);
-			// generate right child TreeNode with new center
-			TreeNode rightChildNode = new TreeNode(nextCenter);
-			double leftChildWeight = 0;
-			double rightChildWeight = 0;
-			for (int i=0; i<leafPoints.size(); i++) {
-				if (i == nextCenterIndex) {
-					continue;
-				}
-				
-				// cost to the previous center is already computed
-				Point p = leafPoints.get(i).getFirst();
-				double cost = leafPoints.get(i).getSecond();
-				// compute weighted-cost of each point to the new center
-				double dist2Center = p.euclidDistTo(nextCenter);
-				double cost2Center = dist2Center * dist2Center * p.weight;
-				if (cost < cost2Center) {
-					// add point p to left child TreeNode
-					// shallow copy
-					leftChildNode.members.add(new Pair<Point, Double>(p, cost));
-					leftChildWeight += cost;
-				}
-				else {
-					// add point p to right child TreeNode
-					// shallow copy
-					rightChildNode.members.add(new Pair<Point, Double>(p, cost2Center));
-					rightChildWeight += cost2Center;
-				}
-			}
-			// assign weight and numMembers of two child nodes
-			leftChildNode.weight = leftChildWeight;
-			leftChildNode.numMembers = leftChildNode.members.size();
-			
-			rightChildNode.weight = rightChildWeight;
-			rightChildNode.numMembers = rightChildNode.members.size();
-			
-			// link tree nodes
-			node.left = leftChildNode;
-			node.right = rightChildNode;
-			leftChildNode.parent = node;
-			rightChildNode.parent = node;
-			
-			// propagate update of weight and numMembers attribute upwards to node root
-			while (node != null) {
-				// weight attribute of an inner node is defined as 
-				// the sum of the weights of its child nodes
-				node.weight = node.left.weight + node.right.weight;
-				node.numMembers--;  // one member point has been selected as center
-				node = node.parent;
-			}
+			// left child keeps the leaf center, right child gets the new center
+			// (see Fig 2. in the paper)
+			tree.split(points, node, nextCenterIndex, ABANDON_SLACK);
 			
 			// new center found (Don't forget)
 			numOfCenters++;
 		}
 		
 		// all leaf nodes in the tree are centers
-		List<Point> resultSet = new ArrayList<Point>();
-		dfs(root, resultSet);
+		tree.collect(points, resultSet);
 		return resultSet;
 	}
 	
 	
 	/**
-	 * sum through the nums, stopping when sum >= r.
-	 * @param nums
-	 * @param r
-	 * @return
+	 * k-means++ seeding: D^2 sampling over all points, a draw and the update
+	 * of the cost of a point take O(log n) (see WeightedSampler)
+	 * Note our input points are weighted
+	 * @param points
+	 * @param k
+	 * @param random
+	 * @return k seeds, weighted by the weights of the points
 	 */
-	private static int sampleByWeight(double[] nums, double r) {
-		double sum = 0.0;
-		for (int i=0; i<nums.length; i++) {
-			sum += nums[i];
-			if (sum >= r) {
-				return i;
-			}
+	public static PointBlock kMeansPlusPlusSeeding(final PointBlock points, int k, Random random) {
+		if (points.size() < k) {
+			throw new NumberIsTooSmallException(points.size(), k, false);
 		}
-		// the point wasn't found in the previous for loop, 
-		// probably because distances are extremely small.  
-		// Just pick the last available point.
-		return (nums.length-1);
+		PointBlock seeds = new PointBlock(k, points.isSinglePrecision());
+		addSeeds(points, seeds, k, random);
+		return seeds;
 	}
 	
 	
 	/**
-	 * retrieve all leaf nodes centers
-	 * Note: we can not have a shallow copy for returned center
-	 * @param node
-	 * @param resultSet
+	 * add count seeds by D^2 sampling, the distances are to the seeds
+	 * already in the block (the first seed is sampled by weight if it is empty)
+	 * @param points
+	 * @param seeds
+	 * @param count
+	 * @param random
 	 */
-	private static void dfs(TreeNode node, List<Point> resultSet) {
-		if (node == null) {
+	static void addSeeds(final PointBlock points, PointBlock seeds, int count, Random random) {
+		if (count == 0) {
 			return;
 		}
+		int n = points.size();
+		int d = points.dimension();
+		WeightedSampler sampler = SAMPLER.get();
+		sampler.reset(n);
+		double[] position = new double[d];
+		// squared distance of each point to its nearest seed, and its weighted cost
+		double[] minDistance = new double[n];
+		double[] costs = new double[n];
 		
-		// leaf node
-		if (node.left==null && node.right==null) {
-			double weight = node.center.weight;
-			for (Pair<Point, Double> pair : node.members) {
-				weight += pair.getFirst().weight;
+		if (seeds.isEmpty()) {
+			// choose first center by the weights of the points
+			for (int i = 0; i < n; i++) {
+				costs[i] = points.weight(i);
 			}
-			Point center = new Point(node.center.position, weight);
-			resultSet.add(center);
-			return;
+			sampler.setAll(costs);
+			int first = sampler.sample(random);
+			if (first < 0) {
+				first = random.nextInt(n);
+			}
+			seeds.addPoint(points, first);
+			points.copyPosition(first, position);
+			for (int i = 0; i < n; i++) {
+				minDistance[i] = points.squaredDistance(i, position);
+			}
+			count--;
 		}
+		else {
+			double[] flatSeeds = new double[seeds.size() * d];
+			for (int c = 0; c < seeds.size(); c++) {
+				seeds.copyPosition(c, position);
+				System.arraycopy(position, 0, flatSeeds, c * d, d);
+			}
+			for (int i = 0; i < n; i++) {
+				minDistance[i] = points.nearestDistance(i, flatSeeds, seeds.size());
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			costs[i] = minDistance[i] * points.weight(i);
+		}
+		sampler.setAll(costs);
 		
-		// inner node
-		dfs(node.left, resultSet);
-		dfs(node.right, resultSet);
+		// generate the other centers
+		for (int c = 0; c < count; c++) {
+			int next = sampler.sample(random);
+			if (next < 0) {
+				// all points are at a seed already
+				next = random.nextInt(n);
+			}
+			seeds.addPoint(points, next);
+			points.copyPosition(next, position);
+			// only the points nearer to the new seed change their cost
+			for (int i = 0; i < n; i++) {
+				double distance = points.squaredDistance(i, position, 0, minDistance[i]);
+				if (distance < minDistance[i]) {
+					minDistance[i] = distance;
+					sampler.set(i, distance * points.weight(i));
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * first index in [from, to) whose running sum reaches r (binary search,
+	 * same index as summing through the weights, stopping when sum >= r)
+	 * @param prefix running sums of non-negative weights
+	 * @param from
+	 * @param to
+	 * @param r
+	 * @return
+	 */
+	private static int sampleByPrefix(double[] prefix, int from, int to, double r) {
+		int lo = from;
+		int hi = to - 1;
+		// the point is not found if distances are extremely small,
+		// just pick the last available point then
+		if (!(prefix[hi] >= r)) {
+			return hi;
+		}
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (prefix[mid] >= r) {
+				hi = mid;
+			}
+			else {
+				lo = mid + 1;
+			}
+		}
+		return lo;
 	}
 	
 }
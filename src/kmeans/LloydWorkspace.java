@@ -0,0 +1,620 @@
+package kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.exception.ConvergenceException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+
+import datastructure.Center;
+import datastructure.Distance;
+import datastructure.PointBlock;
+
+/**
+ * Working arrays of the Lloyd iterations: centers and, for each cluster,
+ * the weighted sum of its points, their weight, their number and the
+ * running variance of their weighted distances to the center.
+ * The arrays only grow, so one workspace is reused across iterations
+ * and queries (one per thread, see KMeansPlusPlus.cluster).
+ * The assignment runs over chunks of points (see ParallelQuery), each chunk
+ * accumulates into its own partial, partials are combined in chunk order.
+ * In HAMERLY mode each point also keeps an upper bound of the distance to its
+ * center and a lower bound of the distance to any other center, a point is
+ * only compared with all centers when its bounds overlap.
+ *
+ */
+class LloydWorkspace {
+
+	// relative margin on the bounds, covers rounding of the bound updates
+	private static final double BOUND_EPSILON = 1e-9;
+
+	int k;
+
+	int d;
+
+	QueryConfig.LloydMode mode;
+
+	// center c is centers[c*d, (c+1)*d)
+	double[] centers;
+
+	// weight of each center (weight of its cluster when it was computed)
+	double[] centerWeights;
+
+	// weighted sum of the points assigned to cluster c, sums[c*d, (c+1)*d)
+	double[] sums;
+
+	// total weight and number of points assigned to each cluster
+	double[] clusterWeights;
+	int[] counts;
+
+	// mean and sum of squared deviations (Welford) of the weighted distances
+	// of the points to their center, for the variance of each cluster
+	double[] distMean;
+	double[] distM2;
+
+	// cluster of each point
+	int[] assignments;
+
+	// points taken by the splits of the current update
+	int[] taken;
+
+	// Hamerly bounds of each point (valid after the first assignment)
+	double[] upper;
+	double[] lower;
+	boolean boundsValid;
+
+	// centers before the update, distance each center moved in the update
+	double[] oldCenters;
+	double[] drift;
+
+	// largest drift, its center, and the largest drift of the other centers
+	double maxDrift;
+	int maxDriftCenter;
+	double secondMaxDrift;
+
+	// half the distance of each center to its closest other center
+	double[] halfSeparation;
+
+	// weighted sum of the squared norms of the points (see cost)
+	double squareSum;
+
+	// distMean and distM2 match the current assignment
+	// (only maintained by the assignment in STANDARD mode)
+	boolean statsValid;
+
+	// partial accumulators of each chunk
+	private Partial[] partials = new Partial[0];
+
+	// position of one point
+	private double[] position;
+
+	final Random random = new Random();
+
+	// set while a run of KMeansPlusPlus.cluster uses this workspace
+	boolean inUse;
+
+	/**
+	 * make room for n points, k centers of dimension d
+	 * @param n
+	 * @param k
+	 * @param d
+	 * @param mode
+	 */
+	void reset(int n, int k, int d, QueryConfig.LloydMode mode) {
+		this.k = k;
+		this.d = d;
+		this.mode = mode;
+		if (centers == null || centers.length < k * d) {
+			centers = new double[k * d];
+			sums = new double[k * d];
+			oldCenters = new double[k * d];
+		}
+		if (counts == null || counts.length < k) {
+			centerWeights = new double[k];
+			clusterWeights = new double[k];
+			counts = new int[k];
+			distMean = new double[k];
+			distM2 = new double[k];
+			taken = new int[k];
+			drift = new double[k];
+			halfSeparation = new double[k];
+		}
+		if (position == null || position.length < d) {
+			position = new double[d];
+		}
+		if (assignments == null || assignments.length < n) {
+			assignments = new int[n];
+		}
+		Arrays.fill(assignments, 0, n, 0);
+		if (mode == QueryConfig.LloydMode.HAMERLY && (upper == null || upper.length < n)) {
+			upper = new double[n];
+			lower = new double[n];
+		}
+		boundsValid = false;
+		statsValid = false;
+	}
+
+	/**
+	 * set the initial centers
+	 * @param seeds
+	 */
+	void setCenters(PointBlock seeds) {
+		for (int c = 0; c < k; c++) {
+			seeds.copyPosition(c, position);
+			System.arraycopy(position, 0, centers, c * d, d);
+			centerWeights[c] = seeds.weight(c);
+		}
+	}
+
+	/**
+	 * assign each point to its nearest center and accumulate the clusters
+	 * @param points
+	 * @return the number of points assigned to a different cluster than before
+	 */
+	int assign(final PointBlock points) {
+		final boolean hamerly = mode == QueryConfig.LloydMode.HAMERLY;
+		final boolean withBounds = hamerly && boundsValid;
+		int numChunks = resetPartials(points.size());
+		ParallelQuery.forEachChunk(points.size(), new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				if (withBounds) {
+					partials[chunk].assignWithBounds(points, from, to, LloydWorkspace.this);
+				}
+				else {
+					partials[chunk].assign(points, from, to, LloydWorkspace.this, hamerly);
+				}
+			}
+		});
+		boundsValid = hamerly;
+
+		// combine the partials in chunk order
+		Arrays.fill(sums, 0, k * d, 0);
+		Arrays.fill(clusterWeights, 0, k, 0);
+		int assignedDifferently = 0;
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			Partial partial = partials[chunk];
+			for (int j = 0; j < k * d; j++) {
+				sums[j] += partial.sums[j];
+			}
+			for (int c = 0; c < k; c++) {
+				clusterWeights[c] += partial.weights[c];
+			}
+			assignedDifferently += partial.changes;
+		}
+		combineStats(numChunks);
+		statsValid = !withBounds;
+		return assignedDifferently;
+	}
+
+	/**
+	 * weighted sum of the squared norms of the points, summed per chunk
+	 * and combined in chunk order (needed by cost)
+	 * @param points
+	 */
+	void computeSquareSum(final PointBlock points) {
+		final double[] chunkSums = new double[ParallelQuery.numChunks(points.size())];
+		final double[] origin = new double[d];
+		ParallelQuery.forEachChunk(points.size(), new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				double sum = 0;
+				for (int i = from; i < to; i++) {
+					sum += points.squaredDistance(i, origin) * points.weight(i);
+				}
+				chunkSums[chunk] = sum;
+			}
+		});
+		squareSum = 0;
+		for (double chunkSum : chunkSums) {
+			squareSum += chunkSum;
+		}
+	}
+
+	/**
+	 * k-means cost of the current assignment with each center at the centroid
+	 * of its cluster, in O(k*d): sum w*|x|^2 - sum |sum w*x|^2 / (sum w) over the
+	 * clusters (the cost after the next update, see computeSquareSum)
+	 * @return
+	 */
+	double cost() {
+		double cost = squareSum;
+		for (int c = 0; c < k; c++) {
+			if (clusterWeights[c] > 0) {
+				double norm = 0;
+				for (int j = 0; j < d; j++) {
+					norm += sums[c * d + j] * sums[c * d + j];
+				}
+				cost -= norm / clusterWeights[c];
+			}
+		}
+		return Math.max(0, cost);
+	}
+
+	/**
+	 * reset the partials of the chunks of n points
+	 * @param n
+	 * @return number of chunks
+	 */
+	private int resetPartials(int n) {
+		int numChunks = ParallelQuery.numChunks(n);
+		if (partials.length < numChunks) {
+			partials = Arrays.copyOf(partials, numChunks);
+		}
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			if (partials[chunk] == null) {
+				partials[chunk] = new Partial();
+			}
+			partials[chunk].reset(k, d);
+		}
+		return numChunks;
+	}
+
+	/**
+	 * combine the counts and variance statistics of the partials in chunk order
+	 * @param numChunks
+	 */
+	private void combineStats(int numChunks) {
+		Arrays.fill(counts, 0, k, 0);
+		Arrays.fill(distMean, 0, k, 0);
+		Arrays.fill(distM2, 0, k, 0);
+		for (int chunk = 0; chunk < numChunks; chunk++) {
+			Partial partial = partials[chunk];
+			for (int c = 0; c < k; c++) {
+				// combine the variance statistics (Chan et al.)
+				int na = counts[c];
+				int nb = partial.counts[c];
+				if (nb == 0) {
+					continue;
+				}
+				int n = na + nb;
+				double delta = partial.distMean[c] - distMean[c];
+				distMean[c] += delta * nb / n;
+				distM2[c] += partial.distM2[c] + delta * delta * ((double) na * nb / n);
+				counts[c] = n;
+			}
+		}
+	}
+
+	/**
+	 * compute the variance statistics of the current assignment
+	 * (the same values the STANDARD assignment accumulates)
+	 * @param points
+	 */
+	private void computeStats(final PointBlock points) {
+		int numChunks = resetPartials(points.size());
+		ParallelQuery.forEachChunk(points.size(), new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				partials[chunk].stats(points, from, to, LloydWorkspace.this);
+			}
+		});
+		combineStats(numChunks);
+		statsValid = true;
+	}
+
+	/**
+	 * remove point i from cluster c
+	 * @param dist weighted distance of the point to the center
+	 */
+	private void remove(PointBlock points, int i, int c, double dist) {
+		double w = points.weight(i);
+		points.accumulate(i, sums, c * d, -w);
+		clusterWeights[c] -= w;
+		int n = --counts[c];
+		if (n == 0) {
+			distMean[c] = 0;
+			distM2[c] = 0;
+			return;
+		}
+		double mean = distMean[c];
+		distMean[c] = (mean * (n + 1) - dist) / n;
+		distM2[c] -= (dist - distMean[c]) * (dist - mean);
+	}
+
+	/**
+	 * sample variance of the weighted distances of cluster c
+	 * @param c
+	 * @return
+	 */
+	private double variance(int c) {
+		return counts[c] > 1 ? distM2[c] / (counts[c] - 1) : 0;
+	}
+
+	/**
+	 * move each center to the centroid of its cluster, an empty cluster
+	 * takes a random point of the cluster with the largest distance variance
+	 * (the point is removed from that cluster before centroids are computed)
+	 * @param points
+	 * @return true if there was an empty cluster
+	 */
+	boolean update(PointBlock points) {
+		boolean emptyCluster = false;
+		int numTaken = 0;
+		System.arraycopy(centers, 0, oldCenters, 0, k * d);
+		for (int c = 0; c < k; c++) {
+			if (counts[c] == 0) {
+				if (!statsValid) {
+					computeStats(points);
+				}
+				// split the largest variance cluster
+				int p = takePointFromLargestVarianceCluster(points);
+				points.copyPosition(p, position);
+				System.arraycopy(position, 0, centers, c * d, d);
+				centerWeights[c] = points.weight(p);
+				// marked as split, it can not be split or selected again
+				counts[c] = -1;
+				taken[numTaken++] = p;
+				emptyCluster = true;
+			}
+		}
+		for (int c = 0; c < k; c++) {
+			if (counts[c] < 0) {
+				counts[c] = 0;
+				continue;
+			}
+			if (counts[c] == 0) {
+				// emptied by the split of a cluster before it, keep the previous center
+				continue;
+			}
+			// compute centroid of member points in the cluster
+			double weight = clusterWeights[c];
+			for (int j = 0; j < d; j++) {
+				centers[c * d + j] = sums[c * d + j] / weight;
+			}
+			centerWeights[c] = weight;
+		}
+		// taken points still belong to their cluster for the next assignment
+		for (int t = 0; t < numTaken; t++) {
+			int p = taken[t];
+			assignments[p] = -assignments[p] - 1;
+		}
+		if (boundsValid) {
+			updateDrift();
+		}
+		return emptyCluster;
+	}
+
+	/**
+	 * distance moved by each center and half the distance between centers,
+	 * the bounds of each point are moved by the drift when it is assigned
+	 */
+	private void updateDrift() {
+		maxDrift = 0;
+		maxDriftCenter = -1;
+		secondMaxDrift = 0;
+		for (int c = 0; c < k; c++) {
+			drift[c] = Math.sqrt(distance(centers, c, oldCenters, c));
+			if (drift[c] > maxDrift) {
+				secondMaxDrift = maxDrift;
+				maxDrift = drift[c];
+				maxDriftCenter = c;
+			}
+			else if (drift[c] > secondMaxDrift) {
+				secondMaxDrift = drift[c];
+			}
+		}
+		for (int c = 0; c < k; c++) {
+			double minDistance = Double.POSITIVE_INFINITY;
+			for (int c2 = 0; c2 < k; c2++) {
+				if (c2 != c) {
+					minDistance = Math.min(minDistance, distance(centers, c, centers, c2));
+				}
+			}
+			halfSeparation[c] = Math.sqrt(minDistance) / 2;
+		}
+	}
+
+	/**
+	 * squared distance between center a of array x and center b of array y
+	 */
+	private double distance(double[] x, int a, double[] y, int b) {
+		return Distance.squaredDistance(x, a * d, y, b * d, d);
+	}
+
+	/**
+	 * remove a random point from the cluster with the largest distance variance
+	 * @param points
+	 * @return index of the point
+	 * @throws ConvergenceException if clusters are all empty
+	 */
+	private int takePointFromLargestVarianceCluster(PointBlock points) throws ConvergenceException {
+		double maxVariance = Double.NEGATIVE_INFINITY;
+		int selected = -1;
+		for (int c = 0; c < k; c++) {
+			if (counts[c] > 0) {
+				double variance = variance(c);
+				if (variance > maxVariance) {
+					maxVariance = variance;
+					selected = c;
+				}
+			}
+		}
+
+		// did we find at least one non-empty cluster?
+		if (selected < 0) {
+			throw new ConvergenceException(LocalizedFormats.EMPTY_CLUSTER_IN_K_MEANS);
+		}
+
+		// find the r-th point of the cluster, taken points are marked
+		// with a negative cluster (restored at the end of the update)
+		int r = random.nextInt(counts[selected]);
+		for (int i = 0; i < points.size(); i++) {
+			if (assignments[i] == selected && r-- == 0) {
+				double dist = Math.sqrt(points.squaredDistance(i, centers, selected * d)) * points.weight(i);
+				remove(points, i, selected, dist);
+				assignments[i] = -selected - 1;
+				return i;
+			}
+		}
+		throw new IllegalStateException("Cluster " + selected + " has fewer points than counted");
+	}
+
+	/**
+	 * accumulators of one chunk of points
+	 */
+	private static class Partial {
+
+		double[] sums = new double[0];
+
+		double[] weights = new double[0];
+
+		int[] counts = new int[0];
+
+		double[] distMean = new double[0];
+
+		double[] distM2 = new double[0];
+
+		int changes;
+
+		void reset(int k, int d) {
+			if (sums.length < k * d) {
+				sums = new double[k * d];
+			}
+			if (counts.length < k) {
+				weights = new double[k];
+				counts = new int[k];
+				distMean = new double[k];
+				distM2 = new double[k];
+			}
+			Arrays.fill(sums, 0, k * d, 0);
+			Arrays.fill(weights, 0, k, 0);
+			Arrays.fill(counts, 0, k, 0);
+			Arrays.fill(distMean, 0, k, 0);
+			Arrays.fill(distM2, 0, k, 0);
+			changes = 0;
+		}
+
+		/**
+		 * assign points from to to-1 to their nearest center
+		 * @param initBounds set the Hamerly bounds of the points
+		 */
+		void assign(PointBlock points, int from, int to, LloydWorkspace ws, boolean initBounds) {
+			int k = ws.k;
+			int d = ws.d;
+			double[] centers = ws.centers;
+			int[] assignments = ws.assignments;
+			for (int i = from; i < to; i++) {
+				double minDistance = Double.POSITIVE_INFINITY;
+				double secondDistance = Double.POSITIVE_INFINITY;
+				int minCluster = 0;
+				for (int c = 0; c < k; c++) {
+					// abandoned beyond the distances that are still needed
+					double distance = points.squaredDistance(i, centers, c * d, initBounds ? secondDistance : minDistance);
+					if (distance < minDistance) {
+						secondDistance = minDistance;
+						minDistance = distance;
+						minCluster = c;
+					}
+					else if (distance < secondDistance) {
+						secondDistance = distance;
+					}
+				}
+				if (initBounds) {
+					ws.upper[i] = Math.sqrt(minDistance);
+					ws.lower[i] = Math.sqrt(secondDistance);
+				}
+				add(points, i, minCluster, minDistance, ws);
+			}
+		}
+
+		/**
+		 * assign points from to to-1 to their nearest center, skipping the
+		 * points whose bounds show that their center did not change
+		 */
+		void assignWithBounds(PointBlock points, int from, int to, LloydWorkspace ws) {
+			int k = ws.k;
+			int d = ws.d;
+			double[] centers = ws.centers;
+			double[] upper = ws.upper;
+			double[] lower = ws.lower;
+			for (int i = from; i < to; i++) {
+				int a = ws.assignments[i];
+				// move the bounds by the drift of the centers
+				upper[i] += ws.drift[a];
+				lower[i] -= a == ws.maxDriftCenter ? ws.secondMaxDrift : ws.maxDrift;
+				double bound = Math.max(ws.halfSeparation[a], lower[i]);
+				if (upper[i] * (1 + BOUND_EPSILON) < bound) {
+					add(points, i, a, Double.NaN, ws);
+					continue;
+				}
+				// tighten the upper bound
+				double assignedDistance = points.squaredDistance(i, centers, a * d);
+				upper[i] = Math.sqrt(assignedDistance);
+				if (upper[i] * (1 + BOUND_EPSILON) < bound) {
+					add(points, i, a, assignedDistance, ws);
+					continue;
+				}
+				// compare with all centers
+				double minDistance = Double.POSITIVE_INFINITY;
+				double secondDistance = Double.POSITIVE_INFINITY;
+				int minCluster = 0;
+				for (int c = 0; c < k; c++) {
+					double distance = c == a ? assignedDistance : points.squaredDistance(i, centers, c * d, secondDistance);
+					if (distance < minDistance) {
+						secondDistance = minDistance;
+						minDistance = distance;
+						minCluster = c;
+					}
+					else if (distance < secondDistance) {
+						secondDistance = distance;
+					}
+				}
+				upper[i] = Math.sqrt(minDistance);
+				lower[i] = Math.sqrt(secondDistance);
+				add(points, i, minCluster, minDistance, ws);
+			}
+		}
+
+		/**
+		 * add point i to cluster c
+		 * @param squaredDistance distance to the center, NaN if not computed
+		 * (the variance statistics are then computed when needed, see computeStats)
+		 */
+		private void add(PointBlock points, int i, int c, double squaredDistance, LloydWorkspace ws) {
+			if (c != ws.assignments[i]) {
+				changes++;
+			}
+			ws.assignments[i] = c;
+			double w = points.weight(i);
+			points.accumulate(i, sums, c * ws.d, w);
+			weights[c] += w;
+			addStat(c, Math.sqrt(squaredDistance) * w);
+		}
+
+		/**
+		 * add the weighted distance of a point to the variance statistics of cluster c
+		 */
+		private void addStat(int c, double dist) {
+			int n = ++counts[c];
+			double delta = dist - distMean[c];
+			distMean[c] += delta / n;
+			distM2[c] += delta * (dist - distMean[c]);
+		}
+
+		/**
+		 * variance statistics of points from to to-1 for their current cluster
+		 */
+		void stats(PointBlock points, int from, int to, LloydWorkspace ws) {
+			for (int i = from; i < to; i++) {
+				int c = ws.assignments[i];
+				addStat(c, Math.sqrt(points.squaredDistance(i, ws.centers, c * ws.d)) * points.weight(i));
+			}
+		}
+	}
+
+	/**
+	 * the current centers as new Center objects
+	 * @return
+	 */
+	List<Center> toCenters() {
+		List<Center> clusters = new ArrayList<Center>(k);
+		for (int c = 0; c < k; c++) {
+			clusters.add(new Center(Arrays.copyOfRange(centers, c * d, (c + 1) * d), centerWeights[c]));
+		}
+		return clusters;
+	}
+
+}
@@ -0,0 +1,128 @@
+package kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import datastructure.Center;
+import datastructure.PointBlock;
+
+/**
+ * Mini-batch k-means over weighted points
+ * (Web-Scale K-Means Clustering, by Sculley).
+ * Each iteration draws a batch of points with probability proportional to
+ * their weights and moves the nearest center of each towards it with a
+ * per-center learning rate 1/(number of points the center has received),
+ * so an iteration costs O(batch * k * d) instead of O(n * k * d).
+ *
+ */
+public class MiniBatchKMeans {
+
+	/**
+	 * refine the seeds by mini-batches of the points
+	 * @param points the points to cluster (weighted points)
+	 * @param seeds initial centers
+	 * @param batchSize points drawn per iteration
+	 * @param iterations number of mini-batches
+	 * @param random
+	 * @return the centers, weighted by the points nearest to them
+	 */
+	public static List<Center> cluster(final PointBlock points, PointBlock seeds, int batchSize, int iterations,
+			Random random) {
+		return cluster(points, seeds, batchSize, iterations, random, QueryStats.NO_DEADLINE, new QueryStats());
+	}
+	
+	/**
+	 * refine the seeds by mini-batches of the points, no more mini-batch
+	 * is drawn after the deadline
+	 * @param points the points to cluster (weighted points)
+	 * @param seeds initial centers
+	 * @param batchSize points drawn per iteration
+	 * @param iterations number of mini-batches
+	 * @param random
+	 * @param deadline System.nanoTime() to stop at
+	 * @param stats receives the number of mini-batches
+	 * @return the centers, weighted by the points nearest to them
+	 */
+	public static List<Center> cluster(final PointBlock points, PointBlock seeds, int batchSize, int iterations,
+			Random random, long deadline, QueryStats stats) {
+		int n = points.size();
+		final int d = points.dimension();
+		final int k = seeds.size();
+		final double[] centers = new double[k * d];
+		double[] position = new double[d];
+		for (int c = 0; c < k; c++) {
+			seeds.copyPosition(c, position);
+			System.arraycopy(position, 0, centers, c * d, d);
+		}
+		// number of points each center has received
+		double[] counts = new double[k];
+
+		// draw points by weight, a drawn point then counts once
+		WeightedSampler sampler = KMeansPlusPlus.SAMPLER.get();
+		sampler.reset(n);
+		double[] weights = new double[n];
+		for (int i = 0; i < n; i++) {
+			weights[i] = points.weight(i);
+		}
+		sampler.setAll(weights);
+
+		int batch = Math.max(1, Math.min(batchSize, n));
+		int[] batchPoints = new int[batch];
+		int[] batchCenters = new int[batch];
+		int it = 0;
+		for (; it < iterations; it++) {
+			if (it > 0 && KMeansPlusPlus.pastDeadline(deadline)) {
+				break;
+			}
+			for (int b = 0; b < batch; b++) {
+				int i = sampler.sample(random);
+				batchPoints[b] = i < 0 ? random.nextInt(n) : i;
+			}
+			// assign the whole batch to the centers of the previous iteration
+			for (int b = 0; b < batch; b++) {
+				batchCenters[b] = points.nearest(batchPoints[b], centers, k);
+			}
+			// gradient step: c = (1 - eta) * c + eta * x
+			for (int b = 0; b < batch; b++) {
+				int c = batchCenters[b];
+				counts[c]++;
+				double eta = 1.0 / counts[c];
+				for (int j = 0; j < d; j++) {
+					centers[c * d + j] *= 1 - eta;
+				}
+				points.accumulate(batchPoints[b], centers, c * d, eta);
+			}
+		}
+
+		stats.addTrial(it, it < iterations);
+
+		// weight of each center: total weight of its nearest points,
+		// summed per chunk and combined in chunk order
+		final double[][] chunkWeights = new double[ParallelQuery.numChunks(n)][];
+		ParallelQuery.forEachChunk(n, new ParallelQuery.ChunkTask() {
+			@Override
+			public void run(int chunk, int from, int to) {
+				double[] w = new double[k];
+				for (int i = from; i < to; i++) {
+					w[points.nearest(i, centers, k)] += points.weight(i);
+				}
+				chunkWeights[chunk] = w;
+			}
+		});
+		double[] centerWeights = new double[k];
+		for (double[] w : chunkWeights) {
+			for (int c = 0; c < k; c++) {
+				centerWeights[c] += w[c];
+			}
+		}
+
+		List<Center> clusters = new ArrayList<Center>(k);
+		for (int c = 0; c < k; c++) {
+			clusters.add(new Center(Arrays.copyOfRange(centers, c * d, (c + 1) * d), centerWeights[c]));
+		}
+		return clusters;
+	}
+
+}
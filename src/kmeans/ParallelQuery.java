@@ -0,0 +1,201 @@
+package kmeans;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the per-point work of a query (assignment, cost) over fixed-size
+ * chunks of the points on a fork/join pool.
+ * Chunk boundaries only depend on the number of points and the partial
+ * results of the chunks are combined in chunk order, so results are the
+ * same for any number of threads.
+ *
+ */
+public class ParallelQuery {
+
+	// number of points per chunk
+	public static final int CHUNK_SIZE = 1024;
+
+	// null: run all chunks on the calling thread
+	private static volatile ForkJoinPool pool =
+			Runtime.getRuntime().availableProcessors() > 1 ? ForkJoinPool.commonPool() : null;
+
+	/**
+	 * work on one chunk of points
+	 */
+	public interface ChunkTask {
+		/**
+		 * @param chunk index of the chunk
+		 * @param from first point (inclusive)
+		 * @param to last point (exclusive)
+		 */
+		void run(int chunk, int from, int to);
+	}
+
+	/**
+	 * independent piece of work (e.g. one k-means trial)
+	 */
+	public interface IndexTask {
+		/**
+		 * @param index index of the task
+		 */
+		void run(int index);
+	}
+
+	/**
+	 * set the number of threads of the query pool, 1 to run on the calling thread
+	 * @param parallelism
+	 */
+	public static void setParallelism(int parallelism) {
+		ForkJoinPool old = pool;
+		if (parallelism <= 1) {
+			pool = null;
+		}
+		else if (parallelism == ForkJoinPool.getCommonPoolParallelism()) {
+			pool = ForkJoinPool.commonPool();
+		}
+		else {
+			pool = new ForkJoinPool(parallelism);
+		}
+		if (old != null && old != ForkJoinPool.commonPool()) {
+			old.shutdown();
+		}
+	}
+
+	/**
+	 * number of threads of the query pool
+	 * @return
+	 */
+	public static int getParallelism() {
+		ForkJoinPool p = pool;
+		return p == null ? 1 : p.getParallelism();
+	}
+
+	/**
+	 * the pool queries run on, null if they run on the calling thread
+	 * @return
+	 */
+	public static ForkJoinPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * number of chunks of n points
+	 * @param n
+	 * @return
+	 */
+	public static int numChunks(int n) {
+		return Math.max(1, (n + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * run the task on every chunk of n points and wait for all of them
+	 * @param n
+	 * @param task
+	 */
+	public static void forEachChunk(int n, ChunkTask task) {
+		int numChunks = numChunks(n);
+		ForkJoinPool p = pool;
+		if (p == null || numChunks == 1) {
+			for (int chunk = 0; chunk < numChunks; chunk++) {
+				task.run(chunk, chunk * CHUNK_SIZE, Math.min(n, (chunk + 1) * CHUNK_SIZE));
+			}
+			return;
+		}
+		ChunkAction action = new ChunkAction(task, n, 0, numChunks);
+		if (ForkJoinTask.getPool() == p) {
+			// already on a worker of the pool (e.g. a parallel trial)
+			action.invoke();
+		}
+		else {
+			p.invoke(action);
+		}
+	}
+
+	/**
+	 * run task 0 to count-1, each as its own fork/join task, and wait for all of them
+	 * @param count
+	 * @param task
+	 */
+	public static void forEach(int count, IndexTask task) {
+		ForkJoinPool p = pool;
+		if (p == null || count <= 1) {
+			for (int index = 0; index < count; index++) {
+				task.run(index);
+			}
+			return;
+		}
+		IndexAction action = new IndexAction(task, 0, count);
+		if (ForkJoinTask.getPool() == p) {
+			action.invoke();
+		}
+		else {
+			p.invoke(action);
+		}
+	}
+
+	/**
+	 * splits a range of chunks in halves until one chunk is left
+	 */
+	private static class ChunkAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ChunkTask task;
+
+		private final int n;
+
+		private final int fromChunk;
+
+		private final int toChunk;
+
+		ChunkAction(ChunkTask task, int n, int fromChunk, int toChunk) {
+			this.task = task;
+			this.n = n;
+			this.fromChunk = fromChunk;
+			this.toChunk = toChunk;
+		}
+
+		@Override
+		protected void compute() {
+			if (toChunk - fromChunk == 1) {
+				task.run(fromChunk, fromChunk * CHUNK_SIZE, Math.min(n, toChunk * CHUNK_SIZE));
+				return;
+			}
+			int mid = (fromChunk + toChunk) >>> 1;
+			invokeAll(new ChunkAction(task, n, fromChunk, mid), new ChunkAction(task, n, mid, toChunk));
+		}
+	}
+
+	/**
+	 * splits a range of task indices in halves until one index is left
+	 */
+	private static class IndexAction extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final IndexTask task;
+
+		private final int from;
+
+		private final int to;
+
+		IndexAction(IndexTask task, int from, int to) {
+			this.task = task;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				task.run(from);
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new IndexAction(task, from, mid), new IndexAction(task, mid, to));
+		}
+	}
+
+}
@@ -0,0 +1,88 @@
+package kmeans;
+
+/**
+ * Options of the query-time k-means run by a clustering method
+ * (each CluMethod holds its own, see CluMethod.getQueryConfig)
+ *
+ */
+public class QueryConfig {
+
+	/**
+	 * How the Lloyd iterations find the nearest center of each point
+	 */
+	public enum LloydMode {
+		// compute the distances to all k centers
+		STANDARD,
+		// keep an upper bound to the assigned center and a lower bound to the
+		// others per point (Hamerly), skip points whose bounds prove the
+		// assignment unchanged, same assignments as STANDARD
+		HAMERLY
+	}
+
+	/**
+	 * How the initial centers of a trial are chosen
+	 */
+	public enum Seeding {
+		// D^2 sampling accelerated by a coreset tree (StreamKM++)
+		FAST,
+		// exact D^2 sampling over all points (k-means++)
+		KMEANS_PLUS_PLUS,
+		// oversampling in a few parallel rounds, reduced to k by k-means++ (k-means||)
+		KMEANS_PARALLEL
+	}
+
+	/**
+	 * How a trial refines its initial centers
+	 */
+	public enum Solver {
+		// full-batch Lloyd iterations over all points
+		LLOYD,
+		// mini-batch k-means (Sculley), see MiniBatchKMeans
+		MINI_BATCH
+	}
+
+	public LloydMode lloydMode = LloydMode.STANDARD;
+
+	public Seeding seeding = Seeding.FAST;
+
+	// candidates per round (times k) and number of rounds of KMEANS_PARALLEL seeding
+	public double oversampling = 2;
+
+	public int seedingRounds = 5;
+
+	// Lloyd iterations also stop once an iteration lowers the cost by at most this
+	// fraction of the cost (0: only when no point changes its cluster)
+	public double costTolerance = 0;
+
+	public Solver solver = Solver.LLOYD;
+
+	// points drawn per mini-batch and number of mini-batches of the MINI_BATCH solver
+	public int miniBatchSize = 1024;
+
+	public int miniBatchIterations = 100;
+
+	// smaller point sets are refined by Lloyd iterations even with the MINI_BATCH
+	// solver (a few full passes over them are cheaper than the mini-batches)
+	public int miniBatchMinPoints = 20000;
+
+	// run the trials of multiKMeansPlusPlus concurrently on the query pool (see ParallelQuery),
+	// the result is the same as running them one after another
+	public boolean parallelTrials = false;
+
+	// start a query from the previous answer of the model, kept by the model
+	// in its WarmStart (Lloyd converges in a few
+	// iterations while the points barely change), reseedFraction of its centers,
+	// the lightest ones, are re-seeded by D^2 sampling (e.g. for a drifting stream);
+	// falls back to a cold start if the cost per unit weight is more than
+	// warmStartTolerance above the previous one
+	public boolean warmStart = false;
+
+	public double reseedFraction = 0;
+
+	public double warmStartTolerance = 0.05;
+
+	// seed of the random streams of a query, each trial gets its own split
+	// stream (seeding and empty cluster splits), null for a fresh seed per query
+	public Long seed = null;
+
+}
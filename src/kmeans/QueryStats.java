@@ -0,0 +1,97 @@
+package kmeans;
+
+/**
+ * What a query did within its time budget (see CluMethod.getCenters(long, QueryStats)):
+ * the trials that ran, the Lloyd iterations (or mini-batches) of all of them,
+ * and whether the deadline cut the query short
+ *
+ */
+public class QueryStats {
+
+	/**
+	 * no deadline (see KMeansPlusPlus.deadline)
+	 */
+	public static final long NO_DEADLINE = Long.MAX_VALUE;
+
+	private int trials;
+
+	private int iterations;
+
+	private boolean deadlineReached;
+
+	private double cost = Double.NaN;
+
+	private long elapsedNanos;
+
+	/**
+	 * forget the previous query
+	 */
+	public synchronized void reset() {
+		trials = 0;
+		iterations = 0;
+		deadlineReached = false;
+		cost = Double.NaN;
+		elapsedNanos = 0;
+	}
+
+	/**
+	 * a trial (or the warm-started run) finished
+	 * @param trialIterations iterations it ran
+	 * @param cutShort whether it stopped at the deadline before converging
+	 */
+	synchronized void addTrial(int trialIterations, boolean cutShort) {
+		trials++;
+		iterations += trialIterations;
+		deadlineReached |= cutShort;
+	}
+
+	/**
+	 * trials skipped because the deadline had passed
+	 */
+	synchronized void skipped() {
+		deadlineReached = true;
+	}
+
+	synchronized void finish(double bestCost, long nanos) {
+		cost = bestCost;
+		elapsedNanos = nanos;
+	}
+
+	/**
+	 * @return number of trials run (including a warm-started run)
+	 */
+	public synchronized int trials() {
+		return trials;
+	}
+
+	/**
+	 * @return Lloyd iterations (or mini-batches) of all trials
+	 */
+	public synchronized int iterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return whether trials were cut short or skipped at the deadline
+	 */
+	public synchronized boolean deadlineReached() {
+		return deadlineReached;
+	}
+
+	/**
+	 * @return k-means cost of the answer on the points of the query, NaN if unknown
+	 */
+	public synchronized double cost() {
+		return cost;
+	}
+
+	public synchronized long elapsedNanos() {
+		return elapsedNanos;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return trials + " " + iterations + " " + deadlineReached + " " + cost + " " + elapsedNanos;
+	}
+
+}
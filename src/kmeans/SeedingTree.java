@@ -0,0 +1,197 @@
+package kmeans;
+
+import datastructure.PointBlock;
+
+/**
+ * Coreset tree of the fast D^2 seeding (see KMeansPlusPlus.fastSeeding)
+ * on primitive arrays, reused by a thread across calls.
+ * The members of a leaf are a range of the member arrays, splitting a leaf
+ * partitions its range in place, keeping the order of the members.
+ *
+ */
+class SeedingTree {
+
+	// member point index and weighted-cost to the center of its leaf,
+	// the members of leaf node v are [from[v], to[v])
+	int[] members = new int[0];
+
+	double[] costs = new double[0];
+
+	// running sum of the costs within the leaf of each member
+	// (binary searched to sample a member, see KMeansPlusPlus.sampleByPrefix)
+	double[] prefix = new double[0];
+
+	// members going to the right child during a split
+	private int[] rightMembers = new int[0];
+
+	private double[] rightCosts = new double[0];
+
+	private double[] rightPrefix = new double[0];
+
+	// per node: point index of the center, range of members (leaves only),
+	// number of free members and weighted-cost of all members of the subtree
+	int[] center = new int[0];
+
+	int[] from = new int[0];
+
+	int[] to = new int[0];
+
+	int[] numMembers = new int[0];
+
+	double[] weight = new double[0];
+
+	// children (-1 for a leaf) and parent (-1 for the root)
+	int[] left = new int[0];
+
+	int[] right = new int[0];
+
+	int[] parent = new int[0];
+
+	int numNodes;
+
+	// position of the center being compared with
+	double[] position = new double[0];
+
+	// nodes still to visit when collecting the leaves
+	private int[] stack = new int[0];
+
+	/**
+	 * make room for n points of dimension d and m centers
+	 * @param n
+	 * @param m
+	 * @param d
+	 */
+	void reset(int n, int m, int d) {
+		if (members.length < n) {
+			members = new int[n];
+			costs = new double[n];
+			prefix = new double[n];
+			rightMembers = new int[n];
+			rightCosts = new double[n];
+			rightPrefix = new double[n];
+		}
+		int maxNodes = Math.max(1, 2 * m - 1);
+		if (center.length < maxNodes) {
+			center = new int[maxNodes];
+			from = new int[maxNodes];
+			to = new int[maxNodes];
+			numMembers = new int[maxNodes];
+			weight = new double[maxNodes];
+			left = new int[maxNodes];
+			right = new int[maxNodes];
+			parent = new int[maxNodes];
+			stack = new int[maxNodes];
+		}
+		if (position.length != d) {
+			position = new double[d];
+		}
+		numNodes = 0;
+	}
+
+	/**
+	 * add a leaf node
+	 * @return index of the node
+	 */
+	int addLeaf(int centerIndex, int fromMember, int toMember, double leafWeight, int parentNode) {
+		int v = numNodes++;
+		center[v] = centerIndex;
+		from[v] = fromMember;
+		to[v] = toMember;
+		numMembers[v] = toMember - fromMember;
+		weight[v] = leafWeight;
+		left[v] = -1;
+		right[v] = -1;
+		parent[v] = parentNode;
+		return v;
+	}
+
+	/**
+	 * split leaf v: member s of the leaf becomes the center of the right child,
+	 * the other members go to the child whose center is nearer
+	 * (the left child keeps the center of v)
+	 * @param points
+	 * @param v
+	 * @param s index of the new center in the member arrays
+	 * @param abandonSlack see KMeansPlusPlus
+	 */
+	void split(PointBlock points, int v, int s, double abandonSlack) {
+		int nextCenter = members[s];
+		points.copyPosition(nextCenter, position);
+		int numLeft = 0;
+		int numRight = 0;
+		double leftWeight = 0;
+		double rightWeight = 0;
+		for (int i = from[v]; i < to[v]; i++) {
+			if (i == s) {
+				continue;
+			}
+
+			// cost to the previous center is already computed
+			int p = members[i];
+			double cost = costs[i];
+			// compute weighted-cost of the point to the new center,
+			// abandoned once it surely exceeds the cost (the point stays left)
+			double w = points.weight(p);
+			double cost2Center = points.squaredDistance(p, position, 0, cost / w * abandonSlack) * w;
+			if (cost < cost2Center) {
+				// compact the left members at the start of the range
+				leftWeight += cost;
+				members[from[v] + numLeft] = p;
+				costs[from[v] + numLeft] = cost;
+				prefix[from[v] + numLeft] = leftWeight;
+				numLeft++;
+			}
+			else {
+				rightWeight += cost2Center;
+				rightMembers[numRight] = p;
+				rightCosts[numRight] = cost2Center;
+				rightPrefix[numRight] = rightWeight;
+				numRight++;
+			}
+		}
+		int mid = from[v] + numLeft;
+		System.arraycopy(rightMembers, 0, members, mid, numRight);
+		System.arraycopy(rightCosts, 0, costs, mid, numRight);
+		System.arraycopy(rightPrefix, 0, prefix, mid, numRight);
+
+		left[v] = addLeaf(center[v], from[v], mid, leftWeight, v);
+		right[v] = addLeaf(nextCenter, mid, mid + numRight, rightWeight, v);
+
+		// propagate update of weight and numMembers upwards to the root
+		for (int u = v; u >= 0; u = parent[u]) {
+			// weight of an inner node is the sum of the weights of its children
+			weight[u] = weight[left[u]] + weight[right[u]];
+			numMembers[u]--;  // one member point has been selected as center
+		}
+	}
+
+	/**
+	 * add the center of every leaf, from left to right, weighted by
+	 * the center and the members of the leaf
+	 * Note: the positions are copied
+	 * @param points
+	 * @param resultSet
+	 */
+	void collect(PointBlock points, PointBlock resultSet) {
+		if (numNodes == 0) {
+			return;
+		}
+		int top = 0;
+		stack[top++] = 0;
+		while (top > 0) {
+			int v = stack[--top];
+			if (left[v] >= 0) {
+				stack[top++] = right[v];
+				stack[top++] = left[v];
+				continue;
+			}
+			double leafWeight = points.weight(center[v]);
+			for (int i = from[v]; i < to[v]; i++) {
+				leafWeight += points.weight(members[i]);
+			}
+			resultSet.addPoint(points, center[v]);
+			resultSet.setWeight(resultSet.size() - 1, leafWeight);
+		}
+	}
+
+}
@@ -0,0 +1,86 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.List;
+
+import datastructure.Center;
+import datastructure.PointBlock;
+
+/**
+ * Centers and cost of the previous answer of a model, the starting point
+ * of its next warm-started query (see QueryConfig.warmStart).
+ * Each model holds its own, a query updates it only with QueryConfig.warmStart set.
+ *
+ */
+public class WarmStart {
+
+	// positions (center c at [c*d, (c+1)*d)) and weights, copied from the answer
+	private double[] centers;
+
+	private double[] weights;
+
+	private int k;
+
+	private int d;
+
+	// k-means cost of the answer on its points per unit of their weight
+	private double costPerWeight;
+
+	/**
+	 * whether there is a previous answer with k centers of dimension d
+	 */
+	synchronized boolean matches(int k, int d) {
+		return centers != null && this.k == k && this.d == d;
+	}
+
+	/**
+	 * remember an answer
+	 * @param answer
+	 * @param costPerWeight
+	 */
+	synchronized void set(List<Center> answer, double costPerWeight) {
+		k = answer.size();
+		d = k == 0 ? 0 : answer.get(0).position.length;
+		centers = new double[k * d];
+		weights = new double[k];
+		for (int c = 0; c < k; c++) {
+			Center center = answer.get(c);
+			System.arraycopy(center.position, 0, centers, c * d, d);
+			weights[c] = center.weight;
+		}
+		this.costPerWeight = costPerWeight;
+	}
+
+	synchronized double costPerWeight() {
+		return costPerWeight;
+	}
+
+	/**
+	 * the count heaviest centers of the previous answer, in their order
+	 * @param count
+	 * @return
+	 */
+	synchronized PointBlock heaviest(int count) {
+		// weight a center must reach to be kept (ties kept in order)
+		double[] sorted = Arrays.copyOf(weights, k);
+		Arrays.sort(sorted);
+		double threshold = count == 0 ? Double.POSITIVE_INFINITY : sorted[k - count];
+		int numAbove = 0;
+		for (int c = 0; c < k; c++) {
+			if (weights[c] > threshold) {
+				numAbove++;
+			}
+		}
+		int numTies = count - numAbove;
+		PointBlock kept = new PointBlock(k);
+		double[] position = new double[d];
+		for (int c = 0; c < k && kept.size() < count; c++) {
+			if (weights[c] > threshold || (weights[c] == threshold && numTies-- > 0)) {
+				System.arraycopy(centers, c * d, position, 0, d);
+				kept.add(position, weights[c]);
+			}
+		}
+		return kept;
+	}
+
+}
@@ -0,0 +1,92 @@
+package kmeans;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Samples an index with probability proportional to its weight in O(log n),
+ * weights are updated in O(log n) (a complete binary tree of partial sums,
+ * an inner node is recomputed from its children so updates do not drift).
+ *
+ */
+class WeightedSampler {
+
+	// sums[1] is the root, node v has children 2v and 2v+1,
+	// the weight of index i is at leaf capacity+i
+	private double[] sums = new double[2];
+
+	private int capacity = 1;
+
+	private int n;
+
+	/**
+	 * n indices of weight 0
+	 * @param n
+	 */
+	void reset(int n) {
+		this.n = n;
+		int c = 1;
+		while (c < n) {
+			c <<= 1;
+		}
+		if (sums.length < 2 * c) {
+			sums = new double[2 * c];
+		}
+		else {
+			Arrays.fill(sums, 0, 2 * c, 0);
+		}
+		capacity = c;
+	}
+
+	/**
+	 * set the weights of all indices at once, O(n)
+	 * @param weights
+	 */
+	void setAll(double[] weights) {
+		System.arraycopy(weights, 0, sums, capacity, n);
+		for (int v = capacity - 1; v >= 1; v--) {
+			sums[v] = sums[2 * v] + sums[2 * v + 1];
+		}
+	}
+
+	void set(int i, double weight) {
+		int v = capacity + i;
+		sums[v] = weight;
+		for (v >>= 1; v >= 1; v >>= 1) {
+			sums[v] = sums[2 * v] + sums[2 * v + 1];
+		}
+	}
+
+	double get(int i) {
+		return sums[capacity + i];
+	}
+
+	double total() {
+		return sums[1];
+	}
+
+	/**
+	 * index drawn with probability weight/total, never an index of weight 0
+	 * @param random
+	 * @return -1 if all weights are 0
+	 */
+	int sample(Random random) {
+		if (!(sums[1] > 0)) {
+			return -1;
+		}
+		double r = sums[1] * random.nextDouble();
+		int v = 1;
+		while (v < capacity) {
+			int left = 2 * v;
+			if (sums[left + 1] <= 0 || (r < sums[left] && sums[left] > 0)) {
+				v = left;
+			}
+			else {
+				r -= sums[left];
+				v = left + 1;
+			}
+		}
+		return v - capacity;
+	}
+
+}
@@ -0,0 +1,71 @@
+package util;
+
+import java.io.IOException;
+
+import datastructure.Point;
+
+/**
+ * Read data points sequentially from a binary point file.
+ * Positions are copied from the mapped columns into a reusable buffer.
+ *
+ */
+public class BinaryReadData implements PointReader {
+
+	private PointFile pointFile;
+
+	// index of the next point
+	private int next;
+
+	// reusable position of the current point
+	private final double[] position;
+
+	public BinaryReadData(PointFile pointFile) {
+		this.pointFile = pointFile;
+		this.next = 0;
+		this.position = new double[pointFile.dimension()];
+	}
+
+	@Override
+	public boolean hasNextLine() {
+		return pointFile != null && next < pointFile.size();
+	}
+
+	/**
+	 * read the position of next data point into the reusable buffer
+	 * @return position of the next data point, valid until the next call
+	 */
+	@Override
+	public double[] nextPosition() {
+		pointFile.position(next++, position);
+		return position;
+	}
+
+	/**
+	 * copy the position of next data point into dst
+	 * @param dst
+	 * @throws IOException
+	 */
+	@Override
+	public void readInto(double[] dst) throws IOException {
+		if (dst.length != position.length) {
+			throw new IOException("Expected " + dst.length + " values but the file has " + position.length);
+		}
+		pointFile.position(next++, dst);
+	}
+
+	/**
+	 * read next data point with its stored weight
+	 * @return new data point
+	 */
+	@Override
+	public Point nextPoint() {
+		double weight = pointFile.weight(next);
+		return new Point(nextPosition(), weight);
+	}
+
+	@Override
+	public void close() {
+		pointFile = null;
+	}
+
+}
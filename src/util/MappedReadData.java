@@ -0,0 +1,343 @@
+package util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import datastructure.Point;
+
+/**
+ * Read comma-separated data points from a memory-mapped file.
+ * Doubles are parsed straight from the mapped bytes into a reusable
+ * position buffer, so no String is allocated per line.
+ * Lines are read as by ReadData: trailing commas are ignored (as String.split
+ * drops trailing empty values), an empty value inside a line is an error.
+ *
+ */
+public class MappedReadData implements PointReader {
+
+	// size of each mapped window of the file
+	private static final long WINDOW_SIZE = 1L << 28;
+
+	// remap when less than this many bytes are left in the window,
+	// so that a line never crosses the window boundary
+	private static final int MAX_LINE_LENGTH = 1 << 16;
+
+	// exact powers of ten for the fast parsing path
+	private static final double[] POW10 = new double[23];
+	static {
+		POW10[0] = 1;
+		for (int i=1; i<POW10.length; i++) {
+			POW10[i] = POW10[i-1] * 10;
+		}
+	}
+
+	private RandomAccessFile file;
+
+	private FileChannel channel;
+
+	private final long fileSize;
+
+	// file offset of the current window
+	private long windowStart;
+
+	private MappedByteBuffer buffer;
+
+	// read position in the current window
+	private int pos;
+
+	// reusable position of the current point, length is the dimension
+	private double[] position;
+
+	// scratch for the first line, before the dimension is known
+	private double[] firstLine = new double[16];
+
+	public MappedReadData(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		channel = file.getChannel();
+		fileSize = channel.size();
+		map(0);
+	}
+
+	/**
+	 * map the window starting at the given file offset
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void map(long offset) throws IOException {
+		windowStart = offset;
+		buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW_SIZE, fileSize - offset));
+		pos = 0;
+	}
+
+	/**
+	 * make sure a whole line is available in the current window
+	 * @throws IOException
+	 */
+	private void ensureLine() throws IOException {
+		int limit = buffer.limit();
+		if (limit - pos < MAX_LINE_LENGTH && windowStart + limit < fileSize) {
+			map(windowStart + pos);
+		}
+	}
+
+	/**
+	 * decide if there is more data points to read
+	 * @return
+	 */
+	@Override
+	public boolean hasNextLine() {
+		try {
+			// skip blank lines
+			while (true) {
+				if (pos == buffer.limit()) {
+					if (windowStart + pos >= fileSize) {
+						close();
+						return false;
+					}
+					map(windowStart + pos);
+				}
+				byte b = buffer.get(pos);
+				if (b != '\n' && b != '\r' && b != ' ' && b != '\t') {
+					return true;
+				}
+				pos++;
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * read the position of next data point into the reusable buffer
+	 * @return position of the next data point, valid until the next call
+	 * @throws IOException
+	 */
+	@Override
+	public double[] nextPosition() throws IOException {
+		ensureLine();
+
+		// the first line fixes the dimension
+		if (position == null) {
+			int count = parseLine(firstLine);
+			position = Arrays.copyOf(firstLine, count);
+			firstLine = null;
+			return position;
+		}
+		int count = parseLine(position);
+		if (count != position.length) {
+			throw new IOException("Expected " + position.length + " values but read " + count);
+		}
+		return position;
+	}
+
+	/**
+	 * parse the position of next data point straight into dst
+	 * @param dst array of the dimension of the points
+	 * @throws IOException
+	 */
+	@Override
+	public void readInto(double[] dst) throws IOException {
+		if (position == null) {
+			double[] first = nextPosition();
+			if (first.length != dst.length) {
+				throw new IOException("Expected " + dst.length + " values but read " + first.length);
+			}
+			System.arraycopy(first, 0, dst, 0, dst.length);
+			return;
+		}
+		ensureLine();
+		int count = parseLine(dst);
+		if (count != dst.length) {
+			throw new IOException("Expected " + dst.length + " values but read " + count);
+		}
+	}
+
+	/**
+	 * parse the values of the current line into dst
+	 * (the first line grows firstLine as needed)
+	 * @param dst
+	 * @return number of values
+	 * @throws IOException
+	 */
+	private int parseLine(double[] dst) throws IOException {
+		int limit = buffer.limit();
+		int count = 0;
+		while (true) {
+			double value = parseDouble(limit);
+			if (dst == firstLine && count == dst.length) {
+				dst = firstLine = Arrays.copyOf(firstLine, 2 * firstLine.length);
+			}
+			if (count == dst.length) {
+				throw new IOException("Too many values in line at offset " + (windowStart + pos));
+			}
+			dst[count++] = value;
+
+			skipSpaces(limit);
+			if (pos == limit) {
+				break;
+			}
+			byte b = buffer.get(pos++);
+			if (b == '\n') {
+				break;
+			}
+			if (b != ',') {
+				throw new IOException("Unexpected character '" + (char) b + "' at offset " + (windowStart + pos - 1));
+			}
+			if (skipTrailingCommas(limit)) {
+				break;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * read next data point
+	 * @return new data point
+	 * @throws IOException
+	 */
+	@Override
+	public Point nextPoint() throws IOException {
+		// weight is 1
+		return new Point(nextPosition(), 1);
+	}
+
+	/**
+	 * after a comma: if only commas and spaces are left in the line,
+	 * skip them and the line end
+	 * @param limit
+	 * @return whether the line ended
+	 */
+	private boolean skipTrailingCommas(int limit) {
+		int i = pos;
+		while (i < limit) {
+			byte b = buffer.get(i);
+			if (b == '\n') {
+				pos = i + 1;
+				return true;
+			}
+			if (b != ',' && b != ' ' && b != '\t' && b != '\r') {
+				return false;
+			}
+			i++;
+		}
+		pos = limit;
+		return true;
+	}
+
+	private void skipSpaces(int limit) {
+		while (pos < limit) {
+			byte b = buffer.get(pos);
+			if (b != ' ' && b != '\t' && b != '\r') {
+				return;
+			}
+			pos++;
+		}
+	}
+
+	/**
+	 * parse one double at the read position.
+	 * Values with at most 15 significant digits and a small exponent are
+	 * computed exactly from the digits (Clinger's fast path), the others
+	 * fall back to Double.parseDouble, so the result is always the same
+	 * as Double.parseDouble.
+	 * @param limit
+	 * @return
+	 * @throws IOException
+	 */
+	private double parseDouble(int limit) throws IOException {
+		skipSpaces(limit);
+		int start = pos;
+
+		boolean negative = false;
+		if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+			negative = buffer.get(pos) == '-';
+			pos++;
+		}
+
+		long mantissa = 0;
+		int significantDigits = 0;
+		int numDigits = 0;
+		int exp10 = 0;
+		boolean fraction = false;
+		while (pos < limit) {
+			byte b = buffer.get(pos);
+			if (b >= '0' && b <= '9') {
+				if (mantissa != 0 || b != '0') {
+					significantDigits++;
+				}
+				if (significantDigits <= 15) {
+					mantissa = mantissa * 10 + (b - '0');
+					if (fraction) {
+						exp10--;
+					}
+				}
+				numDigits++;
+			}
+			else if (b == '.' && !fraction) {
+				fraction = true;
+			}
+			else {
+				break;
+			}
+			pos++;
+		}
+
+		if (pos < limit && numDigits > 0 && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+			pos++;
+			boolean negativeExp = false;
+			if (pos < limit && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negativeExp = buffer.get(pos) == '-';
+				pos++;
+			}
+			int exp = 0;
+			int expDigits = 0;
+			while (pos < limit && buffer.get(pos) >= '0' && buffer.get(pos) <= '9') {
+				exp = Math.min(exp * 10 + (buffer.get(pos) - '0'), 100000);
+				expDigits++;
+				pos++;
+			}
+			if (expDigits == 0) {
+				return slowParse(start, limit);
+			}
+			exp10 += negativeExp ? -exp : exp;
+		}
+
+		if (numDigits == 0 || significantDigits > 15 || exp10 < -22 || exp10 > 22) {
+			return slowParse(start, limit);
+		}
+		double value = exp10 >= 0 ? mantissa * POW10[exp10] : mantissa / POW10[-exp10];
+		return negative ? -value : value;
+	}
+
+	/**
+	 * parse the value starting at start by Double.parseDouble
+	 * @param start
+	 * @param limit
+	 * @return
+	 */
+	private double slowParse(int start, int limit) {
+		pos = start;
+		while (pos < limit && buffer.get(pos) != ',' && buffer.get(pos) != '\n') {
+			pos++;
+		}
+		byte[] bytes = new byte[pos - start];
+		for (int i=0; i<bytes.length; i++) {
+			bytes[i] = buffer.get(start + i);
+		}
+		return Double.parseDouble(new String(bytes, StandardCharsets.US_ASCII));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+			file = null;
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,131 @@
+package util;
+
+import java.io.IOException;
+
+import datastructure.Point;
+import util.PointRingBuffer.WaitStrategy;
+
+/**
+ * Pipelined reader: a parser thread reads the points from the source reader
+ * into a ring buffer while the caller consumes them, so parsing and
+ * clustering overlap on two cores.
+ *
+ */
+public class PipelinedReadData implements PointReader {
+
+	private final PointReader source;
+
+	private final PointRingBuffer ring;
+
+	private final Thread parser;
+
+	// failure of the parser thread
+	private volatile Throwable error;
+
+	// slot polled by hasNextLine, not yet returned
+	private double[] current;
+
+	// slot returned by nextPosition, released at the next call
+	private boolean holding;
+
+	/**
+	 * start parsing the source in the background
+	 * @param source reader to parse from
+	 * @param d dimension of the points
+	 * @param capacity number of parsed points buffered ahead (backpressure)
+	 * @param waitStrategy how both sides wait on a full or empty buffer
+	 */
+	public PipelinedReadData(final PointReader source, int d, int capacity, WaitStrategy waitStrategy) {
+		this.source = source;
+		ring = new PointRingBuffer(capacity, d, waitStrategy);
+		parser = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (source.hasNextLine()) {
+						double[] slot = ring.claim();
+						if (slot == null) {
+							break;
+						}
+						// parsed straight into the slot, a point of another dimension fails
+						source.readInto(slot);
+						ring.publish();
+					}
+				} catch (Throwable e) {
+					error = e;
+				} finally {
+					ring.close();
+				}
+			}
+		}, "point-parser");
+		parser.setDaemon(true);
+		parser.start();
+	}
+
+	private void releaseHeld() {
+		if (holding) {
+			ring.release();
+			holding = false;
+		}
+	}
+
+	@Override
+	public boolean hasNextLine() {
+		if (current != null) {
+			return true;
+		}
+		releaseHeld();
+		current = ring.poll();
+		if (current == null && error != null) {
+			throw new IllegalStateException("Parser thread failed", error);
+		}
+		return current != null;
+	}
+
+	/**
+	 * read the position of next data point from the ring buffer
+	 * @return position of the next data point, valid until the next call
+	 * @throws IOException
+	 */
+	@Override
+	public double[] nextPosition() throws IOException {
+		if (!hasNextLine()) {
+			throw new IOException("No more points");
+		}
+		double[] pos = current;
+		current = null;
+		holding = true;
+		return pos;
+	}
+
+	@Override
+	public void readInto(double[] dst) throws IOException {
+		double[] pos = nextPosition();
+		if (pos.length != dst.length) {
+			throw new IOException("Expected " + dst.length + " values but read " + pos.length);
+		}
+		System.arraycopy(pos, 0, dst, 0, dst.length);
+	}
+
+	@Override
+	public Point nextPoint() throws IOException {
+		// weight is 1
+		return new Point(nextPosition(), 1);
+	}
+
+	/**
+	 * stop the parser thread and close the source reader
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		ring.cancel();
+		try {
+			parser.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		source.close();
+	}
+
+}
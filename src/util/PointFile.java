@@ -0,0 +1,300 @@
+package util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary columnar point file, memory-mapped for reading.
+ *
+ * Layout (little-endian):
+ *   header: magic (int), version (int), n (long), d (int), flags (int), padding to 32 bytes
+ *   d coordinate columns of n values, then an optional weight column of n values
+ * Values are doubles, or floats when FLAG_FLOAT is set.
+ * Points are read as views over the mapped columns, no Point is allocated.
+ *
+ */
+public class PointFile {
+
+	public static final int MAGIC = 0x54504353;  // "SCPT"
+
+	public static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 32;
+
+	// values are stored as 32-bit floats
+	public static final int FLAG_FLOAT = 1;
+
+	// a weight column follows the coordinate columns
+	public static final int FLAG_WEIGHTED = 2;
+
+	// number of points
+	private final int n;
+
+	// dimension
+	private final int d;
+
+	private final int flags;
+
+	// coordinate columns, one of them is null
+	private final DoubleBuffer[] doubleColumns;
+	private final FloatBuffer[] floatColumns;
+
+	// weight column, null if not weighted
+	private final DoubleBuffer doubleWeights;
+	private final FloatBuffer floatWeights;
+
+	private PointFile(int n, int d, int flags, DoubleBuffer[] doubleColumns, FloatBuffer[] floatColumns,
+			DoubleBuffer doubleWeights, FloatBuffer floatWeights) {
+		this.n = n;
+		this.d = d;
+		this.flags = flags;
+		this.doubleColumns = doubleColumns;
+		this.floatColumns = floatColumns;
+		this.doubleWeights = doubleWeights;
+		this.floatWeights = floatWeights;
+	}
+
+	/**
+	 * decide if a file is a binary point file by its extension
+	 * @param fileName
+	 * @return
+	 */
+	public static boolean isPointFile(String fileName) {
+		return fileName.endsWith(".bin");
+	}
+
+	/**
+	 * map a binary point file
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static PointFile open(String fileName) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+				throw new IOException(fileName + " is not a binary point file");
+			}
+			long numPoints = header.getLong(8);
+			int d = header.getInt(16);
+			int flags = header.getInt(20);
+			if (numPoints > Integer.MAX_VALUE) {
+				throw new IOException("Too many points: " + numPoints);
+			}
+			int n = (int) numPoints;
+
+			boolean single = (flags & FLAG_FLOAT) != 0;
+			int numColumns = (flags & FLAG_WEIGHTED) != 0 ? d + 1 : d;
+			long columnBytes = (long) n * (single ? 4 : 8);
+			if (channel.size() < HEADER_SIZE + numColumns * columnBytes) {
+				throw new IOException(fileName + " is truncated");
+			}
+
+			DoubleBuffer[] doubleColumns = single ? null : new DoubleBuffer[numColumns];
+			FloatBuffer[] floatColumns = single ? new FloatBuffer[numColumns] : null;
+			for (int j=0; j<numColumns; j++) {
+				MappedByteBuffer column = channel.map(FileChannel.MapMode.READ_ONLY,
+						HEADER_SIZE + j * columnBytes, columnBytes);
+				column.order(ByteOrder.LITTLE_ENDIAN);
+				if (single) {
+					floatColumns[j] = column.asFloatBuffer();
+				}
+				else {
+					doubleColumns[j] = column.asDoubleBuffer();
+				}
+			}
+
+			// the weight column is the last one
+			DoubleBuffer doubleWeights = null;
+			FloatBuffer floatWeights = null;
+			if (numColumns > d) {
+				if (single) {
+					floatWeights = floatColumns[d];
+				}
+				else {
+					doubleWeights = doubleColumns[d];
+				}
+			}
+			return new PointFile(n, d, flags, doubleColumns, floatColumns, doubleWeights, floatWeights);
+		}
+	}
+
+	/**
+	 * number of points
+	 * @return
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * dimension of points
+	 * @return
+	 */
+	public int dimension() {
+		return d;
+	}
+
+	public boolean isWeighted() {
+		return (flags & FLAG_WEIGHTED) != 0;
+	}
+
+	/**
+	 * coordinate j of point i
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public double get(int i, int j) {
+		if (doubleColumns != null) {
+			return doubleColumns[j].get(i);
+		}
+		return floatColumns[j].get(i);
+	}
+
+	/**
+	 * weight of point i, 1 if the file is not weighted
+	 * @param i
+	 * @return
+	 */
+	public double weight(int i) {
+		if (doubleWeights != null) {
+			return doubleWeights.get(i);
+		}
+		if (floatWeights != null) {
+			return floatWeights.get(i);
+		}
+		return 1;
+	}
+
+	/**
+	 * copy the position of point i into dst
+	 * @param i
+	 * @param dst
+	 */
+	public void position(int i, double[] dst) {
+		if (doubleColumns != null) {
+			for (int j=0; j<d; j++) {
+				dst[j] = doubleColumns[j].get(i);
+			}
+		}
+		else {
+			for (int j=0; j<d; j++) {
+				dst[j] = floatColumns[j].get(i);
+			}
+		}
+	}
+
+	/**
+	 * sequential reader over the points of this file
+	 * @return
+	 */
+	public PointReader reader() {
+		return new BinaryReadData(this);
+	}
+
+
+	/**
+	 * convert a comma-separated point file to a binary point file
+	 * @param csvFile
+	 * @param binFile
+	 * @param single store values as floats
+	 * @param weighted add a weight column (all weights are 1)
+	 * @throws IOException
+	 */
+	public static void convert(String csvFile, String binFile, boolean single, boolean weighted) throws IOException {
+		// first pass: count the points and the dimension
+		int n = 0;
+		int d = 0;
+		MappedReadData readData = new MappedReadData(csvFile);
+		while (readData.hasNextLine()) {
+			d = readData.nextPosition().length;
+			n++;
+		}
+
+		int flags = (single ? FLAG_FLOAT : 0) | (weighted ? FLAG_WEIGHTED : 0);
+		int numColumns = weighted ? d + 1 : d;
+		long columnBytes = (long) n * (single ? 4 : 8);
+		if (columnBytes > Integer.MAX_VALUE) {
+			throw new IOException("Too many points for one column: " + n);
+		}
+
+		try (RandomAccessFile file = new RandomAccessFile(binFile, "rw")) {
+			file.setLength(HEADER_SIZE + numColumns * columnBytes);
+			FileChannel channel = file.getChannel();
+
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(0, MAGIC);
+			header.putInt(4, VERSION);
+			header.putLong(8, n);
+			header.putInt(16, d);
+			header.putInt(20, flags);
+
+			MappedByteBuffer[] columns = new MappedByteBuffer[numColumns];
+			for (int j=0; j<numColumns; j++) {
+				columns[j] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + j * columnBytes, columnBytes);
+				columns[j].order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			// second pass: scatter each point into the columns
+			readData = new MappedReadData(csvFile);
+			for (int i=0; i<n && readData.hasNextLine(); i++) {
+				double[] pos = readData.nextPosition();
+				for (int j=0; j<d; j++) {
+					if (single) {
+						columns[j].putFloat(i * 4, (float) pos[j]);
+					}
+					else {
+						columns[j].putDouble(i * 8, pos[j]);
+					}
+				}
+				if (weighted) {
+					if (single) {
+						columns[d].putFloat(i * 4, 1);
+					}
+					else {
+						columns[d].putDouble(i * 8, 1);
+					}
+				}
+			}
+			readData.close();
+
+			header.force();
+			for (MappedByteBuffer column : columns) {
+				column.force();
+			}
+		}
+	}
+
+
+	/**
+	 * Converter: java util.PointFile input.txt output.bin [float] [weighted]
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: java util.PointFile input.txt output.bin [float] [weighted]");
+			return;
+		}
+		boolean single = false;
+		boolean weighted = false;
+		for (int i=2; i<args.length; i++) {
+			single |= args[i].equals("float");
+			weighted |= args[i].equals("weighted");
+		}
+		long start = System.nanoTime();
+		convert(args[0], args[1], single, weighted);
+		System.out.println("Converted " + args[0] + " in " + (System.nanoTime() - start) / 1e9 + "s");
+	}
+
+}
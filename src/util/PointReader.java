@@ -0,0 +1,66 @@
+package util;
+
+import java.io.IOException;
+
+import datastructure.Point;
+
+/**
+ * A stream of data points read from a dataset file
+ *
+ */
+public interface PointReader {
+
+	/**
+	 * decide if there is more data points to read
+	 * @return
+	 */
+	public boolean hasNextLine();
+
+	/**
+	 * read the position of the next data point.
+	 * Note: the returned array may be reused by the reader,
+	 * it is only valid until the next call
+	 * @return position of the next data point
+	 * @throws IOException
+	 */
+	public double[] nextPosition() throws IOException;
+
+	/**
+	 * read the position of the next data point into dst
+	 * (e.g. a preallocated slot, see PipelinedReadData)
+	 * @param dst array of the dimension of the points
+	 * @throws IOException if the point has another dimension
+	 */
+	public void readInto(double[] dst) throws IOException;
+
+	/**
+	 * read next data point (weight is 1)
+	 * @return new data point
+	 * @throws IOException
+	 */
+	public Point nextPoint() throws IOException;
+
+	/**
+	 * release the underlying file
+	 * @throws IOException
+	 */
+	public void close() throws IOException;
+
+	/**
+	 * open a reader of the given dataset file,
+	 * binary point files (.bin) are always memory-mapped
+	 * @param fileName
+	 * @param mapped true to memory-map a text file instead of using a Scanner
+	 * @return
+	 * @throws IOException
+	 */
+	public static PointReader open(String fileName, boolean mapped) throws IOException {
+		if (PointFile.isPointFile(fileName)) {
+			return PointFile.open(fileName).reader();
+		}
+		if (mapped) {
+			return new MappedReadData(fileName);
+		}
+		return new ReadData(fileName);
+	}
+}
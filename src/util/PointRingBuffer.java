@@ -0,0 +1,149 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring buffer of point positions.
+ * All slots are preallocated, the producer writes into a claimed slot and
+ * publishes it, the consumer reads it and releases it. No lock is taken,
+ * the two sides only exchange their sequence numbers.
+ *
+ */
+public class PointRingBuffer {
+
+	/**
+	 * What a side does while the buffer is full (producer) or empty (consumer)
+	 */
+	public enum WaitStrategy {
+		// busy spin, lowest latency, burns a core
+		SPIN,
+		// give up the time slice
+		YIELD,
+		// sleep for a few microseconds
+		PARK
+	}
+
+	private final double[][] slots;
+
+	private final int mask;
+
+	private final WaitStrategy waitStrategy;
+
+	// sequence of the next slot to read, written by the consumer only
+	private final AtomicLong head = new AtomicLong();
+
+	// sequence of the next slot to write, written by the producer only
+	private final AtomicLong tail = new AtomicLong();
+
+	// producer finished, no more slots will be published
+	private volatile boolean closed;
+
+	// consumer stopped, no more slots will be released
+	private volatile boolean cancelled;
+
+	// last head seen by the producer
+	private long cachedHead;
+
+	// last tail seen by the consumer
+	private long cachedTail;
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of 2
+	 * @param d dimension of the positions
+	 * @param waitStrategy
+	 */
+	public PointRingBuffer(int capacity, int d, WaitStrategy waitStrategy) {
+		int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		this.slots = new double[size][d];
+		this.mask = size - 1;
+		this.waitStrategy = waitStrategy;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Producer: claim the next free slot, wait while the buffer is full
+	 * @return slot to write the position into, null if the consumer cancelled
+	 */
+	public double[] claim() {
+		long t = tail.get();
+		while (t - cachedHead == slots.length) {
+			cachedHead = head.get();
+			if (t - cachedHead == slots.length) {
+				if (cancelled) {
+					return null;
+				}
+				await();
+			}
+		}
+		return slots[(int) t & mask];
+	}
+
+	/**
+	 * Producer: make the claimed slot visible to the consumer
+	 */
+	public void publish() {
+		tail.lazySet(tail.get() + 1);
+	}
+
+	/**
+	 * Producer: no more slots will be published
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	/**
+	 * Consumer: wait for the next published slot
+	 * @return slot holding the next position, null if the producer closed the buffer
+	 */
+	public double[] poll() {
+		long h = head.get();
+		while (h == cachedTail) {
+			cachedTail = tail.get();
+			if (h == cachedTail) {
+				if (closed) {
+					// re-check, the last slot may be published right before closing
+					cachedTail = tail.get();
+					if (h == cachedTail) {
+						return null;
+					}
+					break;
+				}
+				await();
+			}
+		}
+		return slots[(int) h & mask];
+	}
+
+	/**
+	 * Consumer: hand the polled slot back to the producer
+	 */
+	public void release() {
+		head.lazySet(head.get() + 1);
+	}
+
+	/**
+	 * Consumer: stop consuming, a waiting producer gives up
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void await() {
+		switch (waitStrategy) {
+		case SPIN:
+			Thread.onSpinWait();
+			break;
+		case YIELD:
+			Thread.yield();
+			break;
+		default:
+			LockSupport.parkNanos(1000);
+		}
+	}
+
+}
@@ -1,12 +1,13 @@
 package util;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.Scanner;
 
 import datastructure.Point;
 
 
-public class ReadData {
+public class ReadData implements PointReader {
 	
 	Scanner scanner;
 	
@@ -14,21 +15,47 @@ public class ReadData {
 		scanner = new Scanner(new File(fileName));
 	}
 	
-	/** 
-	 * read next data point
-	 * @return new data point
-	 * @throws FileNotFoundException
+	/**
+	 * read the position of next data point
+	 * @return new position array
 	 */
-	public Point nextPoint() throws FileNotFoundException {
+	@Override
+	public double[] nextPosition() {
 		String str = scanner.nextLine();
 		String[] strs = str.split(",");
 		double[] pos = new double[strs.length];
 		for (int i=0; i<strs.length; i++) {
 			pos[i] = Double.parseDouble(strs[i]);
 		}
-		
+		return pos;
+	}
+	
+	/**
+	 * read the position of next data point into dst
+	 * @param dst
+	 * @throws IOException
+	 */
+	@Override
+	public void readInto(double[] dst) throws IOException {
+		String str = scanner.nextLine();
+		String[] strs = str.split(",");
+		if (strs.length != dst.length) {
+			throw new IOException("Expected " + dst.length + " values but read " + strs.length);
+		}
+		for (int i=0; i<strs.length; i++) {
+			dst[i] = Double.parseDouble(strs[i]);
+		}
+	}
+	
+	/** 
+	 * read next data point
+	 * @return new data point
+	 * @throws FileNotFoundException
+	 */
+	@Override
+	public Point nextPoint() throws FileNotFoundException {
 		// weight is 1
-		Point p = new Point(pos, 1);
+		Point p = new Point(nextPosition(), 1);
 		return p;
 	}
 	
@@ -36,6 +63,7 @@ public class ReadData {
 	 * decide if there is more data points to read
 	 * @return
 	 */
+	@Override
 	public boolean hasNextLine() {
 		if (scanner.hasNextLine()) {
 			return true;
@@ -45,5 +73,10 @@ public class ReadData {
 			return false;
 		}
 	}
+	
+	@Override
+	public void close() {
+		scanner.close();
+	}
 
 }
@@ -0,0 +1,21 @@
+/**
+ * Run all the checks of the test sources, a failed check throws
+ *
+ */
+public class RunTests {
+
+	public static void main(String[] args) throws Exception {
+		util.MappedReadDataTest.main(args);
+		util.PointFileTest.main(args);
+		util.PipelinedReadDataTest.main(args);
+		datastructure.CacheTest.main(args);
+		datastructure.BlockPoolTest.main(args);
+		kmeans.HamerlyTest.main(args);
+		kmeans.SeedingTreeTest.main(args);
+		kmeans.WeightedSamplerTest.main(args);
+		algo.SnapshotTest.main(args);
+		algo.ShardedModelTest.main(args);
+		System.out.println("All tests passed");
+	}
+
+}
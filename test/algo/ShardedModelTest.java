@@ -0,0 +1,177 @@
+package algo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datastructure.PointBlock;
+import datastructure.Storage;
+
+/**
+ * Producer threads each feeding their own shard while queries run: the union
+ * of the shards weighs the points ingested, the memory is the sum over the
+ * shards, and the producers of ShardProducers ingest every batch handed over
+ *
+ */
+public class ShardedModelTest {
+
+	private static final int SHARDS = 4;
+
+	private static final int POINTS_PER_SHARD = 25000;
+
+	private static final int D = 10;
+
+	private static final int K = 10;
+
+	private static final int BUCKET_SIZE = 200;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(6);
+		final double[] data = new double[SHARDS * POINTS_PER_SHARD * D];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = random.nextGaussian() + (i / D % K) * 3;
+		}
+
+		List<CoresetModel> shards = new ArrayList<CoresetModel>();
+		shards.add(new CoresetTree(K, BUCKET_SIZE, 2, 20, 1, Storage.HEAP, false));
+		shards.add(new CoresetTree(K, BUCKET_SIZE, 2, 20, 1, new Storage(true, false), true));
+		shards.add(new CoresetCache(K, BUCKET_SIZE, 2, 20, 1, Storage.HEAP, false, false));
+		shards.add(new CoresetCache(K, BUCKET_SIZE, 2, 20, 1, Storage.HEAP, true, true));
+		checkProducers(data, shards);
+
+		shards = new ArrayList<CoresetModel>();
+		for (int i = 0; i < SHARDS; i++) {
+			shards.add(new CoresetCache(K, BUCKET_SIZE, 2, 20, 1, Storage.HEAP, false, false));
+		}
+		checkShardProducers(data, new ShardedModel(K, shards, 500, 20, 1));
+
+		System.out.println("ShardedModelTest: ok");
+	}
+
+	/**
+	 * a thread per shard calls clusterBatch(shard, ...) while a query thread runs
+	 */
+	private static void checkProducers(final double[] data, List<CoresetModel> shards) throws Exception {
+		final ShardedModel model = new ShardedModel(K, shards, 0, 20, 1);
+		final AtomicLong ingested = new AtomicLong();
+		final AtomicLong started = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		final String[] error = { null };
+		final int[] queries = { 0 };
+		Thread query = new Thread() {
+			public void run() {
+				try {
+					while (!done.get()) {
+						long before = ingested.get();
+						if (before < 5000) {
+							Thread.yield();
+							continue;
+						}
+						double w = weight(model.unionCoresets());
+						long after = started.get();
+						if (w < before - 1e-6 * before - 1 || w > after + 1e-6 * after + 1) {
+							error[0] = "weight " + w + " while " + before + " to " + after + " points were ingested";
+						}
+						if (queries[0] % 5 == 0) {
+							model.getCenters();
+						}
+						queries[0]++;
+					}
+				} catch (Throwable t) {
+					t.printStackTrace();
+					error[0] = t.toString();
+				}
+			}
+		};
+		query.start();
+
+		Thread[] producers = new Thread[SHARDS];
+		for (int i = 0; i < SHARDS; i++) {
+			final int shard = i;
+			producers[i] = new Thread() {
+				public void run() {
+					try {
+						int batch = 100;
+						int offset = shard * POINTS_PER_SHARD;
+						for (int from = offset; from < offset + POINTS_PER_SHARD; from += batch) {
+							started.addAndGet(batch);
+							model.clusterBatch(shard, Arrays.copyOfRange(data, from * D, (from + batch) * D), D, batch);
+							ingested.addAndGet(batch);
+						}
+					} catch (Throwable t) {
+						t.printStackTrace();
+						error[0] = t.toString();
+					}
+				}
+			};
+			producers[i].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		done.set(true);
+		query.join();
+		check(error[0] == null, error[0]);
+		check(queries[0] > 0, "no query ran");
+
+		double w = weight(model.unionCoresets());
+		check(Math.abs(w - SHARDS * POINTS_PER_SHARD) <= 1e-6 * w, "final weight " + w);
+		long memory = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			double shardWeight = weight(shards.get(i).unionCoresets());
+			check(Math.abs(shardWeight - POINTS_PER_SHARD) <= 1e-6 * shardWeight, "weight of shard " + i);
+			memory += shards.get(i).computeMemory();
+		}
+		check(model.computeMemory() == memory, "memory " + model.computeMemory() + " instead of " + memory);
+		model.getCenters();
+		model.release();
+		check(model.computeOffHeapBytes() == 0, "off-heap bytes left after release");
+	}
+
+	/**
+	 * the reader hands the batches over to a producer thread per shard
+	 */
+	private static void checkShardProducers(double[] data, ShardedModel model) throws Exception {
+		ShardProducers producers = new ShardProducers(model, D, 4);
+		int n = SHARDS * POINTS_PER_SHARD;
+		int batch = 300;
+		for (int from = 0; from < n; from += batch) {
+			int numPoints = Math.min(batch, n - from);
+			producers.submit(Arrays.copyOfRange(data, from * D, (from + numPoints) * D), numPoints);
+			if (from % 30000 == 0) {
+				producers.await();
+				check(Math.abs(weight(model.unionCoresets()) - (from + numPoints)) <= 1e-6 * n,
+						"weight after " + (from + numPoints) + " points");
+				model.getCenters();
+			}
+		}
+		producers.close();
+		long points = 0;
+		for (int i = 0; i < SHARDS; i++) {
+			points += producers.numPoints(i);
+		}
+		check(points == n, points + " points ingested");
+		// reduced by fast seeding, the weight is kept
+		PointBlock union = model.unionCoresets();
+		check(union.size() == 500 && Math.abs(weight(union) - n) <= 1e-6 * n, "reduced union of the shards");
+		model.release();
+	}
+
+	private static double weight(PointBlock points) {
+		double w = 0;
+		for (int i = 0; i < points.size(); i++) {
+			w += points.weight(i);
+		}
+		return w;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,163 @@
+package algo;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import datastructure.BlockPool;
+import datastructure.PointBlock;
+import datastructure.Storage;
+
+/**
+ * Queries running while points are ingested see a consistent snapshot:
+ * the union of the coresets weighs at least the points ingested before the
+ * query and at most the points whose ingestion started before it ends.
+ * For each model, on and off the heap, with background merges and eager
+ * caching, and the off-heap bytes are freed by release. With queries
+ * overlapping all the time the pool keeps freeing the dropped coresets.
+ *
+ */
+public class SnapshotTest {
+
+	private static final int N = 100000;
+
+	private static final int D = 10;
+
+	private static final int K = 10;
+
+	private static final int BUCKET_SIZE = 200;
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(1);
+		double[] data = new double[N * D];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = random.nextGaussian() + (i / D % K) * 3;
+		}
+		int r = (int) Math.sqrt(N / BUCKET_SIZE);
+		Storage heap = Storage.HEAP;
+		Storage offHeap = new Storage(true, false);
+		Storage single = new Storage(true, true);
+
+		check(data, "CoresetTree", new CoresetTree(K, BUCKET_SIZE, 2, 20, 1, heap, false));
+		check(data, "CoresetTree async off-heap", new CoresetTree(K, BUCKET_SIZE, 2, 20, 1, offHeap, true));
+		check(data, "CoresetCache", new CoresetCache(K, BUCKET_SIZE, 2, 20, 1, heap, false, false));
+		check(data, "CoresetCache async eager", new CoresetCache(K, BUCKET_SIZE, 2, 20, 1, heap, true, true));
+		check(data, "CoresetCache eager single", new CoresetCache(K, BUCKET_SIZE, 2, 20, 1, single, false, true));
+		check(data, "TwoRecursiveCache off-heap", new TwoRecursiveCache(K, BUCKET_SIZE, r, 20, 1, offHeap));
+		check(data, "ThreeRecursiveCache", new ThreeRecursiveCache(K, BUCKET_SIZE, r, 20, 1, heap));
+		check(data, "ThreeRecursiveCache single", new ThreeRecursiveCache(K, BUCKET_SIZE, r, 20, 1, single));
+		checkOverlapping(data, offHeap);
+		System.out.println("SnapshotTest: ok");
+	}
+
+	/**
+	 * two query threads, so that a snapshot is open most of the time,
+	 * the blocks and stores dropped by the merges stay bounded
+	 */
+	private static void checkOverlapping(double[] data, Storage storage) throws Exception {
+		final BlockPool pool = new BlockPool(BUCKET_SIZE, 4, storage);
+		final CoresetTree model = new CoresetTree(K, BUCKET_SIZE, 2, 20, 1, pool, true);
+		final AtomicBoolean done = new AtomicBoolean();
+		final String[] error = { null };
+		Thread[] queries = new Thread[2];
+		for (int t = 0; t < queries.length; t++) {
+			queries[t] = new Thread() {
+				public void run() {
+					try {
+						while (!done.get()) {
+							model.unionCoresets();
+							model.computeOffHeapBytes();
+						}
+					} catch (Throwable t) {
+						t.printStackTrace();
+						error[0] = t.toString();
+					}
+				}
+			};
+			queries[t].start();
+		}
+		int maxDeferred = 0;
+		int batch = 100;
+		for (int from = 0; from < N; from += batch) {
+			model.clusterBatch(Arrays.copyOfRange(data, from * D, (from + batch) * D), D, batch);
+			maxDeferred = Math.max(maxDeferred, pool.numDeferred());
+		}
+		done.set(true);
+		for (Thread query : queries) {
+			query.join();
+		}
+		check(error[0] == null, "overlapping queries: " + error[0]);
+		// what the merges drop while a query is descheduled, not what the run drops
+		check(maxDeferred < N / BUCKET_SIZE / 2, "deferred blocks and stores grow to " + maxDeferred);
+		check(Math.abs(weight(model.unionCoresets()) - N) <= 1e-6 * N, "overlapping queries: final weight");
+		model.release();
+		check(pool.numDeferred() == 0 && model.computeOffHeapBytes() == 0, "overlapping queries: left after release");
+	}
+
+	private static void check(double[] data, String name, final CoresetModel model) throws Exception {
+		final AtomicLong ingested = new AtomicLong();
+		final AtomicLong started = new AtomicLong();
+		final AtomicBoolean done = new AtomicBoolean();
+		final String[] error = { null };
+		final int[] queries = { 0 };
+		Thread query = new Thread() {
+			public void run() {
+				try {
+					while (!done.get() && error[0] == null) {
+						long before = ingested.get();
+						if (before < 5000) {
+							Thread.yield();
+							continue;
+						}
+						double w = weight(model.unionCoresets());
+						long after = started.get();
+						if (w < before - 1e-6 * before - 1 || w > after + 1e-6 * after + 1) {
+							error[0] = "weight " + w + " while " + before + " to " + after + " points were ingested";
+						}
+						if (queries[0] % 5 == 0) {
+							model.getCenters();
+						}
+						model.computeMemory();
+						model.computeOffHeapBytes();
+						queries[0]++;
+					}
+				} catch (Throwable t) {
+					t.printStackTrace();
+					error[0] = t.toString();
+				}
+			}
+		};
+		query.start();
+		int batch = 100;
+		for (int from = 0; from < N; from += batch) {
+			started.addAndGet(batch);
+			model.clusterBatch(Arrays.copyOfRange(data, from * D, (from + batch) * D), D, batch);
+			ingested.addAndGet(batch);
+		}
+		done.set(true);
+		query.join();
+		check(error[0] == null, name + ": " + error[0]);
+		check(queries[0] > 0, name + ": no query ran");
+		double w = weight(model.unionCoresets());
+		check(Math.abs(w - N) <= 1e-6 * N, name + ": final weight " + w);
+		model.getCenters();
+		model.release();
+		check(model.computeOffHeapBytes() == 0, name + ": off-heap bytes left after release");
+	}
+
+	private static double weight(PointBlock points) {
+		double w = 0;
+		for (int i = 0; i < points.size(); i++) {
+			w += points.weight(i);
+		}
+		return w;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
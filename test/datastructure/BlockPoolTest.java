@@ -0,0 +1,102 @@
+package datastructure;
+
+/**
+ * BlockPool keeps a dropped store or block while a snapshot that may read it
+ * is open, and frees it once those are closed even if newer snapshots
+ * overlap all the time (the deferred items stay bounded)
+ *
+ */
+public class BlockPoolTest {
+
+	public static void main(String[] args) throws Exception {
+		BlockPool pool = new BlockPool(10, 4, Storage.HEAP);
+
+		// no snapshot open: freed at once
+		Store store = new Store();
+		pool.release(store);
+		check(store.released && pool.numDeferred() == 0, "store kept without snapshots");
+		pool.recycle(pool.acquire());
+		check(pool.numFree() == 1, "block not recycled");
+
+		// a query open at the drop reads it until it closes
+		long query = pool.openSnapshot();
+		store = new Store();
+		pool.release(store);
+		long later = pool.openSnapshot();
+		pool.closeSnapshot(query);
+		check(!store.released, "store freed before the update published");
+		pool.closeSnapshot(later);
+		check(store.released, "store not freed");
+
+		// a query opened after the drop but before the update published (and closed
+		// its snapshot) may read the old state
+		long update = pool.openSnapshot();
+		store = new Store();
+		pool.release(store);
+		query = pool.openSnapshot();
+		pool.closeSnapshot(update);
+		check(!store.released, "store freed while a query reads the old state");
+		long after = pool.openSnapshot();
+		pool.closeSnapshot(query);
+		check(store.released, "store not freed once the queries of the old state closed");
+		pool.closeSnapshot(after);
+
+		// overlapping snapshots, never all closed at once
+		Store[] stores = new Store[10000];
+		long open = pool.openSnapshot();
+		int maxDeferred = 0;
+		for (int i = 0; i < stores.length; i++) {
+			long next = pool.openSnapshot();
+			stores[i] = new Store();
+			pool.release(stores[i]);
+			pool.recycle(new PointBlock(10));
+			pool.closeSnapshot(open);
+			open = next;
+			maxDeferred = Math.max(maxDeferred, pool.numDeferred());
+			if (i >= 3) {
+				check(stores[i - 3].released, "store " + (i - 3) + " not freed");
+			}
+		}
+		check(maxDeferred <= 8, "deferred items grow to " + maxDeferred);
+		check(pool.numFree() == 4, "blocks not recycled with snapshots open");
+		pool.closeSnapshot(open);
+		check(pool.numDeferred() == 0 && stores[stores.length - 1].released, "items left after the last snapshot");
+
+		System.out.println("BlockPoolTest: ok");
+	}
+
+	/**
+	 * an empty store that records its release
+	 */
+	private static class Store implements CoresetStore {
+		boolean released;
+
+		public int size() {
+			return 0;
+		}
+
+		public boolean isSinglePrecision() {
+			return false;
+		}
+
+		public void appendTo(PointBlock dst) {
+			check(!released, "read after release");
+		}
+
+		public long offHeapBytes() {
+			return 0;
+		}
+
+		public void release() {
+			check(!released, "released twice");
+			released = true;
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package datastructure;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Cache keeps the same coresets as the partial sums rule computed digit by
+ * digit (for r a power of two and not), and minor/major/minorLevel match
+ * the base r expansion
+ *
+ */
+public class CacheTest {
+
+	public static void main(String[] args) throws Exception {
+		for (int r : new int[] { 2, 3, 4, 5, 8, 10, 16 }) {
+			checkDigits(r);
+			// in order, as the buckets arrive
+			checkInserts(r, Storage.HEAP, false);
+			// in any order, as concurrent queries insert them
+			checkInserts(r, Storage.HEAP, true);
+		}
+		checkInserts(3, new Storage(true, false), true);
+		checkInserts(4, new Storage(true, true), false);
+		System.out.println("CacheTest: ok");
+	}
+
+	private static void checkDigits(int r) {
+		Cache cache = new Cache(r);
+		Random random = new Random(r);
+		for (int i = 0; i < 100000; i++) {
+			int n = i < 50000 ? i : random.nextInt(Integer.MAX_VALUE);
+			check(cache.minorLevel(n) == minorLevel(n, r), "minorLevel(" + n + ") base " + r);
+			check(cache.minor(n) == minor(n, r), "minor(" + n + ") base " + r);
+			check(cache.major(n) == n - minor(n, r), "major(" + n + ") base " + r);
+		}
+		check(cache.minor(Integer.MAX_VALUE) == minor(Integer.MAX_VALUE, r), "minor(MAX_VALUE) base " + r);
+	}
+
+	/**
+	 * insert coresets keyed by bucket counts and compare the cached keys
+	 * with the partial sums of each count
+	 */
+	private static void checkInserts(int r, Storage storage, boolean shuffled) {
+		Cache cache = new Cache(r, storage);
+		Random random = new Random(r * 31 + (shuffled ? 1 : 0));
+		List<Integer> expected = new ArrayList<Integer>();
+		int n = 0;
+		for (int i = 0; i < 20000; i++) {
+			int num = shuffled ? 1 + random.nextInt(i < 10000 ? 5000 : Integer.MAX_VALUE - 1) : ++n;
+			PointBlock coreset = new PointBlock(1, storage.isSinglePrecision());
+			coreset.add(new double[] { num % 1000, -1 }, num);
+			cache.insertCoreset(num, coreset);
+			insert(expected, num, r);
+
+			check(cache.size() == expected.size(), "size " + cache.size() + " instead of " + expected.size()
+					+ " after " + num + " base " + r);
+			for (int key : expected) {
+				check(cache.containsCoreset(key), "missing " + key + " after " + num + " base " + r);
+			}
+			// the coreset of num and of a random prefix come back unchanged
+			checkCoreset(cache, num);
+			checkCoreset(cache, expected.get(random.nextInt(expected.size())));
+			check(!cache.containsCoreset(num + 1) || expected.contains(num + 1), "unexpected key " + (num + 1));
+		}
+		if (storage.isOffHeap()) {
+			check(cache.offHeapBytes() > 0, "no off-heap bytes");
+		}
+		cache.release();
+		check(cache.size() == 0 && cache.offHeapBytes() == 0, "release left " + cache.size() + " entries");
+		cache.insertCoreset(1, new PointBlock(1, storage.isSinglePrecision()));
+		check(cache.size() == 0, "insert after release");
+	}
+
+	private static void checkCoreset(Cache cache, int key) {
+		PointBlock coreset = cache.getCoreset(key);
+		check(coreset != null && coreset.size() == 1, "coreset of " + key);
+		check(coreset.weight(0) == (float) key || coreset.weight(0) == key, "weight " + coreset.weight(0) + " for " + key);
+		check(coreset.get(0, 0) == key % 1000 && coreset.get(0, 1) == -1, "position of " + key);
+	}
+
+	/**
+	 * the partial sums rule: after inserting num, keep num and the entries
+	 * that are num with its digits below a non-zero digit cleared
+	 */
+	private static void insert(List<Integer> keys, int num, int r) {
+		int level = minorLevel(num, r);
+		for (Iterator<Integer> it = keys.iterator(); it.hasNext();) {
+			int key = it.next();
+			int l = minorLevel(key, r);
+			if (l == level || digit(num, l, r) == 0 || key != prefix(num, l, r)) {
+				it.remove();
+			}
+		}
+		keys.add(num);
+	}
+
+	private static int minorLevel(int n, int r) {
+		int level = 0;
+		while (n != 0 && digit(n, level, r) == 0) {
+			level++;
+		}
+		return level;
+	}
+
+	private static int minor(int n, int r) {
+		return n == 0 ? 0 : (int) (digit(n, minorLevel(n, r), r) * pow(r, minorLevel(n, r)));
+	}
+
+	private static int digit(long n, int l, int r) {
+		for (int i = 0; i < l; i++) {
+			n /= r;
+		}
+		return (int) (n % r);
+	}
+
+	private static long prefix(long n, int l, int r) {
+		return n - n % pow(r, l);
+	}
+
+	private static long pow(int r, int l) {
+		long p = 1;
+		for (int i = 0; i < l && p <= Integer.MAX_VALUE; i++) {
+			p *= r;
+		}
+		return p;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
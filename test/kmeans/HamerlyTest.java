@@ -0,0 +1,93 @@
+package kmeans;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import datastructure.Point;
+import datastructure.PointBlock;
+
+/**
+ * Lloyd iterations with Hamerly bounds make the same assignments and
+ * centers as the standard iterations from the same seeds, also when
+ * clusters get empty (duplicated points)
+ *
+ */
+public class HamerlyTest {
+
+	public static void main(String[] args) throws Exception {
+		// n, d, k
+		int[][] configs = { { 2000, 54, 30 }, { 3000, 7, 30 }, { 2000, 10, 50 } };
+		for (int[] config : configs) {
+			for (boolean duplicates : new boolean[] { false, true }) {
+				PointBlock points = mixture(config[0], config[1], config[2], duplicates);
+				int k = config[2];
+				String standard = run(points, k, QueryConfig.LloydMode.STANDARD);
+				String hamerly = run(points, k, QueryConfig.LloydMode.HAMERLY);
+				check(standard.equals(hamerly), "n=" + config[0] + " d=" + config[1] + " k=" + k
+						+ (duplicates ? " with duplicates" : "") + ":\n" + standard + "\n" + hamerly);
+			}
+		}
+		System.out.println("HamerlyTest: ok");
+	}
+
+	/**
+	 * gaussian clusters around k/2 centers
+	 */
+	private static PointBlock mixture(int n, int d, int k, boolean duplicates) {
+		Random random = new Random(5);
+		double[][] means = new double[k / 2][d];
+		for (double[] mean : means) {
+			for (int j = 0; j < d; j++) {
+				mean[j] = random.nextGaussian() * 5;
+			}
+		}
+		List<Point> points = new ArrayList<Point>();
+		for (int i = 0; i < n; i++) {
+			double[] mean = means[random.nextInt(means.length)];
+			double[] x = new double[d];
+			for (int j = 0; j < d; j++) {
+				x[j] = mean[j] + random.nextGaussian();
+			}
+			points.add(new Point(x, 1 + random.nextInt(5)));
+		}
+		if (duplicates) {
+			// fewer distinct points than k
+			for (int i = 0; i < n; i++) {
+				points.set(i, new Point(points.get(i % (k - 4))));
+			}
+		}
+		return PointBlock.of(points);
+	}
+
+	/**
+	 * seed and iterate, record the number of changed assignments, the empty
+	 * cluster repairs, the final centers, assignments and cost
+	 */
+	private static String run(PointBlock points, int k, QueryConfig.LloydMode mode) {
+		int n = points.size();
+		int d = points.dimension();
+		LloydWorkspace ws = new LloydWorkspace();
+		ws.random.setSeed(9);
+		ws.reset(n, k, d, mode);
+		ws.setCenters(KMeansPlusPlus.fastSeeding(points, k, new Random(1)));
+		StringBuilder sb = new StringBuilder();
+		sb.append(ws.assign(points));
+		for (int it = 0; it < 20; it++) {
+			sb.append(ws.update(points) ? "E" : "").append(',').append(ws.assign(points));
+		}
+		sb.append(' ').append(Arrays.hashCode(Arrays.copyOf(ws.centers, k * d)));
+		sb.append(' ').append(Arrays.hashCode(Arrays.copyOf(ws.assignments, n)));
+		ws.computeSquareSum(points);
+		sb.append(' ').append(ws.cost());
+		return sb.toString();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+package kmeans;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import datastructure.PointBlock;
+
+/**
+ * fastSeeding on the in-place SeedingTree samples the same seeds (positions
+ * and weights, bit for bit) as the coreset tree of linked nodes and member
+ * lists it replaced, written out below with exact distances
+ *
+ */
+public class SeedingTreeTest {
+
+	public static void main(String[] args) throws Exception {
+		for (int config = 0; config < 60; config++) {
+			Random random = new Random(config);
+			int n = 50 + random.nextInt(3000);
+			int d = 1 + random.nextInt(60);
+			int m = 1 + random.nextInt(Math.min(n, 400));
+			PointBlock points = new PointBlock(n, config % 3 == 0);
+			for (int i = 0; i < n; i++) {
+				double[] x = new double[d];
+				for (int j = 0; j < d; j++) {
+					// duplicated points, or gaussian clusters
+					x[j] = config % 4 == 1 ? random.nextInt(3) : random.nextGaussian() * 5;
+				}
+				// with points of weight 0
+				points.add(x, config % 5 == 2 ? random.nextInt(3) : 1 + random.nextInt(4));
+			}
+			for (int s = 0; s < 3; s++) {
+				long seed = s * 1000 + config;
+				PointBlock expected = referenceSeeding(points, m, new Random(seed));
+				PointBlock actual = KMeansPlusPlus.fastSeeding(points, m, new Random(seed));
+				check(actual.size() == m && expected.size() == m, "seeds " + actual.size() + " for m=" + m);
+				for (int i = 0; i < m; i++) {
+					check(Double.doubleToLongBits(actual.weight(i)) == Double.doubleToLongBits(expected.weight(i)),
+							"weight of seed " + i + " in config " + config);
+					for (int j = 0; j < d; j++) {
+						check(Double.doubleToLongBits(actual.get(i, j)) == Double.doubleToLongBits(expected.get(i, j)),
+								"seed " + i + " in config " + config);
+					}
+				}
+			}
+		}
+		System.out.println("SeedingTreeTest: ok");
+	}
+
+	/**
+	 * node of the reference coreset tree
+	 */
+	private static class Node {
+		int center;
+		List<Integer> members = new ArrayList<Integer>();
+		List<Double> costs = new ArrayList<Double>();
+		int numMembers;
+		double weight;
+		Node left, right, parent;
+
+		Node(int center) {
+			this.center = center;
+		}
+	}
+
+	private static PointBlock referenceSeeding(PointBlock points, int m, Random random) {
+		int n = points.size();
+		double[] weights = new double[n];
+		double sumOfWeights = 0;
+		for (int i = 0; i < n; i++) {
+			weights[i] = points.weight(i);
+			sumOfWeights += weights[i];
+		}
+		List<Double> all = new ArrayList<Double>();
+		for (double w : weights) {
+			all.add(w);
+		}
+		Node root = new Node(sample(all, sumOfWeights * random.nextDouble()));
+		double[] position = position(points, root.center);
+		for (int i = 0; i < n; i++) {
+			if (i != root.center) {
+				double cost = points.squaredDistance(i, position) * points.weight(i);
+				root.members.add(i);
+				root.costs.add(cost);
+				root.weight += cost;
+			}
+		}
+		root.numMembers = n - 1;
+
+		for (int numOfCenters = 1; numOfCenters < m; numOfCenters++) {
+			Node node = root;
+			while (node.left != null) {
+				if (node.left.numMembers == 0) {
+					node = node.right;
+				}
+				else if (node.right.numMembers == 0) {
+					node = node.left;
+				}
+				else if (random.nextDouble() < node.left.weight / (node.left.weight + node.right.weight)) {
+					node = node.left;
+				}
+				else {
+					node = node.right;
+				}
+			}
+			int next = sample(node.costs, node.weight * random.nextDouble());
+			node.left = new Node(node.center);
+			node.right = new Node(node.members.get(next));
+			position = position(points, node.right.center);
+			for (int i = 0; i < node.members.size(); i++) {
+				if (i == next) {
+					continue;
+				}
+				int p = node.members.get(i);
+				double cost = node.costs.get(i);
+				double cost2Center = points.squaredDistance(p, position) * points.weight(p);
+				Node child = cost < cost2Center ? node.left : node.right;
+				double childCost = cost < cost2Center ? cost : cost2Center;
+				child.members.add(p);
+				child.costs.add(childCost);
+				child.weight += childCost;
+			}
+			node.left.numMembers = node.left.members.size();
+			node.right.numMembers = node.right.members.size();
+			node.left.parent = node;
+			node.right.parent = node;
+			for (; node != null; node = node.parent) {
+				node.weight = node.left.weight + node.right.weight;
+				node.numMembers--;
+			}
+		}
+
+		PointBlock seeds = new PointBlock(m, points.isSinglePrecision());
+		collect(root, points, seeds);
+		return seeds;
+	}
+
+	/**
+	 * first index where the running sum reaches r (the last one if none does)
+	 */
+	private static int sample(List<Double> costs, double r) {
+		double sum = 0;
+		for (int i = 0; i < costs.size(); i++) {
+			sum += costs.get(i);
+			if (sum >= r) {
+				return i;
+			}
+		}
+		return costs.size() - 1;
+	}
+
+	private static void collect(Node node, PointBlock points, PointBlock seeds) {
+		if (node.left != null) {
+			collect(node.left, points, seeds);
+			collect(node.right, points, seeds);
+			return;
+		}
+		double weight = points.weight(node.center);
+		for (int p : node.members) {
+			weight += points.weight(p);
+		}
+		seeds.add(position(points, node.center), weight);
+	}
+
+	private static double[] position(PointBlock points, int i) {
+		double[] position = new double[points.dimension()];
+		points.copyPosition(i, position);
+		return position;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,94 @@
+package kmeans;
+
+import java.util.Random;
+
+/**
+ * WeightedSampler draws the index whose interval of the running sum of the
+ * weights holds the random number, never an index of weight 0, after
+ * setAll and after updates by set (and across resets to other sizes)
+ *
+ */
+public class WeightedSamplerTest {
+
+	public static void main(String[] args) throws Exception {
+		WeightedSampler sampler = new WeightedSampler();
+		Random random = new Random(3);
+		for (int n : new int[] { 1, 2, 3, 5, 8, 100, 1000, 7, 4097, 1 }) {
+			sampler.reset(n);
+			check(sampler.total() == 0 && sampler.sample(random) == -1, "weights after reset to " + n);
+			double[] weights = new double[n];
+			for (int i = 0; i < n; i++) {
+				weights[i] = random.nextInt(4) == 0 ? 0 : random.nextDouble() * 10;
+			}
+			sampler.setAll(weights);
+			checkSamples(sampler, weights, random);
+			for (int update = 0; update < 2 * n; update++) {
+				int i = random.nextInt(n);
+				weights[i] = random.nextInt(3) == 0 ? 0 : random.nextDouble() * (update % 2 == 0 ? 1e-6 : 100);
+				sampler.set(i, weights[i]);
+				if (update % 10 == 0) {
+					checkSamples(sampler, weights, random);
+				}
+			}
+			checkSamples(sampler, weights, random);
+			for (int i = 0; i < n; i++) {
+				sampler.set(i, 0);
+			}
+			check(sampler.total() == 0 && sampler.sample(random) == -1, "all weights 0");
+		}
+
+		// frequencies follow the weights
+		sampler.reset(5);
+		sampler.setAll(new double[] { 1, 0, 2, 0, 1 });
+		sampler.set(3, 4);
+		sampler.set(0, 0);
+		int[] counts = new int[5];
+		int draws = 700000;
+		for (int i = 0; i < draws; i++) {
+			counts[sampler.sample(random)]++;
+		}
+		double[] expected = { 0, 0, 2.0 / 7, 4.0 / 7, 1.0 / 7 };
+		for (int i = 0; i < 5; i++) {
+			check(Math.abs(counts[i] - expected[i] * draws) < 0.01 * draws, "frequency of " + i + ": " + counts[i]);
+		}
+		System.out.println("WeightedSamplerTest: ok");
+	}
+
+	/**
+	 * draw with a copy of the random generator and check the drawn index
+	 * against a linear search of the running sum
+	 */
+	private static void checkSamples(WeightedSampler sampler, double[] weights, Random random) {
+		int n = weights.length;
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			check(sampler.get(i) == weights[i], "weight of " + i);
+			total += weights[i];
+		}
+		double tolerance = 1e-9 * total;
+		check(Math.abs(sampler.total() - total) <= tolerance, "total " + sampler.total() + " instead of " + total);
+		for (int s = 0; s < 200; s++) {
+			long seed = random.nextLong();
+			int i = sampler.sample(new Random(seed));
+			if (total == 0) {
+				check(i == -1, "sampled " + i + " with all weights 0");
+				continue;
+			}
+			double r = sampler.total() * new Random(seed).nextDouble();
+			check(i >= 0 && i < n && weights[i] > 0, "sampled " + i + " of weight 0");
+			double before = 0;
+			for (int j = 0; j < i; j++) {
+				before += weights[j];
+			}
+			check(before <= r + tolerance && r - tolerance < before + weights[i],
+					"sampled " + i + " for " + r + " in [" + before + ", " + (before + weights[i]) + ")");
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
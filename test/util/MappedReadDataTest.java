@@ -0,0 +1,167 @@
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * MappedReadData reads the same values as ReadData (bit for bit),
+ * for the number formats of the datasets and the line variants
+ * (trailing commas, spaces, CRLF), also when parsed into the caller's array
+ *
+ */
+public class MappedReadDataTest {
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(1);
+		StringBuilder csv = new StringBuilder();
+		int d = 7;
+		for (int i = 0; i < 20000; i++) {
+			for (int j = 0; j < d; j++) {
+				if (j > 0) {
+					csv.append(j % 3 == 0 ? ", " : ",");
+				}
+				csv.append(randomNumber(random));
+			}
+			// line variants accepted by ReadData
+			switch (i % 5) {
+			case 1:
+				csv.append(",");
+				break;
+			case 2:
+				csv.append(",,");
+				break;
+			case 3:
+				csv.append('\r');
+				break;
+			default:
+				break;
+			}
+			csv.append('\n');
+		}
+		File file = write(csv.toString());
+		int n = compare(file.getPath());
+		check(n == 20000, "read " + n + " points");
+		n = compareReadInto(file.getPath(), d);
+		check(n == 20000, "read " + n + " points into the array");
+
+		// no line break at the end of the file
+		check(compare(write("1.5,-2,3e2\n4,5.25,6").getPath()) == 2, "last line without a line break");
+
+		// an empty value inside a line is an error (as in ReadData)
+		MappedReadData reader = new MappedReadData(write("1,,2\n").getPath());
+		boolean failed = false;
+		try {
+			reader.nextPosition();
+		} catch (RuntimeException e) {
+			failed = true;
+		} catch (IOException e) {
+			failed = true;
+		}
+		reader.close();
+		check(failed, "empty value accepted");
+
+		// a point of another dimension than the array is an error
+		reader = new MappedReadData(write("1,2,3\n4,5\n").getPath());
+		double[] dst = new double[3];
+		reader.readInto(dst);
+		check(dst[0] == 1 && dst[1] == 2 && dst[2] == 3, "first line read into the array");
+		failed = false;
+		try {
+			reader.readInto(dst);
+		} catch (IOException e) {
+			failed = true;
+		}
+		reader.close();
+		check(failed, "wrong dimension accepted");
+
+		System.out.println("MappedReadDataTest: ok");
+	}
+
+	/**
+	 * a number as it may appear in a dataset
+	 */
+	private static String randomNumber(Random random) {
+		switch (random.nextInt(6)) {
+		case 0:
+			return Double.toString(random.nextGaussian() * 1000);
+		case 1:
+			return Integer.toString(random.nextInt(2000) - 1000);
+		case 2:
+			return String.format("%.6f", random.nextDouble());
+		case 3:
+			return Double.toString(random.nextGaussian() * 1e-7);
+		case 4:
+			return (random.nextBoolean() ? "-" : "") + random.nextInt(100) + "e" + (random.nextInt(40) - 20);
+		default:
+			return "0." + Long.toString(Math.abs(random.nextLong()));
+		}
+	}
+
+	/**
+	 * read the file with both readers and compare the positions
+	 * @return number of points read
+	 */
+	private static int compare(String fileName) throws IOException {
+		PointReader expected = new ReadData(fileName);
+		PointReader actual = new MappedReadData(fileName);
+		int n = 0;
+		while (expected.hasNextLine()) {
+			check(actual.hasNextLine(), "mapped reader ended at line " + n);
+			double[] x = expected.nextPosition();
+			double[] y = actual.nextPosition();
+			check(x.length == y.length, "dimension " + y.length + " at line " + n);
+			for (int j = 0; j < x.length; j++) {
+				check(Double.doubleToLongBits(x[j]) == Double.doubleToLongBits(y[j]),
+						"value " + y[j] + " instead of " + x[j] + " at line " + n);
+			}
+			n++;
+		}
+		check(!actual.hasNextLine(), "mapped reader has more lines");
+		expected.close();
+		actual.close();
+		return n;
+	}
+
+	/**
+	 * read the file with ReadData and readInto of MappedReadData and compare the positions
+	 * @return number of points read
+	 */
+	private static int compareReadInto(String fileName, int d) throws IOException {
+		PointReader expected = new ReadData(fileName);
+		PointReader actual = new MappedReadData(fileName);
+		double[] y = new double[d];
+		int n = 0;
+		while (expected.hasNextLine()) {
+			check(actual.hasNextLine(), "mapped reader ended at line " + n);
+			double[] x = expected.nextPosition();
+			actual.readInto(y);
+			for (int j = 0; j < d; j++) {
+				check(Double.doubleToLongBits(x[j]) == Double.doubleToLongBits(y[j]),
+						"value " + y[j] + " instead of " + x[j] + " at line " + n);
+			}
+			n++;
+		}
+		check(!actual.hasNextLine(), "mapped reader has more lines");
+		expected.close();
+		actual.close();
+		return n;
+	}
+
+	private static File write(String content) throws IOException {
+		File file = File.createTempFile("points", ".txt");
+		file.deleteOnExit();
+		FileWriter fw = new FileWriter(file);
+		fw.write(content);
+		fw.close();
+		return file;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import util.PointRingBuffer.WaitStrategy;
+
+/**
+ * PipelinedReadData hands over the points of its source in order (parsed
+ * straight into the ring slots, by ReadData and MappedReadData), stops its
+ * parser when closed before the end, and reports a point of the wrong
+ * dimension
+ *
+ */
+public class PipelinedReadDataTest {
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(4);
+		int n = 5000;
+		int d = 6;
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++) {
+				if (j > 0) {
+					csv.append(',');
+				}
+				csv.append(random.nextGaussian() * 10);
+			}
+			csv.append('\n');
+		}
+		String fileName = write(csv.toString()).getPath();
+
+		for (WaitStrategy waitStrategy : new WaitStrategy[] { WaitStrategy.YIELD, WaitStrategy.PARK }) {
+			for (int capacity : new int[] { 1, 16, 1024 }) {
+				PointReader expected = new ReadData(fileName);
+				PointReader source = capacity == 16 ? new MappedReadData(fileName) : new ReadData(fileName);
+				PointReader actual = new PipelinedReadData(source, d, capacity, waitStrategy);
+				int i = 0;
+				while (expected.hasNextLine()) {
+					check(actual.hasNextLine(), "pipelined reader ended at point " + i);
+					double[] x = expected.nextPosition();
+					double[] y = actual.nextPosition();
+					for (int j = 0; j < d; j++) {
+						check(x[j] == y[j], "value " + y[j] + " instead of " + x[j] + " at point " + i);
+					}
+					i++;
+				}
+				check(!actual.hasNextLine(), "pipelined reader has more points");
+				expected.close();
+				actual.close();
+
+				// close before the end: the parser blocked on the full buffer stops
+				actual = new PipelinedReadData(new ReadData(fileName), d, capacity, waitStrategy);
+				for (i = 0; i < 100; i++) {
+					actual.nextPosition();
+				}
+				actual.close();
+			}
+		}
+
+		// a point of another dimension fails the reader
+		String wrong = write("1,2,3\n4,5\n").getPath();
+		for (PointReader source : new PointReader[] { new ReadData(wrong), new MappedReadData(wrong) }) {
+			PointReader reader = new PipelinedReadData(source, 3, 16, WaitStrategy.YIELD);
+			boolean failed = false;
+			try {
+				while (reader.hasNextLine()) {
+					reader.nextPosition();
+				}
+			} catch (IllegalStateException e) {
+				failed = true;
+			}
+			reader.close();
+			check(failed, "wrong dimension accepted");
+		}
+
+		System.out.println("PipelinedReadDataTest: ok");
+	}
+
+	private static File write(String content) throws IOException {
+		File file = File.createTempFile("points", ".txt");
+		file.deleteOnExit();
+		FileWriter fw = new FileWriter(file);
+		fw.write(content);
+		fw.close();
+		return file;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}
@@ -0,0 +1,84 @@
+package util;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Random;
+
+import datastructure.Point;
+
+/**
+ * A CSV file converted to a binary point file reads back the same points,
+ * in double and single precision, with and without a weight column
+ * (random access and the sequential reader)
+ *
+ */
+public class PointFileTest {
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(2);
+		int n = 5000;
+		int d = 5;
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < d; j++) {
+				if (j > 0) {
+					csv.append(',');
+				}
+				csv.append(random.nextGaussian() * 100);
+			}
+			csv.append('\n');
+		}
+		File csvFile = File.createTempFile("points", ".txt");
+		csvFile.deleteOnExit();
+		FileWriter fw = new FileWriter(csvFile);
+		fw.write(csv.toString());
+		fw.close();
+
+		for (boolean single : new boolean[] { false, true }) {
+			for (boolean weighted : new boolean[] { false, true }) {
+				File binFile = File.createTempFile("points", ".bin");
+				binFile.deleteOnExit();
+				PointFile.convert(csvFile.getPath(), binFile.getPath(), single, weighted);
+				check(binFile.length() == PointFile.HEADER_SIZE + (long) n * (weighted ? d + 1 : d) * (single ? 4 : 8),
+						"file size " + binFile.length());
+				compare(csvFile.getPath(), binFile.getPath(), single, weighted);
+			}
+		}
+		System.out.println("PointFileTest: ok");
+	}
+
+	private static void compare(String csvFile, String binFile, boolean single, boolean weighted) throws IOException {
+		PointFile pointFile = PointFile.open(binFile);
+		check(pointFile.isWeighted() == weighted, "weighted " + pointFile.isWeighted());
+		PointReader expected = new ReadData(csvFile);
+		PointReader actual = PointReader.open(binFile, false);
+		double[] position = new double[pointFile.dimension()];
+		int i = 0;
+		while (expected.hasNextLine()) {
+			check(actual.hasNextLine(), "binary reader ended at point " + i);
+			double[] x = expected.nextPosition();
+			Point p = actual.nextPoint();
+			pointFile.position(i, position);
+			check(p.position.length == x.length && pointFile.dimension() == x.length, "dimension at point " + i);
+			check(p.weight == 1 && pointFile.weight(i) == 1, "weight at point " + i);
+			for (int j = 0; j < x.length; j++) {
+				double value = single ? (float) x[j] : x[j];
+				check(p.position[j] == value && pointFile.get(i, j) == value && position[j] == value,
+						"value " + p.position[j] + " instead of " + value + " at point " + i);
+			}
+			i++;
+		}
+		check(!actual.hasNextLine(), "binary reader has more points");
+		check(pointFile.size() == i, "size " + pointFile.size());
+		expected.close();
+		actual.close();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+
+}